@@ -0,0 +1,511 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFault;
+
+import android.util.Log;
+
+/**
+ * Takes the punches of a kiosk without blocking the UI and sends them in
+ * micro-batches, for the bursts at shift change when dozens of employees
+ * badge within seconds. A batch is sent when it holds maxBatch punches or
+ * maxDelayMillis after its first punch.<br>
+ * The punches of a batch are sent with register_attendance, like
+ * Register_Attendance() does, up to parallelism of them at the same time,
+ * unless the server has a module with a batch method set with
+ * setBatchMethod(), which takes the list of employee ids and returns one
+ * boolean per id; then the whole batch is one call.<br>
+ * The punches of one employee are registered in the order they were
+ * submitted: a batch never holds two punches of the same employee, later
+ * ones wait for the next batch, which is sent when this one is done. Each punch is acknowledged to the Listener,
+ * from the aggregator thread, with its outcome and latency. An unexpected
+ * answer fails the punches of its batch, never the aggregator.<br>
+ * Run main() to measure a burst against OpenERPSimulator: punches, min and
+ * max latency in ms, batch size, parallelism.
+ */
+public class OpenERPAttendanceAggregator {
+
+	public interface Listener {
+		void onPunch(Punch punch);
+	}
+
+	private static final String MODEL = "control.horario.register";
+	private static final int DEFAULT_PARALLELISM = 4;
+
+	private final OpenERPconn mConnection;
+	private final int mMaxBatch;
+	private final long mMaxDelayMillis;
+	private volatile String mBatchMethod;
+	private volatile Listener mListener;
+
+	private final LinkedList<Punch> mQueue = new LinkedList<Punch>();
+	private boolean mClosed;
+	private final Thread mThread;
+	private final ExecutorService mSenders;
+	private final Stats mStats = new Stats();
+
+	public OpenERPAttendanceAggregator(OpenERPconn connection, int maxBatch, long maxDelayMillis) {
+		this(connection, maxBatch, maxDelayMillis, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * @param parallelism
+	 *            Punches of a batch sent at the same time without a batch
+	 *            method, 4 by default.
+	 */
+	public OpenERPAttendanceAggregator(OpenERPconn connection, int maxBatch, long maxDelayMillis, int parallelism) {
+		mConnection = connection;
+		mMaxBatch = maxBatch;
+		mMaxDelayMillis = maxDelayMillis;
+		mSenders = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "OpenERPAttendanceAggregator sender");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, "OpenERPAttendanceAggregator");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * @param batchMethod
+	 *            Method of control.horario.register taking a list of employee
+	 *            ids, if the server has one. Null (the default) to send the
+	 *            punches one by one. If the server answers that it does not
+	 *            exist, it is not tried again.
+	 */
+	public void setBatchMethod(String batchMethod) {
+		mBatchMethod = batchMethod;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Queues a punch and returns at once.
+	 *
+	 * @return The punch, which can also be waited for with await().
+	 */
+	public Punch submit(int employeeId) {
+		Punch punch = new Punch(employeeId);
+		synchronized (mQueue) {
+			if (mClosed) {
+				throw new IllegalStateException("The aggregator is closed");
+			}
+			mQueue.add(punch);
+			mStats.mSubmitted++;
+			mQueue.notifyAll();
+		}
+		return punch;
+	}
+
+	/** @return The punches not sent yet. */
+	public int getQueued() {
+		synchronized (mQueue) {
+			return mQueue.size();
+		}
+	}
+
+	/** Sends what is queued and stops, blocking until it is done. */
+	public void close() throws InterruptedException {
+		synchronized (mQueue) {
+			mClosed = true;
+			mQueue.notifyAll();
+		}
+		mThread.join();
+	}
+
+	public Stats getStats() {
+		synchronized (mQueue) {
+			return new Stats(mStats);
+		}
+	}
+
+	private void work() {
+		try {
+			workBatches();
+		} finally {
+			mSenders.shutdown();
+		}
+	}
+
+	private void workBatches() {
+		while (true) {
+			List<Punch> batch;
+			synchronized (mQueue) {
+				try {
+					while (!mClosed && !isBatchReady()) {
+						if (mQueue.isEmpty()) {
+							mQueue.wait();
+						} else {
+							mQueue.wait(Math.max(1, mQueue.getFirst().mSubmittedAt + mMaxDelayMillis - System.currentTimeMillis()));
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (mQueue.isEmpty()) {
+					return; // Closed
+				}
+				batch = takeBatch();
+			}
+			try {
+				send(batch);
+			} catch (RuntimeException e) {
+				// The punches queued after it must still be sent
+				Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+				for (Punch punch : batch) {
+					if (!punch.isDone()) {
+						punch.mError = e.toString();
+						punch.done();
+					}
+				}
+			}
+		}
+	}
+
+	private boolean isBatchReady() {
+		return !mQueue.isEmpty() && (mQueue.size() >= mMaxBatch || System.currentTimeMillis() - mQueue.getFirst().mSubmittedAt >= mMaxDelayMillis);
+	}
+
+	/** The oldest punches, at most one per employee. */
+	private List<Punch> takeBatch() {
+		List<Punch> batch = new ArrayList<Punch>(Math.min(mMaxBatch, mQueue.size()));
+		HashSet<Integer> employees = new HashSet<Integer>();
+		for (Iterator<Punch> punches = mQueue.iterator(); punches.hasNext() && batch.size() < mMaxBatch;) {
+			Punch punch = punches.next();
+			if (employees.add(punch.mEmployeeId)) {
+				batch.add(punch);
+				punches.remove();
+			}
+		}
+		return batch;
+	}
+
+	private void send(List<Punch> batch) {
+		long sentAt = System.currentTimeMillis();
+		for (Punch punch : batch) {
+			punch.mSentAt = sentAt;
+		}
+		String batchMethod = mBatchMethod;
+		boolean batched = false;
+		if (batchMethod != null && batch.size() > 1) {
+			try {
+				sendBatch(batchMethod, batch);
+				batched = true;
+			} catch (XMLRPCException e) {
+				if (isMissingMethod(e, batchMethod)) {
+					mBatchMethod = null;
+				} else {
+					Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+					for (Punch punch : batch) {
+						punch.mError = e.toString();
+					}
+					batched = true;
+				}
+			}
+		}
+		if (!batched) {
+			sendEach(batch);
+		}
+		long doneAt = System.currentTimeMillis();
+		synchronized (mQueue) {
+			mStats.mBatches++;
+			if (!batched) {
+				mStats.mSequentialBatches++;
+			}
+			for (Punch punch : batch) {
+				punch.mDoneAt = doneAt;
+				mStats.add(punch);
+			}
+		}
+		Listener listener = mListener;
+		for (Punch punch : batch) {
+			punch.done();
+			if (listener != null) {
+				try {
+					listener.onPunch(punch);
+				} catch (RuntimeException e) {
+					Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+				}
+			}
+		}
+	}
+
+	/** Sends the punches, of different employees, on the sender threads. */
+	private void sendEach(List<Punch> batch) {
+		List<Callable<Void>> calls = new ArrayList<Callable<Void>>(batch.size());
+		for (final Punch punch : batch) {
+			calls.add(new Callable<Void>() {
+				public Void call() {
+					try {
+						Object response = mConnection.execute(MODEL, "register_attendance", punch.mEmployeeId);
+						punch.mRegistered = Boolean.parseBoolean(response + "");
+					} catch (XMLRPCException e) {
+						punch.mError = e.toString();
+					} catch (RuntimeException e) {
+						punch.mError = e.toString(); // Unexpected response
+					}
+					return null;
+				}
+			});
+		}
+		try {
+			mSenders.invokeAll(calls);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (Punch punch : batch) {
+				if (!punch.mRegistered && punch.mError == null) {
+					punch.mError = e.toString();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @throws XMLRPCException
+	 *             Also if the answer is not one boolean per punch, then none
+	 *             of them is taken as registered.
+	 */
+	private void sendBatch(String batchMethod, List<Punch> batch) throws XMLRPCException {
+		int[] ids = new int[batch.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = batch.get(i).mEmployeeId;
+		}
+		Object response = mConnection.execute(MODEL, batchMethod, ids);
+		if (!(response instanceof Object[]) || ((Object[]) response).length != ids.length) {
+			throw new XMLRPCException("Unexpected response of " + batchMethod + " for " + ids.length + " punches: " + response);
+		}
+		Object[] registered = (Object[]) response;
+		for (int i = 0; i < ids.length; i++) {
+			batch.get(i).mRegistered = Boolean.parseBoolean(registered[i] + "");
+		}
+	}
+
+	private static boolean isMissingMethod(XMLRPCException e, String method) {
+		if (!(e instanceof XMLRPCFault)) {
+			return false;
+		}
+		String fault = ((XMLRPCFault) e).getFaultString();
+		return fault != null && fault.contains(method) && (fault.contains("has no attribute") || fault.contains("does not exist"));
+	}
+
+	public static class Punch {
+
+		private final int mEmployeeId;
+		private final long mSubmittedAt = System.currentTimeMillis();
+		private long mSentAt;
+		private long mDoneAt;
+		private boolean mRegistered;
+		private String mError;
+		private boolean mDone;
+
+		Punch(int employeeId) {
+			mEmployeeId = employeeId;
+		}
+
+		public int getEmployeeId() {
+			return mEmployeeId;
+		}
+
+		public long getSubmittedAt() {
+			return mSubmittedAt;
+		}
+
+		/** @return True if the server registered the attendance. */
+		public boolean isRegistered() {
+			return mRegistered;
+		}
+
+		/** @return Why the punch could not be sent, null if it was sent. */
+		public String getError() {
+			return mError;
+		}
+
+		/** @return Time from submit() until the server answered. */
+		public long getLatencyMillis() {
+			return mDoneAt - mSubmittedAt;
+		}
+
+		/** @return Time the punch waited for its batch. */
+		public long getQueuedMillis() {
+			return mSentAt - mSubmittedAt;
+		}
+
+		public synchronized boolean isDone() {
+			return mDone;
+		}
+
+		/** @return False if the punch was not acknowledged in time. */
+		public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (!mDone) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				wait(wait);
+			}
+			return true;
+		}
+
+		synchronized void done() {
+			mDone = true;
+			notifyAll();
+		}
+
+		public String toString() {
+			return "employee " + mEmployeeId + (mError != null ? ": " + mError : mRegistered ? ": registered" : ": not registered") + " in " + getLatencyMillis() + " ms";
+		}
+	}
+
+	/** Counters since the aggregator was created. */
+	public static class Stats {
+
+		private int mSubmitted;
+		private int mAcknowledged;
+		private int mRegistered;
+		private int mFailed;
+		private int mBatches;
+		private int mSequentialBatches;
+		private long mTotalLatencyMillis;
+		private long mMaxLatencyMillis;
+
+		Stats() {
+		}
+
+		Stats(Stats stats) {
+			mSubmitted = stats.mSubmitted;
+			mAcknowledged = stats.mAcknowledged;
+			mRegistered = stats.mRegistered;
+			mFailed = stats.mFailed;
+			mBatches = stats.mBatches;
+			mSequentialBatches = stats.mSequentialBatches;
+			mTotalLatencyMillis = stats.mTotalLatencyMillis;
+			mMaxLatencyMillis = stats.mMaxLatencyMillis;
+		}
+
+		void add(Punch punch) {
+			mAcknowledged++;
+			if (punch.mError != null) {
+				mFailed++;
+			} else if (punch.mRegistered) {
+				mRegistered++;
+			}
+			long latency = punch.getLatencyMillis();
+			mTotalLatencyMillis += latency;
+			mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latency);
+		}
+
+		public int getSubmitted() {
+			return mSubmitted;
+		}
+
+		public int getAcknowledged() {
+			return mAcknowledged;
+		}
+
+		public int getRegistered() {
+			return mRegistered;
+		}
+
+		/** @return Punches which could not be sent. */
+		public int getFailed() {
+			return mFailed;
+		}
+
+		public int getBatches() {
+			return mBatches;
+		}
+
+		/** @return Batches sent with one call per punch. */
+		public int getSequentialBatches() {
+			return mSequentialBatches;
+		}
+
+		/** @return Mean latency of the acknowledged punches. */
+		public long getAverageLatencyMillis() {
+			return mAcknowledged > 0 ? mTotalLatencyMillis / mAcknowledged : 0;
+		}
+
+		public long getMaxLatencyMillis() {
+			return mMaxLatencyMillis;
+		}
+
+		public String toString() {
+			return mSubmitted + " punches, " + mRegistered + " registered, " + mFailed + " failed, " + mBatches +  " batches (" + mSequentialBatches + " one call per punch), latency avg "
+					+ getAverageLatencyMillis() + " ms max " + mMaxLatencyMillis + " ms";
+		}
+	}
+
+	/**
+	 * Sends a burst of punches of different employees to a local
+	 * OpenERPSimulator three ways: one blocking call per punch, as the kiosk
+	 * does without the aggregator; through the aggregator with one call per
+	 * punch, parallelism of them at a time; and through the aggregator with a
+	 * batch method. Prints the time until the
+	 * last punch was acknowledged and the latencies of each way.
+	 */
+	public static void main(String[] args) throws Exception {
+		int punches = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		long minLatency = args.length > 1 ? Long.parseLong(args[1]) : 20;
+		long maxLatency = args.length > 2 ? Long.parseLong(args[2]) : 40;
+		int maxBatch = args.length > 3 ? Integer.parseInt(args[3]) : 25;
+		int parallelism = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_PARALLELISM;
+		String batchMethod = "register_attendances";
+		OpenERPSimulator simulator = new OpenERPSimulator(0, "simulation");
+		simulator.setLatency(minLatency, maxLatency);
+		simulator.setBatchMethod(batchMethod);
+		try {
+			OpenERPconn connection = OpenERPconn.connect("127.0.0.1", simulator.getPort(), "simulation", "admin", "admin");
+			long start = System.currentTimeMillis();
+			long maxLatencyMillis = 0;
+			for (int i = 0; i < punches; i++) {
+				long punchStart = System.currentTimeMillis();
+				connection.Register_Attendance(i + 1);
+				maxLatencyMillis = Math.max(maxLatencyMillis, System.currentTimeMillis() - punchStart);
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			System.out.println("Blocking: " + punches + " punches in " + elapsed + " ms, " + punches * 1000 / Math.max(1, elapsed) + " punches/s, latency max " + maxLatencyMillis
+					+ " ms plus the wait behind the previous punches");
+			System.out.println("Aggregated, " + parallelism + " at a time: " + burst(connection, punches, maxBatch, parallelism, null));
+			System.out.println("Aggregated with " + batchMethod + ": " + burst(connection, punches, maxBatch, parallelism, batchMethod));
+		} finally {
+			simulator.stop();
+		}
+	}
+
+	private static String burst(OpenERPconn connection, int punches, int maxBatch, int parallelism, String batchMethod) throws InterruptedException {
+		OpenERPAttendanceAggregator aggregator = new OpenERPAttendanceAggregator(connection, maxBatch, 50, parallelism);
+		aggregator.setBatchMethod(batchMethod);
+		long start = System.currentTimeMillis();
+		List<Punch> submitted = new ArrayList<Punch>(punches);
+		for (int i = 0; i < punches; i++) {
+			submitted.add(aggregator.submit(i + 1));
+		}
+		long submitMillis = System.currentTimeMillis() - start;
+		for (Punch punch : submitted) {
+			punch.await(60000);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		aggregator.close();
+		return punches + " punches in " + elapsed + " ms (submitted in " + submitMillis + " ms), " + punches * 1000 / Math.max(1, elapsed) + " punches/s, " + aggregator.getStats();
+	}
+}
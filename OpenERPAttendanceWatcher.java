@@ -0,0 +1,258 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.xmlrpc.android.XMLRPCException;
+
+import android.util.Log;
+
+/**
+ * Replaces polling getLastRegisterToday() for every employee on screen. One
+ * background thread polls for all the watched employees together: each tick
+ * first asks for the most recently written hr.attendance of those employees
+ * (two tiny requests whatever their number) and only when that changed
+ * reads today's attendances of all of them in one search() and one read().
+ * <br>
+ * Listeners are called, from the polling thread, only for the employees
+ * whose last attendance of today actually changed, with that hr.attendance
+ * record (id, employee_id, name, action and write_date) or null if they have
+ * none today. The interval starts at minIntervalMillis, doubles while
+ * nothing changes up to maxIntervalMillis and goes back to the minimum as
+ * soon as something does.
+ */
+public class OpenERPAttendanceWatcher {
+
+	public interface Listener {
+		void onChange(int employeeId, HashMap<String, Object> lastRegister);
+	}
+
+	private static final String MODEL = "hr.attendance";
+	private static final String[] FIELDS = { "employee_id", "name", "action", "write_date" };
+
+	private final OpenERPconn mConnection;
+	private final long mMinIntervalMillis;
+	private final long mMaxIntervalMillis;
+	private long mIntervalMillis;
+
+	private final Map<Integer, List<Listener>> mListeners = new HashMap<Integer, List<Listener>>();
+	/** Last attendance notified per employee, null if none today */
+	private final Map<Integer, HashMap<String, Object>> mLastRegisters = new HashMap<Integer, HashMap<String, Object>>();
+	private String mChangeToken;
+	private String mStartOfToday;
+	private boolean mWatchersChanged;
+
+	private ScheduledExecutorService mExecutor;
+	private ScheduledFuture<?> mNextPoll;
+	/** Only the tick of the last schedule() runs, see tick(). */
+	private int mGeneration;
+	private boolean mPolling;
+
+	public OpenERPAttendanceWatcher(OpenERPconn connection, long minIntervalMillis, long maxIntervalMillis) {
+		mConnection = connection;
+		mMinIntervalMillis = minIntervalMillis;
+		mMaxIntervalMillis = maxIntervalMillis;
+		mIntervalMillis = minIntervalMillis;
+	}
+
+	public synchronized void watch(int employeeId, Listener listener) {
+		List<Listener> listeners = mListeners.get(employeeId);
+		boolean added = listeners == null;
+		if (added) {
+			listeners = new CopyOnWriteArrayList<Listener>();
+			mListeners.put(employeeId, listeners);
+			mWatchersChanged = true;
+		}
+		listeners.add(listener);
+		if (mExecutor != null) {
+			mIntervalMillis = mMinIntervalMillis;
+			// New employees should not wait for a long idle interval. If the
+			// poll is running it reschedules itself at once, see tick().
+			if (added && !mPolling) {
+				if (mNextPoll != null) {
+					mNextPoll.cancel(false);
+				}
+				schedule(0);
+			}
+		}
+	}
+
+	public synchronized void unwatch(int employeeId, Listener listener) {
+		List<Listener> listeners = mListeners.get(employeeId);
+		if (listeners != null && listeners.remove(listener) && listeners.isEmpty()) {
+			mListeners.remove(employeeId);
+			mLastRegisters.remove(employeeId);
+		}
+	}
+
+	public synchronized void start() {
+		if (mExecutor == null) {
+			mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "OpenERPAttendanceWatcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			mIntervalMillis = mMinIntervalMillis;
+			schedule(0);
+		}
+	}
+
+	public synchronized void stop() {
+		if (mExecutor != null) {
+			mExecutor.shutdownNow();
+			mExecutor = null;
+			mNextPoll = null;
+			mGeneration++;
+		}
+	}
+
+	/** @return The delay until the next poll, for diagnostics. */
+	public synchronized long getIntervalMillis() {
+		return mIntervalMillis;
+	}
+
+	private synchronized void schedule(long delayMillis) {
+		if (mExecutor != null) {
+			final int generation = ++mGeneration;
+			mNextPoll = mExecutor.schedule(new Runnable() {
+				public void run() {
+					tick(generation);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void tick(int generation) {
+		synchronized (this) {
+			// A cancelled tick may already be running, a later one replaced it
+			if (generation != mGeneration) {
+				return;
+			}
+			mPolling = true;
+		}
+		boolean changed = false;
+		try {
+			changed = poll();
+		} catch (XMLRPCException e) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+		} catch (RuntimeException e) {
+			// Unexpected answer, keep polling anyway
+			Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+		}
+		synchronized (this) {
+			mPolling = false;
+			if (generation != mGeneration) {
+				return; // Stopped during the poll
+			}
+			mIntervalMillis = changed ? mMinIntervalMillis : Math.min(mIntervalMillis * 2, mMaxIntervalMillis);
+			// Employees watched during the poll have not been read yet
+			schedule(mWatchersChanged ? 0 : mIntervalMillis);
+		}
+	}
+
+	/** @return True if some watched employee changed. */
+	private boolean poll() throws XMLRPCException {
+		Object[] employeeIds;
+		boolean watchersChanged;
+		synchronized (this) {
+			employeeIds = mListeners.keySet().toArray();
+			watchersChanged = mWatchersChanged;
+			mWatchersChanged = false;
+		}
+		if (employeeIds.length == 0) {
+			return false;
+		}
+		Object[] employeeCondition = new Object[] { "employee_id", "in", employeeIds };
+
+		// Cheap check: the most recently written attendance of the employees
+		String token = "";
+		Object[] lastIds = (Object[]) mConnection.execute(MODEL, "search", new Object[] { employeeCondition }, 0, 1, "write_date desc, id desc");
+		if (lastIds.length > 0) {
+			Object[] lastWritten = (Object[]) mConnection.execute(MODEL, "read", lastIds, new String[] { "write_date" });
+			token = lastIds[0] + "@" + ((Map<?, ?>) lastWritten[0]).get("write_date");
+		}
+		String startOfToday = getStartOfToday();
+		if (!watchersChanged && token.equals(mChangeToken) && startOfToday.equals(mStartOfToday)) {
+			return false;
+		}
+
+		// Something was written (or the day changed): today's attendances
+		Object[] todayCondition = new Object[] { "name", ">=", startOfToday };
+		Object[] ids = (Object[]) mConnection.execute(MODEL, "search", new Object[] { employeeCondition, todayCondition }, 0, 0, "name desc, id desc");
+		Map<Integer, HashMap<String, Object>> lastRegisters = new HashMap<Integer, HashMap<String, Object>>();
+		if (ids.length > 0) {
+			Object[] registers = (Object[]) mConnection.execute(MODEL, "read", ids, FIELDS);
+			HashMap<Integer, HashMap<String, Object>> byId = new HashMap<Integer, HashMap<String, Object>>();
+			for (Object register : registers) {
+				@SuppressWarnings("unchecked")
+				HashMap<String, Object> values = (HashMap<String, Object>) register;
+				byId.put((Integer) values.get("id"), values);
+			}
+			// read() does not keep the order of search(), ids does
+			for (Object id : ids) {
+				HashMap<String, Object> register = byId.get(id);
+				Integer employeeId = (Integer) ((Object[]) register.get("employee_id"))[0];
+				if (!lastRegisters.containsKey(employeeId)) {
+					lastRegisters.put(employeeId, register);
+				}
+			}
+		}
+		mChangeToken = token;
+		mStartOfToday = startOfToday;
+		return notifyChanges(employeeIds, lastRegisters);
+	}
+
+	private boolean notifyChanges(Object[] employeeIds, Map<Integer, HashMap<String, Object>> lastRegisters) {
+		boolean changed = false;
+		for (Object employee : employeeIds) {
+			Integer employeeId = (Integer) employee;
+			HashMap<String, Object> register = lastRegisters.get(employeeId);
+			List<Listener> listeners;
+			synchronized (this) {
+				listeners = mListeners.get(employeeId);
+				if (listeners == null || (mLastRegisters.containsKey(employeeId) && isSame(mLastRegisters.get(employeeId), register))) {
+					continue;
+				}
+				mLastRegisters.put(employeeId, register);
+			}
+			changed = true;
+			for (Listener listener : new ArrayList<Listener>(listeners)) {
+				try {
+					listener.onChange(employeeId, register);
+				} catch (RuntimeException e) {
+					// The change token is saved, the others must be told now
+					Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+				}
+			}
+		}
+		return changed;
+	}
+
+	private static boolean isSame(HashMap<String, Object> previous, HashMap<String, Object> current) {
+		if (previous == null || current == null) {
+			return previous == current;
+		}
+		return previous.get("id").equals(current.get("id")) && String.valueOf(previous.get("write_date")).equals(String.valueOf(current.get("write_date")));
+	}
+
+	/** Attendances are stored in UTC, today starts at local midnight. */
+	private static String getStartOfToday() {
+		Calendar midnight = Calendar.getInstance();
+		midnight.set(Calendar.HOUR_OF_DAY, 0);
+		midnight.set(Calendar.MINUTE, 0);
+		midnight.set(Calendar.SECOND, 0);
+		midnight.set(Calendar.MILLISECOND, 0);
+		return OpenERPDateCodec.formatServer(midnight.getTimeInMillis(), true);
+	}
+}
@@ -0,0 +1,155 @@
+package com.openerp.attendances;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Incremental Base64 codec used by the streaming transport. Unlike
+ * android.util.Base64 it never needs the whole payload in memory: the
+ * decoder is fed with chunks of characters as they are parsed from the
+ * response and the encoder copies a stream into the request body.
+ */
+final class OpenERPBase64 {
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private static final int[] VALUES = new int[128];
+
+	static {
+		for (int i = 0; i < VALUES.length; i++) {
+			VALUES[i] = -1;
+		}
+		for (int i = 0; i < ALPHABET.length; i++) {
+			VALUES[ALPHABET[i]] = i;
+		}
+	}
+
+	private OpenERPBase64() {
+	}
+
+	/**
+	 * Decodes Base64 text as it arrives and writes the bytes to the wrapped
+	 * stream. Whitespace, line breaks and padding are ignored.
+	 */
+	static final class Decoder {
+
+		private final OutputStream mOut;
+		private final byte[] mBuffer = new byte[3 * 1024];
+		private int mBuffered;
+		private int mBits;
+		private int mCount;
+		private long mLength;
+
+		Decoder(OutputStream out) {
+			mOut = out;
+		}
+
+		void decode(char[] chars, int offset, int length) throws IOException {
+			int end = offset + length;
+			for (int i = offset; i < end; i++) {
+				char c = chars[i];
+				int value = c < 128 ? VALUES[c] : -1;
+				if (value < 0) {
+					continue;
+				}
+				mBits = (mBits << 6) | value;
+				if (++mCount == 4) {
+					if (mBuffered + 3 > mBuffer.length) {
+						flushBuffer();
+					}
+					mBuffer[mBuffered++] = (byte) (mBits >> 16);
+					mBuffer[mBuffered++] = (byte) (mBits >> 8);
+					mBuffer[mBuffered++] = (byte) mBits;
+					mBits = 0;
+					mCount = 0;
+				}
+			}
+		}
+
+		/** Writes the trailing partial quantum, if any, and flushes. */
+		void finish() throws IOException {
+			if (mBuffered + 2 > mBuffer.length) {
+				flushBuffer();
+			}
+			if (mCount == 2) {
+				mBuffer[mBuffered++] = (byte) (mBits >> 4);
+			} else if (mCount == 3) {
+				mBuffer[mBuffered++] = (byte) (mBits >> 10);
+				mBuffer[mBuffered++] = (byte) (mBits >> 2);
+			}
+			mBits = 0;
+			mCount = 0;
+			flushBuffer();
+			mOut.flush();
+		}
+
+		/** @return Number of decoded bytes written so far. */
+		long length() {
+			return mLength + mBuffered;
+		}
+
+		private void flushBuffer() throws IOException {
+			if (mBuffered > 0) {
+				mOut.write(mBuffer, 0, mBuffered);
+				mLength += mBuffered;
+				mBuffered = 0;
+			}
+		}
+	}
+
+	/**
+	 * Copies the stream to the writer as Base64 text without line breaks,
+	 * which is what OpenERP expects in binary fields.
+	 */
+	static void encode(InputStream in, Writer out) throws IOException {
+		byte[] bytes = new byte[3 * 1024];
+		char[] chars = new char[4 * 1024];
+		int read;
+		while ((read = fill(in, bytes)) > 0) {
+			out.write(chars, 0, encode(bytes, read, chars));
+		}
+	}
+
+	/** @return Length of the Base64 text for the given number of bytes. */
+	static long encodedLength(long length) {
+		return (length + 2) / 3 * 4;
+	}
+
+	private static int encode(byte[] bytes, int length, char[] chars) {
+		int c = 0;
+		int i = 0;
+		for (; i + 3 <= length; i += 3) {
+			int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+			chars[c++] = ALPHABET[bits >> 18];
+			chars[c++] = ALPHABET[(bits >> 12) & 0x3f];
+			chars[c++] = ALPHABET[(bits >> 6) & 0x3f];
+			chars[c++] = ALPHABET[bits & 0x3f];
+		}
+		if (i < length) {
+			int bits = (bytes[i] & 0xff) << 16;
+			if (i + 1 < length) {
+				bits |= (bytes[i + 1] & 0xff) << 8;
+			}
+			chars[c++] = ALPHABET[bits >> 18];
+			chars[c++] = ALPHABET[(bits >> 12) & 0x3f];
+			chars[c++] = i + 1 < length ? ALPHABET[(bits >> 6) & 0x3f] : '=';
+			chars[c++] = '=';
+		}
+		return c;
+	}
+
+	/** Reads until the buffer is full or the stream ends. */
+	private static int fill(InputStream in, byte[] buffer) throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int read = in.read(buffer, total, buffer.length - total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+}
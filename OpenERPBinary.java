@@ -0,0 +1,123 @@
+package com.openerp.attendances;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Handle to the content of a binary field (employee photos, attachment
+ * data...) kept on disk instead of in a base64 String inside the record
+ * HashMap. Records read with a Sink hold one of these instead of the
+ * String, and you can put one in the values of create() or write() to
+ * upload a file without loading it in memory.
+ */
+public class OpenERPBinary {
+
+	private final File mFile;
+	private final long mLength;
+
+	public OpenERPBinary(File file) {
+		this(file, file.length());
+	}
+
+	public OpenERPBinary(File file, long length) {
+		mFile = file;
+		mLength = length;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/** @return Size of the decoded content in bytes. */
+	public long length() {
+		return mLength;
+	}
+
+	public InputStream openStream() throws FileNotFoundException {
+		return new FileInputStream(mFile);
+	}
+
+	/** Removes the backing file, call it when you are done with the content. */
+	public boolean delete() {
+		return mFile.delete();
+	}
+
+	public String toString() {
+		return "OpenERPBinary(" + mFile + ", " + mLength + " bytes)";
+	}
+
+	/**
+	 * Decides where the content of binary fields goes while the response is
+	 * being parsed. The object returned by close() is what the record will
+	 * hold for that field. If the response can not be read to the end, the
+	 * stream opened for the field is given to abort() instead.
+	 */
+	public interface Sink {
+
+		boolean accepts(String field);
+
+		OutputStream open(String field) throws IOException;
+
+		Object close(String field, OutputStream out, long length) throws IOException;
+
+		void abort(String field, OutputStream out);
+	}
+
+	/**
+	 * Sink which decodes every accepted field to a new file in the given
+	 * directory, leaving an OpenERPBinary in the record.
+	 */
+	public static class FileSink implements Sink {
+
+		private final File mDirectory;
+		private final Set<String> mFields;
+
+		public FileSink(File directory, String... fields) {
+			mDirectory = directory;
+			mFields = new HashSet<String>(Arrays.asList(fields));
+		}
+
+		public boolean accepts(String field) {
+			return mFields.contains(field);
+		}
+
+		public OutputStream open(String field) throws IOException {
+			File file = File.createTempFile("openerp_" + field + "_", ".bin", mDirectory);
+			return new FileSinkStream(file);
+		}
+
+		public Object close(String field, OutputStream out, long length) throws IOException {
+			out.close();
+			return new OpenERPBinary(((FileSinkStream) out).mFile, length);
+		}
+
+		public void abort(String field, OutputStream out) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+			}
+			((FileSinkStream) out).mFile.delete();
+		}
+
+		private static class FileSinkStream extends FileOutputStream {
+
+			private final File mFile;
+
+			FileSinkStream(File file) throws FileNotFoundException {
+				super(file);
+				mFile = file;
+			}
+		}
+	}
+}
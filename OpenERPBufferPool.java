@@ -0,0 +1,562 @@
+package com.openerp.attendances;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+import org.xmlrpc.android.XMLRPCException;
+
+/**
+ * Per thread pool of the byte and char buffers used to serialize requests
+ * and parse responses, so the execute() path does not allocate new stream
+ * buffers on every call (which shows up as GC pauses while lists scroll and
+ * sync runs). Buffers come in a few size classes; the pool keeps at most
+ * one buffer per class and per thread, and buffers bigger than the largest
+ * class are never pooled.<br>
+ * It also provides the UTF-8 Writer and Reader of the transport, which
+ * encode and decode straight into pooled buffers instead of allocating the
+ * 8KB buffers of OutputStreamWriter and InputStreamReader each time. Those,
+ * the XML writer and reader and the ByteSink are reused as well, one of
+ * each per thread, so a call allocates little more than its result; run
+ * main() to measure it.
+ */
+final class OpenERPBufferPool {
+
+	private static final int[] SIZES = { 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024 };
+
+	private static final ThreadLocal<OpenERPBufferPool> POOLS = new ThreadLocal<OpenERPBufferPool>() {
+		@Override
+		protected OpenERPBufferPool initialValue() {
+			return new OpenERPBufferPool();
+		}
+	};
+
+	private final byte[][] mBytes = new byte[SIZES.length][];
+	private final char[][] mChars = new char[SIZES.length][];
+
+	/** Reusable objects of the call path, null while in use */
+	private ByteSink mSink;
+	private Utf8Writer mWriter;
+	private Utf8Reader mReader;
+	private OpenERPXmlWriter mXmlWriter;
+	private OpenERPXmlReader mXmlReader;
+
+	private OpenERPBufferPool() {
+	}
+
+	/** @return The pool of the current thread. */
+	static OpenERPBufferPool get() {
+		return POOLS.get();
+	}
+
+	private static int sizeClass(int minSize) {
+		for (int i = 0; i < SIZES.length; i++) {
+			if (SIZES[i] >= minSize) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int exactSizeClass(int length) {
+		for (int i = 0; i < SIZES.length; i++) {
+			if (SIZES[i] == length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** @return A buffer of at least minSize bytes, give it back when done. */
+	byte[] takeBytes(int minSize) {
+		int sizeClass = sizeClass(minSize);
+		if (sizeClass < 0) {
+			return new byte[minSize];
+		}
+		byte[] buffer = mBytes[sizeClass];
+		if (buffer != null) {
+			mBytes[sizeClass] = null;
+			return buffer;
+		}
+		return new byte[SIZES[sizeClass]];
+	}
+
+	void giveBytes(byte[] buffer) {
+		int sizeClass = exactSizeClass(buffer.length);
+		if (sizeClass >= 0) {
+			mBytes[sizeClass] = buffer;
+		}
+	}
+
+	/** @return A buffer of at least minSize chars, give it back when done. */
+	char[] takeChars(int minSize) {
+		int sizeClass = sizeClass(minSize);
+		if (sizeClass < 0) {
+			return new char[minSize];
+		}
+		char[] buffer = mChars[sizeClass];
+		if (buffer != null) {
+			mChars[sizeClass] = null;
+			return buffer;
+		}
+		return new char[SIZES[sizeClass]];
+	}
+
+	void giveChars(char[] buffer) {
+		int sizeClass = exactSizeClass(buffer.length);
+		if (sizeClass >= 0) {
+			mChars[sizeClass] = buffer;
+		}
+	}
+
+	/** @return An empty ByteSink, release() it when done. */
+	ByteSink takeSink() {
+		ByteSink sink = mSink;
+		if (sink == null) {
+			return new ByteSink(this);
+		}
+		mSink = null;
+		sink.open();
+		return sink;
+	}
+
+	/** @return A Utf8Writer over the stream, close() it when done. */
+	Utf8Writer takeWriter(OutputStream out) {
+		Utf8Writer writer = mWriter;
+		if (writer == null) {
+			return new Utf8Writer(this, out);
+		}
+		mWriter = null;
+		writer.open(out);
+		return writer;
+	}
+
+	/** @return A Utf8Reader over the stream, close() it when done. */
+	Utf8Reader takeReader(InputStream in) {
+		Utf8Reader reader = mReader;
+		if (reader == null) {
+			return new Utf8Reader(this, in);
+		}
+		mReader = null;
+		reader.open(in);
+		return reader;
+	}
+
+	/** @return An XML writer over the Writer, give it back when done. */
+	OpenERPXmlWriter takeXmlWriter(Writer out) {
+		OpenERPXmlWriter writer = mXmlWriter;
+		if (writer == null) {
+			return new OpenERPXmlWriter(out);
+		}
+		mXmlWriter = null;
+		writer.reset(out);
+		return writer;
+	}
+
+	void giveXmlWriter(OpenERPXmlWriter writer) {
+		writer.reset(null);
+		mXmlWriter = writer;
+	}
+
+	/** @return An XML reader over the Reader, give it back when done. */
+	OpenERPXmlReader takeXmlReader(Reader in, OpenERPBinary.Sink sink) {
+		OpenERPXmlReader reader = mXmlReader;
+		if (reader == null) {
+			return new OpenERPXmlReader(in, sink);
+		}
+		mXmlReader = null;
+		reader.reset(in, sink);
+		return reader;
+	}
+
+	void giveXmlReader(OpenERPXmlReader reader) {
+		reader.reset(null, null);
+		mXmlReader = reader;
+	}
+
+	/**
+	 * Growable byte buffer backed by pooled arrays, a replacement for
+	 * ByteArrayOutputStream. Call release() when done with the content.
+	 */
+	static final class ByteSink extends OutputStream {
+
+		private final OpenERPBufferPool mPool;
+		private byte[] mBuffer;
+		private int mSize;
+
+		ByteSink(OpenERPBufferPool pool) {
+			mPool = pool;
+			open();
+		}
+
+		private void open() {
+			// Not the class of Utf8Writer, which is used at the same time
+			mBuffer = mPool.takeBytes(SIZES[1]);
+			mSize = 0;
+		}
+
+		@Override
+		public void write(int b) {
+			ensureCapacity(mSize + 1);
+			mBuffer[mSize++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensureCapacity(mSize + len);
+			System.arraycopy(b, off, mBuffer, mSize, len);
+			mSize += len;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > mBuffer.length) {
+				byte[] bigger = mPool.takeBytes(Math.max(capacity, mBuffer.length * 2));
+				System.arraycopy(mBuffer, 0, bigger, 0, mSize);
+				mPool.giveBytes(mBuffer);
+				mBuffer = bigger;
+			}
+		}
+
+		int size() {
+			return mSize;
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			out.write(mBuffer, 0, mSize);
+		}
+
+		/** Gives the buffer back, and the sink itself to the pool. */
+		void release() {
+			if (mBuffer != null) {
+				mPool.giveBytes(mBuffer);
+				mBuffer = null;
+				mPool.mSink = this;
+			}
+		}
+	}
+
+	/** UTF-8 Writer over a pooled buffer. close() gives the buffer back. */
+	static final class Utf8Writer extends Writer {
+
+		private final OpenERPBufferPool mPool;
+		private OutputStream mOut;
+		private byte[] mBuffer;
+		private int mCount;
+		private char mHighSurrogate;
+
+		Utf8Writer(OpenERPBufferPool pool, OutputStream out) {
+			mPool = pool;
+			open(out);
+		}
+
+		private void open(OutputStream out) {
+			mOut = out;
+			mBuffer = mPool.takeBytes(SIZES[0]);
+			mCount = 0;
+			mHighSurrogate = 0;
+		}
+
+		@Override
+		public void write(String text, int offset, int length) throws IOException {
+			int end = offset + length;
+			for (int i = offset; i < end; i++) {
+				write(text.charAt(i));
+			}
+		}
+
+		@Override
+		public void write(char[] chars, int offset, int length) throws IOException {
+			int end = offset + length;
+			for (int i = offset; i < end; i++) {
+				write(chars[i]);
+			}
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			if (mCount + 4 > mBuffer.length) {
+				flushBuffer();
+			}
+			byte[] buffer = mBuffer;
+			if (c < 0x80 && mHighSurrogate == 0) {
+				buffer[mCount++] = (byte) c;
+				return;
+			}
+			if (mHighSurrogate != 0) {
+				char high = mHighSurrogate;
+				mHighSurrogate = 0;
+				if (Character.isLowSurrogate((char) c)) {
+					int codePoint = Character.toCodePoint(high, (char) c);
+					buffer[mCount++] = (byte) (0xf0 | (codePoint >> 18));
+					buffer[mCount++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+					buffer[mCount++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+					buffer[mCount++] = (byte) (0x80 | (codePoint & 0x3f));
+					return;
+				}
+				buffer[mCount++] = '?'; // Unpaired surrogate
+				write(c);
+				return;
+			}
+			if (c < 0x800) {
+				buffer[mCount++] = (byte) (0xc0 | (c >> 6));
+				buffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate((char) c)) {
+				mHighSurrogate = (char) c;
+			} else if (Character.isLowSurrogate((char) c)) {
+				buffer[mCount++] = '?';
+			} else {
+				buffer[mCount++] = (byte) (0xe0 | (c >> 12));
+				buffer[mCount++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+
+		private void flushBuffer() throws IOException {
+			if (mCount > 0) {
+				mOut.write(mBuffer, 0, mCount);
+				mCount = 0;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushBuffer();
+			mOut.flush();
+		}
+
+		/**
+		 * Flushes and gives the buffer and the writer back, the stream is not
+		 * closed.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (mBuffer != null) {
+				try {
+					flushBuffer();
+				} finally {
+					mPool.giveBytes(mBuffer);
+					mBuffer = null;
+					mOut = null;
+					mPool.mWriter = this;
+				}
+			}
+		}
+	}
+
+	/**
+	 * UTF-8 Reader over a pooled buffer. Malformed input becomes U+FFFD.
+	 * close() gives the buffer and the reader back and closes the stream.
+	 */
+	static final class Utf8Reader extends Reader {
+
+		private final OpenERPBufferPool mPool;
+		private InputStream mIn;
+		private byte[] mBuffer;
+		private int mPosition;
+		private int mLimit;
+		private char mPendingLowSurrogate;
+
+		Utf8Reader(OpenERPBufferPool pool, InputStream in) {
+			mPool = pool;
+			open(in);
+		}
+
+		private void open(InputStream in) {
+			mIn = in;
+			mBuffer = mPool.takeBytes(SIZES[1]);
+			mPosition = 0;
+			mLimit = 0;
+			mPendingLowSurrogate = 0;
+		}
+
+		@Override
+		public int read(char[] chars, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			int count = 0;
+			if (mPendingLowSurrogate != 0) {
+				chars[offset + count++] = mPendingLowSurrogate;
+				mPendingLowSurrogate = 0;
+			}
+			byte[] buffer = mBuffer;
+			while (count < length) {
+				// ASCII fast path
+				while (count < length && mPosition < mLimit && buffer[mPosition] >= 0) {
+					chars[offset + count++] = (char) buffer[mPosition++];
+				}
+				if (count == length) {
+					break;
+				}
+				int lead = mPosition < mLimit ? buffer[mPosition] & 0xff : 0;
+				int needed = lead >= 0xf0 ? 4 : lead >= 0xe0 ? 3 : lead >= 0xc0 ? 2 : 1;
+				if (mPosition + needed > mLimit) {
+					// Do not block for more input if we already have something
+					if (count > 0) {
+						break;
+					}
+					if (!fill()) {
+						if (mPosition < mLimit) {
+							mPosition = mLimit; // Truncated sequence at the end
+							chars[offset + count++] = '\ufffd';
+							continue;
+						}
+						return -1;
+					}
+					continue;
+				}
+				int codePoint = decode(lead, needed);
+				if (codePoint < 0x10000) {
+					chars[offset + count++] = (char) codePoint;
+				} else {
+					char low = (char) (0xdc00 + (codePoint & 0x3ff));
+					chars[offset + count++] = (char) (0xd800 + ((codePoint - 0x10000) >> 10));
+					if (count < length) {
+						chars[offset + count++] = low;
+					} else {
+						mPendingLowSurrogate = low;
+					}
+				}
+			}
+			return count;
+		}
+
+		private int decode(int lead, int needed) {
+			byte[] buffer = mBuffer;
+			int start = mPosition;
+			mPosition += needed;
+			int codePoint;
+			switch (needed) {
+			case 2:
+				codePoint = (lead & 0x1f) << 6 | (buffer[start + 1] & 0x3f);
+				break;
+			case 3:
+				codePoint = (lead & 0x0f) << 12 | (buffer[start + 1] & 0x3f) << 6 | (buffer[start + 2] & 0x3f);
+				break;
+			case 4:
+				codePoint = (lead & 0x07) << 18 | (buffer[start + 1] & 0x3f) << 12 | (buffer[start + 2] & 0x3f) << 6 | (buffer[start + 3] & 0x3f);
+				break;
+			default:
+				return 0xfffd; // Stray continuation byte
+			}
+			for (int i = start + 1; i < start + needed; i++) {
+				if ((buffer[i] & 0xc0) != 0x80) {
+					mPosition = start + 1;
+					return 0xfffd;
+				}
+			}
+			return codePoint <= Character.MAX_CODE_POINT ? codePoint : 0xfffd;
+		}
+
+		/** Keeps the unread bytes and reads more after them. */
+		private boolean fill() throws IOException {
+			int remaining = mLimit - mPosition;
+			System.arraycopy(mBuffer, mPosition, mBuffer, 0, remaining);
+			mPosition = 0;
+			mLimit = remaining;
+			int read = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+			if (read <= 0) {
+				return false;
+			}
+			mLimit += read;
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mBuffer == null) {
+				return;
+			}
+			mPool.giveBytes(mBuffer);
+			mBuffer = null;
+			InputStream in = mIn;
+			mIn = null;
+			mPool.mReader = this;
+			in.close();
+		}
+	}
+
+	/**
+	 * Measures what serializing a write() request and parsing its response
+	 * allocate per call, through the pooled path of OpenERPTransport and
+	 * through plain OutputStreamWriter, InputStreamReader and new writers and
+	 * readers, as the transport did before. The bytes are only shown on JVMs
+	 * which count them per thread.
+	 */
+	public static void main(String[] args) throws IOException, XMLRPCException {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		OpenERPRequestTemplate template = new OpenERPRequestTemplate("execute", "attendances", 1, "admin", "hr.attendance", "write");
+		HashMap<String, Object> values = new HashMap<String, Object>();
+		values.put("action", "sign_out");
+		values.put("name", "2026-10-19 17:30:00");
+		Object[] params = { new Long[] { 7L }, values };
+		ByteArrayInputStream response = new ByteArrayInputStream(
+				"<?xml version='1.0'?>\n<methodResponse>\n<params>\n<param>\n<value><boolean>1</boolean></value>\n</param>\n</params>\n</methodResponse>\n"
+						.getBytes("UTF-8"));
+		for (int pass = 0; pass < 2; pass++) {
+			// The first pass warms up the JIT and the pool
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				callPooled(template, params, response);
+			}
+			long pooledNanos = System.nanoTime() - start;
+			long pooledBytes = allocatedBytes() - allocated;
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				callUnpooled(template, params, response);
+			}
+			long plainNanos = System.nanoTime() - start;
+			long plainBytes = allocatedBytes() - allocated;
+			if (pass == 1) {
+				System.out.println(calls + " calls, per call: pooled " + perCall(pooledBytes, calls) + pooledNanos / calls + " ns, unpooled " + perCall(plainBytes, calls)
+						+ plainNanos / calls + " ns");
+			}
+		}
+	}
+
+	private static void callPooled(OpenERPRequestTemplate template, Object[] params, ByteArrayInputStream response) throws IOException, XMLRPCException {
+		OpenERPBufferPool pool = get();
+		ByteSink body = pool.takeSink();
+		try {
+			OpenERPTransport.writeRequest(pool, body, template, null, params);
+		} finally {
+			body.release();
+		}
+		response.reset();
+		OpenERPTransport.readResponse(pool, response, null, false);
+	}
+
+	private static void callUnpooled(OpenERPRequestTemplate template, Object[] params, ByteArrayInputStream response) throws IOException, XMLRPCException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		Writer writer = new OutputStreamWriter(body, "UTF-8");
+		new OpenERPXmlWriter(writer).writeMethodCall(template.getMethod(), template.allParams(params));
+		writer.close();
+		response.reset();
+		new OpenERPXmlReader(new InputStreamReader(response, "UTF-8"), null).readMethodResponse();
+	}
+
+	private static String perCall(long bytes, int calls) {
+		return bytes >= 0 ? bytes / calls + " bytes, " : "";
+	}
+
+	/** @return Bytes allocated by the thread so far, -1 if unknown. */
+	static long allocatedBytes() {
+		try {
+			Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) method.invoke(bean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
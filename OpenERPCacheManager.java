@@ -0,0 +1,300 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the caches of the connector within one memory budget, for kiosk
+ * devices with little memory. Each Cache is an LRU map whose entries are
+ * weighed with estimateSize(); when the caches together go over the budget,
+ * entries are evicted from the cache with the most bytes per unit of
+ * weight, so caches with a bigger weight (more expensive to rebuild) keep
+ * more of their entries.<br>
+ * Forward the memory pressure signals of the system to trimMemory(), e.g.
+ * from Application.onTrimMemory(level): the caches are shed in stages, from
+ * a quarter of the budget at TRIM_MEMORY_RUNNING_MODERATE to everything at
+ * TRIM_MEMORY_COMPLETE. The levels have the values of ComponentCallbacks2,
+ * but this class does not depend on it.<br>
+ * The caches of the connector use getDefault(): the relations and schemas
+ * of OpenERPconn (weight 4) and the search results of OpenERPLocalStore
+ * (weight 1).
+ */
+public class OpenERPCacheManager {
+
+	public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+	public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+	public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+	public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+	public static final int TRIM_MEMORY_BACKGROUND = 40;
+	public static final int TRIM_MEMORY_MODERATE = 60;
+	public static final int TRIM_MEMORY_COMPLETE = 80;
+
+	private static final long DEFAULT_BUDGET = 2 * 1024 * 1024;
+	private static final int MAX_DEPTH = 8;
+
+	private static OpenERPCacheManager sDefault;
+
+	private long mBudget;
+	private long mSize;
+	private final List<Cache<?, ?>> mCaches = new ArrayList<Cache<?, ?>>();
+	private long mEvictions;
+
+	public OpenERPCacheManager(long budgetBytes) {
+		mBudget = budgetBytes;
+	}
+
+	/** @return The manager of the caches of OpenERPconn, 2MB by default. */
+	public static synchronized OpenERPCacheManager getDefault() {
+		if (sDefault == null) {
+			sDefault = new OpenERPCacheManager(DEFAULT_BUDGET);
+		}
+		return sDefault;
+	}
+
+	/**
+	 * @param weight
+	 *            How much the entries of this cache are worth keeping compared
+	 *            with the other caches, e.g. 1 for records which are cheap to
+	 *            read again and 4 for the schemas.
+	 */
+	public <K, V> Cache<K, V> newCache(String name, int weight) {
+		Cache<K, V> cache = new Cache<K, V>(name, weight);
+		synchronized (this) {
+			mCaches.add(cache);
+		}
+		return cache;
+	}
+
+	public synchronized void setBudget(long budgetBytes) {
+		mBudget = budgetBytes;
+		evict(mBudget);
+	}
+
+	public synchronized long getBudget() {
+		return mBudget;
+	}
+
+	/** @return The estimated size of all the caches. */
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	/** @return The entries evicted to keep within the budget or to trim. */
+	public synchronized long getEvictions() {
+		return mEvictions;
+	}
+
+	/** Sheds the caches according to the memory pressure level. */
+	public synchronized void trimMemory(int level) {
+		long target;
+		if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+			target = 0;
+		} else if (level >= TRIM_MEMORY_MODERATE) {
+			target = mBudget / 4;
+		} else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+			target = mBudget / 2;
+		} else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+			target = mBudget * 3 / 4;
+		} else {
+			return;
+		}
+		evict(target);
+	}
+
+	/** Empties all the caches. */
+	public synchronized void clear() {
+		for (Cache<?, ?> cache : mCaches) {
+			cache.clearLocked();
+		}
+	}
+
+	/** Evicts the least recently used entries until the size is at most target. */
+	private void evict(long target) {
+		while (mSize > target) {
+			Cache<?, ?> victim = null;
+			double worst = -1;
+			for (Cache<?, ?> cache : mCaches) {
+				if (cache.mSize > 0) {
+					double score = (double) cache.mSize / cache.mWeight;
+					if (score > worst) {
+						worst = score;
+						victim = cache;
+					}
+				}
+			}
+			if (victim == null) {
+				break;
+			}
+			victim.evictEldest();
+			mEvictions++;
+		}
+	}
+
+	/**
+	 * @return A rough estimate of the bytes the value takes in memory,
+	 *         including what it references, for the types read from the
+	 *         server: strings, boxed numbers, arrays, maps and collections.
+	 */
+	public static long estimateSize(Object value) {
+		return estimateSize(value, 0);
+	}
+
+	private static long estimateSize(Object value, int depth) {
+		if (value == null || value instanceof Boolean) {
+			return 0; // Shared instances
+		}
+		if (depth > MAX_DEPTH) {
+			return 16;
+		}
+		if (value instanceof String) {
+			return 40 + 2 * ((String) value).length();
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return 16;
+		} else if (value instanceof Number || value instanceof Date) {
+			return 24;
+		} else if (value instanceof byte[]) {
+			return 16 + ((byte[]) value).length;
+		} else if (value instanceof char[]) {
+			return 16 + 2 * ((char[]) value).length;
+		} else if (value instanceof int[]) {
+			return 16 + 4 * ((int[]) value).length;
+		} else if (value instanceof long[]) {
+			return 16 + 8 * ((long[]) value).length;
+		} else if (value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			long size = 16 + 4 * array.length;
+			for (Object item : array) {
+				size += estimateSize(item, depth + 1);
+			}
+			return size;
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			long size = 48 + 4 * map.size() * 2; // The table is kept half empty
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				size += 32 + estimateSize(entry.getKey(), depth + 1) + estimateSize(entry.getValue(), depth + 1);
+			}
+			return size;
+		} else if (value instanceof Collection) {
+			Collection<?> collection = (Collection<?>) value;
+			long size = 40 + 4 * collection.size();
+			for (Object item : collection) {
+				size += estimateSize(item, depth + 1);
+			}
+			return size;
+		}
+		return 32;
+	}
+
+	/**
+	 * An LRU map within the budget of the manager. Null values are allowed,
+	 * use containsKey() to tell them from missing entries.
+	 */
+	public final class Cache<K, V> {
+
+		private final String mName;
+		private final int mWeight;
+		private final LinkedHashMap<K, Entry<V>> mEntries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+		private long mSize;
+
+		private Cache(String name, int weight) {
+			mName = name;
+			mWeight = Math.max(1, weight);
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public V get(K key) {
+			synchronized (OpenERPCacheManager.this) {
+				Entry<V> entry = mEntries.get(key);
+				return entry != null ? entry.mValue : null;
+			}
+		}
+
+		public boolean containsKey(K key) {
+			synchronized (OpenERPCacheManager.this) {
+				return mEntries.get(key) != null; // get() marks it as used
+			}
+		}
+
+		public void put(K key, V value) {
+			long size = 32 + estimateSize(key) + estimateSize(value);
+			synchronized (OpenERPCacheManager.this) {
+				Entry<V> previous = mEntries.put(key, new Entry<V>(value, size));
+				if (previous != null) {
+					resize(-previous.mSize);
+				}
+				resize(size);
+				evict(mBudget);
+			}
+		}
+
+		public V remove(K key) {
+			synchronized (OpenERPCacheManager.this) {
+				Entry<V> entry = mEntries.remove(key);
+				if (entry == null) {
+					return null;
+				}
+				resize(-entry.mSize);
+				return entry.mValue;
+			}
+		}
+
+		public void clear() {
+			synchronized (OpenERPCacheManager.this) {
+				clearLocked();
+			}
+		}
+
+		public int size() {
+			synchronized (OpenERPCacheManager.this) {
+				return mEntries.size();
+			}
+		}
+
+		/** @return The estimated bytes of the entries. */
+		public long getSizeBytes() {
+			synchronized (OpenERPCacheManager.this) {
+				return mSize;
+			}
+		}
+
+		private void clearLocked() {
+			mEntries.clear();
+			resize(-mSize);
+		}
+
+		private void evictEldest() {
+			Iterator<Entry<V>> entries = mEntries.values().iterator();
+			Entry<V> eldest = entries.next();
+			entries.remove();
+			resize(-eldest.mSize);
+		}
+
+		private void resize(long delta) {
+			mSize += delta;
+			OpenERPCacheManager.this.mSize += delta;
+		}
+
+		public String toString() {
+			return mName + ": " + size() + " entries, " + getSizeBytes() + " bytes";
+		}
+	}
+
+	private static class Entry<V> {
+
+		private final V mValue;
+		private final long mSize;
+
+		Entry(V value, long size) {
+			mValue = value;
+			mSize = size;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.openerp.attendances;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Deadline and cancellation for the OpenERPconn calls made by one thread:
+ * <br>
+ * <code>
+ * OpenERPCall call = OpenERPCall.begin(5000); <br>
+ * try { <br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;registers = connection.getRegisters(from, to, employeeId); <br>
+ * } finally { <br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;call.end(); <br>
+ * } <br>
+ * </code> Every request made by the thread between begin() and end() must
+ * finish before the deadline, and cancel() can be called from any other
+ * thread (e.g. when the user leaves the screen). Either way the HTTP
+ * exchange in progress is aborted and its socket closed right away; the
+ * method then fails as it does for any other error, returning null or false.
+ * <br>
+ * Calls made outside of begin()/end() still get the default deadlines
+ * configured in OpenERPconn.
+ */
+public class OpenERPCall {
+
+	private static final ThreadLocal<OpenERPCall> CURRENT = new ThreadLocal<OpenERPCall>();
+
+	private final long mDeadline;
+	private final OpenERPCall mPrevious;
+	private volatile boolean mCancelled;
+	private HttpURLConnection mConnection;
+	private OpenERPLimiter mLimiter;
+
+	private OpenERPCall(long deadline, OpenERPCall previous) {
+		mDeadline = deadline;
+		mPrevious = previous;
+	}
+
+	/**
+	 * Starts a call scope for the current thread. Scopes can be nested, the
+	 * inner one can not extend the deadline of the outer one.
+	 *
+	 * @param timeoutMillis
+	 *            Time allowed for all the requests, 0 for no deadline.
+	 */
+	public static OpenERPCall begin(long timeoutMillis) {
+		OpenERPCall previous = CURRENT.get();
+		long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+		if (previous != null) {
+			deadline = earliest(deadline, previous.mDeadline);
+		}
+		OpenERPCall call = new OpenERPCall(deadline, previous);
+		CURRENT.set(call);
+		return call;
+	}
+
+	/** Ends the scope, call it in a finally block. */
+	public void end() {
+		if (CURRENT.get() == this) {
+			if (mPrevious != null) {
+				CURRENT.set(mPrevious);
+			} else {
+				CURRENT.remove();
+			}
+		}
+	}
+
+	/** @return The scope of the current thread, or null. */
+	public static OpenERPCall current() {
+		return CURRENT.get();
+	}
+
+	/** Aborts the request in progress, and fails the next ones right away. */
+	public void cancel() {
+		HttpURLConnection connection;
+		OpenERPLimiter limiter;
+		synchronized (this) {
+			mCancelled = true;
+			connection = mConnection;
+			limiter = mLimiter;
+		}
+		if (connection != null) {
+			connection.disconnect();
+		}
+		if (limiter != null) {
+			limiter.wakeUp();
+		}
+	}
+
+	public boolean isCancelled() {
+		return mCancelled || (mPrevious != null && mPrevious.isCancelled());
+	}
+
+	/** @return Absolute deadline in milliseconds, 0 if none. */
+	public long getDeadline() {
+		return mDeadline;
+	}
+
+	/** @return Earliest of two absolute deadlines, where 0 means none. */
+	static long earliest(long deadline, long other) {
+		if (deadline == 0) {
+			return other;
+		}
+		return other == 0 ? deadline : Math.min(deadline, other);
+	}
+
+	/**
+	 * Registers the connection in progress so cancel() can abort it.
+	 *
+	 * @return False if the call was cancelled meanwhile.
+	 */
+	boolean attach(HttpURLConnection connection) {
+		synchronized (this) {
+			mConnection = connection;
+		}
+		if (mPrevious != null && !mPrevious.attach(connection)) {
+			return false;
+		}
+		return !mCancelled;
+	}
+
+	/**
+	 * Registers the limiter the call is queued in, so cancel() can wake it
+	 * up; null when it is no longer queued.
+	 *
+	 * @return False if the call was cancelled meanwhile.
+	 */
+	boolean waitOn(OpenERPLimiter limiter) {
+		synchronized (this) {
+			mLimiter = limiter;
+		}
+		if (mPrevious != null && !mPrevious.waitOn(limiter)) {
+			return false;
+		}
+		return !mCancelled;
+	}
+
+	void detach() {
+		synchronized (this) {
+			mConnection = null;
+		}
+		if (mPrevious != null) {
+			mPrevious.detach();
+		}
+	}
+}
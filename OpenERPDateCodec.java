@@ -0,0 +1,309 @@
+package com.openerp.attendances;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Date and time conversions of the connector without SimpleDateFormat:
+ * dates are parsed straight from the characters into milliseconds since the
+ * epoch and formatted into a char array, so converting thousands of
+ * registers creates no formatter, Calendar or intermediate String.<br>
+ * Parsing accepts the dateTime.iso8601 values of XML-RPC (yyyyMMddTHH:mm:ss)
+ * and the strings of OpenERP (yyyy-MM-dd HH:mm:ss, or yyyy-MM-dd for date
+ * fields), with or without the separators and with an optional fraction of
+ * second, which is ignored. OpenERP keeps datetime fields as UTC strings,
+ * while XML-RPC dateTime values carry no zone and are taken as local time,
+ * as SimpleDateFormat did; hence the utc argument.<br>
+ * The local time zone is the default one when the class was loaded; call
+ * setTimeZone() if it changes, e.g. on ACTION_TIMEZONE_CHANGED. For any other
+ * pattern getFormat() gives a formatter cached per thread.<br>
+ * Run main() to compare it with SimpleDateFormat.
+ */
+public final class OpenERPDateCodec {
+
+	/** Length of yyyy-MM-dd HH:mm:ss */
+	public static final int SERVER_DATETIME_LENGTH = 19;
+	/** Length of yyyyMMddTHH:mm:ss */
+	public static final int ISO8601_LENGTH = 17;
+
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+	private static volatile TimeZone sTimeZone = TimeZone.getDefault();
+
+	private static final ThreadLocal<HashMap<String, SimpleDateFormat>> FORMATS = new ThreadLocal<HashMap<String, SimpleDateFormat>>() {
+		@Override
+		protected HashMap<String, SimpleDateFormat> initialValue() {
+			return new HashMap<String, SimpleDateFormat>();
+		}
+	};
+
+	private OpenERPDateCodec() {
+	}
+
+	/** Sets the zone of the local times, the default one at start. */
+	public static void setTimeZone(TimeZone timeZone) {
+		sTimeZone = (TimeZone) timeZone.clone();
+	}
+
+	/**
+	 * @return A formatter of the pattern in the local time zone, with the US
+	 *         locale, reused by the calls from the same thread. Do not keep it
+	 *         or share it with other threads.
+	 */
+	public static DateFormat getFormat(String pattern) {
+		HashMap<String, SimpleDateFormat> formats = FORMATS.get();
+		SimpleDateFormat format = formats.get(pattern);
+		if (format == null) {
+			format = new SimpleDateFormat(pattern, Locale.US);
+			formats.put(pattern, format);
+		}
+		format.setTimeZone(sTimeZone);
+		return format;
+	}
+
+	/** Parses an OpenERP datetime or date string, which is in UTC. */
+	public static long parseServer(CharSequence text) {
+		return parse(text, 0, text.length(), true);
+	}
+
+	/**
+	 * Parses the characters from start to end, surrounding whitespace
+	 * included.
+	 *
+	 * @param utc
+	 *            False to take the time as local time.
+	 * @return Milliseconds since the epoch.
+	 * @throws NumberFormatException
+	 *             If it is not a date or datetime.
+	 */
+	public static long parse(CharSequence text, int start, int end, boolean utc) {
+		while (start < end && text.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && text.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		int i = start;
+		int year = digits(text, i, 4, end);
+		i += 4;
+		i = skip(text, i, end, '-');
+		int month = digits(text, i, 2, end);
+		i += 2;
+		i = skip(text, i, end, '-');
+		int day = digits(text, i, 2, end);
+		i += 2;
+		int hour = 0;
+		int minute = 0;
+		int second = 0;
+		if (i < end) {
+			char separator = text.charAt(i);
+			if (separator != 'T' && separator != ' ') {
+				throw invalid(text);
+			}
+			i++;
+			hour = digits(text, i, 2, end);
+			i += 2;
+			i = skip(text, i, end, ':');
+			minute = digits(text, i, 2, end);
+			i += 2;
+			i = skip(text, i, end, ':');
+			second = digits(text, i, 2, end);
+			i += 2;
+			if (i < end && text.charAt(i) == '.') {
+				i++;
+				while (i < end && Character.isDigit(text.charAt(i))) {
+					i++;
+				}
+			}
+			if (i < end && text.charAt(i) == 'Z' && i + 1 == end) {
+				i++;
+				utc = true;
+			}
+		}
+		if (i != end || month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+			throw invalid(text);
+		}
+		long millis = daysFromCivil(year, month, day) * MILLIS_PER_DAY + ((hour * 60L + minute) * 60 + second) * 1000;
+		return utc ? millis : toUtc(millis);
+	}
+
+	/** Writes yyyy-MM-dd HH:mm:ss, SERVER_DATETIME_LENGTH chars. */
+	public static void formatServer(long millis, boolean utc, char[] out, int offset) {
+		format(millis, utc, out, offset, true);
+	}
+
+	/** @return yyyy-MM-dd HH:mm:ss, e.g. to write a datetime field. */
+	public static String formatServer(long millis, boolean utc) {
+		char[] out = new char[SERVER_DATETIME_LENGTH];
+		format(millis, utc, out, 0, true);
+		return new String(out);
+	}
+
+	/** Writes the local time as yyyyMMddTHH:mm:ss, ISO8601_LENGTH chars. */
+	public static void formatIso8601(long millis, char[] out, int offset) {
+		format(millis, false, out, offset, false);
+	}
+
+	private static void format(long millis, boolean utc, char[] out, int offset, boolean server) {
+		if (!utc) {
+			millis += sTimeZone.getOffset(millis);
+		}
+		long days = millis / MILLIS_PER_DAY;
+		if (millis % MILLIS_PER_DAY < 0) {
+			days--; // Before 1970
+		}
+		int secondOfDay = (int) ((millis - days * MILLIS_PER_DAY) / 1000);
+		// Civil date of the day, see daysFromCivil()
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		int dayOfEra = (int) (z - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int shiftedMonth = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+		int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+		int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+		int i = offset;
+		i = put(out, i, year, 4);
+		if (server) {
+			out[i++] = '-';
+		}
+		i = put(out, i, month, 2);
+		if (server) {
+			out[i++] = '-';
+		}
+		i = put(out, i, day, 2);
+		out[i++] = server ? ' ' : 'T';
+		i = put(out, i, secondOfDay / 3600, 2);
+		out[i++] = ':';
+		i = put(out, i, secondOfDay / 60 % 60, 2);
+		out[i++] = ':';
+		put(out, i, secondOfDay % 60, 2);
+	}
+
+	/** Days from 1970-01-01 in the proleptic Gregorian calendar. */
+	static long daysFromCivil(int year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = (year >= 0 ? year : year - 399) / 400;
+		int yearOfEra = (int) (year - era * 400);
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/** The offset is the one in force at that instant, also around DST changes */
+	private static long toUtc(long localMillis) {
+		TimeZone timeZone = sTimeZone;
+		int offset = timeZone.getOffset(localMillis - timeZone.getRawOffset());
+		int actual = timeZone.getOffset(localMillis - offset);
+		return localMillis - actual;
+	}
+
+	private static int digits(CharSequence text, int start, int count, int end) {
+		if (start + count > end) {
+			throw invalid(text);
+		}
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw invalid(text);
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static int skip(CharSequence text, int i, int end, char separator) {
+		return i < end && text.charAt(i) == separator ? i + 1 : i;
+	}
+
+	private static int put(char[] out, int i, int value, int width) {
+		for (int j = i + width - 1; j >= i; j--) {
+			out[j] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return i + width;
+	}
+
+	private static NumberFormatException invalid(CharSequence text) {
+		return new NumberFormatException("Invalid date: " + text.toString().trim());
+	}
+
+	/**
+	 * Parses and formats random dateTime values with the codec and with
+	 * SimpleDateFormat, as the reader and writer did before, checking that
+	 * both agree. Prints the time and the bytes allocated per value; the
+	 * bytes are only shown on JVMs which count them per thread. Past 2037
+	 * TimeZone itself allocates to find the offset in zones with daylight
+	 * saving time, hence the years used.
+	 */
+	public static void main(String[] args) throws ParseException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		String pattern = "yyyyMMdd'T'HH:mm:ss";
+		Random random = new Random(1);
+		String[] texts = new String[count];
+		char[] buffer = new char[ISO8601_LENGTH];
+		for (int i = 0; i < count; i++) {
+			// 2000 to 2030, whole seconds
+			formatIso8601(946684800000L + (random.nextLong() & Long.MAX_VALUE) % 946080000L * 1000, buffer, 0);
+			texts[i] = new String(buffer);
+		}
+		long[] millis = new long[count];
+		for (int pass = 0; pass < 2; pass++) {
+			// The first pass warms up the JIT
+			long allocated = OpenERPBufferPool.allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				millis[i] = parse(texts[i], 0, ISO8601_LENGTH, false);
+			}
+			long codecParseNanos = System.nanoTime() - start;
+			long codecParseBytes = OpenERPBufferPool.allocatedBytes() - allocated;
+			allocated = OpenERPBufferPool.allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				formatIso8601(millis[i], buffer, 0);
+			}
+			long codecFormatNanos = System.nanoTime() - start;
+			long codecFormatBytes = OpenERPBufferPool.allocatedBytes() - allocated;
+
+			DateFormat format = getFormat(pattern);
+			int mismatches = 0;
+			allocated = OpenERPBufferPool.allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				if (format.parse(texts[i]).getTime() != millis[i]) {
+					mismatches++;
+				}
+			}
+			long formatParseNanos = System.nanoTime() - start;
+			long formatParseBytes = OpenERPBufferPool.allocatedBytes() - allocated;
+			allocated = OpenERPBufferPool.allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				if (!format.format(new Date(millis[i])).equals(texts[i])) {
+					mismatches++;
+				}
+			}
+			long formatFormatNanos = System.nanoTime() - start;
+			long formatFormatBytes = OpenERPBufferPool.allocatedBytes() - allocated;
+			if (pass == 1) {
+				System.out.println(count + " values, " + mismatches + " mismatches, per value:");
+				System.out.println("parse: codec " + perValue(codecParseBytes, count) + codecParseNanos / count + " ns, SimpleDateFormat " + perValue(formatParseBytes, count)
+						+ formatParseNanos / count + " ns");
+				System.out.println("format: codec " + perValue(codecFormatBytes, count) + codecFormatNanos / count + " ns, SimpleDateFormat " + perValue(formatFormatBytes, count)
+						+ formatFormatNanos / count + " ns");
+			}
+		}
+	}
+
+	private static String perValue(long bytes, int count) {
+		return bytes >= 0 ? bytes / count + " bytes, " : "";
+	}
+}
@@ -0,0 +1,431 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * A search domain, as given to OpenERPconn.search(), compiled to a tree of
+ * predicates which can be evaluated against records read from the server,
+ * so repeated filters over cached or mirrored records (see
+ * OpenERPLocalStore) need no round trip.<br>
+ * Domains are in prefix notation: "&", "|" and "!" apply to the terms which
+ * follow them, terms are [field, operator, value] and consecutive terms are
+ * joined with "&", as on the server. Supported operators are =, !=, <>, <,
+ * <=, >, >=, in, not in, like, not like, ilike, not ilike, =like and =ilike.
+ * <br>
+ * getKey() is a canonical form of the domain: nested "&" and "|" are
+ * flattened, their operands sorted and the values of "in" sorted, so
+ * equivalent domains written in a different order have the same key, which
+ * makes it a stable cache key.
+ */
+public class OpenERPDomain {
+
+	private static final List<String> OPERATORS = Arrays.asList("=", "!=", "<", "<=", ">", ">=", "in", "not in", "like", "not like", "ilike", "not ilike", "=like", "=ilike");
+
+	private final Node mRoot;
+	private final String mKey;
+
+	private OpenERPDomain(Node root) {
+		mRoot = root;
+		StringBuilder key = new StringBuilder();
+		root.appendKey(key);
+		mKey = key.toString();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             If the domain is malformed or uses an unsupported operator.
+	 */
+	public static OpenERPDomain compile(Object[] conditions) {
+		if (conditions == null || conditions.length == 0) {
+			return new OpenERPDomain(new Junction(true, new ArrayList<Node>()));
+		}
+		int[] position = { 0 };
+		List<Node> terms = new ArrayList<Node>();
+		while (position[0] < conditions.length) {
+			terms.add(parse(conditions, position));
+		}
+		return new OpenERPDomain(terms.size() == 1 ? terms.get(0) : Junction.of(true, terms));
+	}
+
+	private static Node parse(Object[] conditions, int[] position) {
+		if (position[0] >= conditions.length) {
+			throw new IllegalArgumentException("Missing operand in domain " + Arrays.deepToString(conditions));
+		}
+		Object item = conditions[position[0]++];
+		if ("&".equals(item) || "|".equals(item)) {
+			Node left = parse(conditions, position);
+			Node right = parse(conditions, position);
+			return Junction.of("&".equals(item), Arrays.asList(left, right));
+		}
+		if ("!".equals(item)) {
+			return new Not(parse(conditions, position));
+		}
+		Object[] term = item instanceof Collection ? ((Collection<?>) item).toArray() : item instanceof Object[] ? (Object[]) item : null;
+		if (term == null || term.length != 3 || !(term[0] instanceof String) || !(term[1] instanceof String)) {
+			throw new IllegalArgumentException("Bad term " + (item instanceof Object[] ? Arrays.deepToString((Object[]) item) : item));
+		}
+		String operator = ((String) term[1]).toLowerCase(Locale.US);
+		if ("<>".equals(operator)) {
+			operator = "!=";
+		}
+		if (!OPERATORS.contains(operator)) {
+			throw new IllegalArgumentException("Unsupported operator " + term[1]);
+		}
+		return new Term((String) term[0], operator, term[2]);
+	}
+
+	/** @return The canonical form of the domain. */
+	public String getKey() {
+		return mKey;
+	}
+
+	/** @return True if the record, as returned by read(), matches. */
+	public boolean matches(Map<String, ?> record) {
+		return mRoot.matches(record);
+	}
+
+	Node getRoot() {
+		return mRoot;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof OpenERPDomain && mKey.equals(((OpenERPDomain) o).mKey);
+	}
+
+	@Override
+	public int hashCode() {
+		return mKey.hashCode();
+	}
+
+	public String toString() {
+		return mKey;
+	}
+
+	/**
+	 * @return The value as it is compared: the id of many2one values, Double
+	 *         for numbers and null for false, so 3, 3L, [3, "Name"] and 3.0
+	 *         are the same.
+	 */
+	static Object normalize(Object value) {
+		if (value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			if (isMany2one(array)) {
+				return normalize(array[0]);
+			}
+		}
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		if (Boolean.FALSE.equals(value)) {
+			return null;
+		}
+		return value;
+	}
+
+	/** Many2one values are [id, name], the rest of arrays are x2many ids. */
+	static boolean isMany2one(Object[] array) {
+		return array.length == 2 && array[0] instanceof Number && array[1] instanceof String;
+	}
+
+	/** @return The values of x2many fields, the value itself otherwise. */
+	static Object[] values(Object value) {
+		if (value instanceof Object[] && !isMany2one((Object[]) value)) {
+			return (Object[]) value;
+		}
+		return new Object[] { value };
+	}
+
+	static Object[] operands(Object value) {
+		if (value instanceof Collection) {
+			return ((Collection<?>) value).toArray();
+		}
+		if (value instanceof int[]) {
+			int[] ints = (int[]) value;
+			Object[] operands = new Object[ints.length];
+			for (int i = 0; i < ints.length; i++) {
+				operands[i] = ints[i];
+			}
+			return operands;
+		}
+		if (value instanceof long[]) {
+			long[] longs = (long[]) value;
+			Object[] operands = new Object[longs.length];
+			for (int i = 0; i < longs.length; i++) {
+				operands[i] = longs[i];
+			}
+			return operands;
+		}
+		return value instanceof Object[] ? (Object[]) value : new Object[] { value };
+	}
+
+	/** @return The order of a and b, null if they can not be compared. */
+	static Integer compare(Object a, Object b) {
+		if (a instanceof Double && b instanceof Double) {
+			return ((Double) a).compareTo((Double) b);
+		}
+		if (a instanceof String && b instanceof String) {
+			return ((String) a).compareTo((String) b);
+		}
+		return null;
+	}
+
+	private static void appendValue(StringBuilder key, Object value) {
+		Object normalized = normalize(value);
+		if (normalized == null) {
+			key.append("False");
+		} else if (normalized instanceof Double) {
+			double number = (Double) normalized;
+			if (number == Math.rint(number) && !Double.isInfinite(number)) {
+				key.append((long) number);
+			} else {
+				key.append(number);
+			}
+		} else if (normalized instanceof String) {
+			key.append('\'').append(((String) normalized).replace("\\", "\\\\").replace("'", "\\'")).append('\'');
+		} else if (normalized instanceof Boolean) {
+			key.append("True");
+		} else {
+			key.append(normalized);
+		}
+	}
+
+	abstract static class Node {
+
+		abstract boolean matches(Map<String, ?> record);
+
+		abstract void appendKey(StringBuilder key);
+
+		String key() {
+			StringBuilder key = new StringBuilder();
+			appendKey(key);
+			return key.toString();
+		}
+	}
+
+	/** "&" (or "|") of any number of operands, the empty "&" is true. */
+	static class Junction extends Node {
+
+		final boolean mAnd;
+		final List<Node> mOperands;
+
+		private Junction(boolean and, List<Node> operands) {
+			mAnd = and;
+			mOperands = operands;
+		}
+
+		/** Flattens the nested junctions of the same kind. */
+		static Node of(boolean and, List<Node> operands) {
+			List<Node> flat = new ArrayList<Node>();
+			for (Node operand : operands) {
+				if (operand instanceof Junction && ((Junction) operand).mAnd == and) {
+					flat.addAll(((Junction) operand).mOperands);
+				} else {
+					flat.add(operand);
+				}
+			}
+			return new Junction(and, flat);
+		}
+
+		@Override
+		boolean matches(Map<String, ?> record) {
+			for (Node operand : mOperands) {
+				if (operand.matches(record) != mAnd) {
+					return !mAnd;
+				}
+			}
+			return mAnd;
+		}
+
+		@Override
+		void appendKey(StringBuilder key) {
+			List<String> keys = new ArrayList<String>(mOperands.size());
+			for (Node operand : mOperands) {
+				keys.add(operand.key());
+			}
+			Collections.sort(keys);
+			key.append(mAnd ? "&(" : "|(");
+			for (int i = 0; i < keys.size(); i++) {
+				if (i > 0) {
+					key.append(',');
+				}
+				key.append(keys.get(i));
+			}
+			key.append(')');
+		}
+	}
+
+	static class Not extends Node {
+
+		final Node mOperand;
+
+		Not(Node operand) {
+			mOperand = operand;
+		}
+
+		@Override
+		boolean matches(Map<String, ?> record) {
+			return !mOperand.matches(record);
+		}
+
+		@Override
+		void appendKey(StringBuilder key) {
+			key.append("!(");
+			mOperand.appendKey(key);
+			key.append(')');
+		}
+	}
+
+	static class Term extends Node {
+
+		final String mField;
+		final String mOperator;
+		/** Normalized value, or values for in and not in */
+		final Object mValue;
+		final Object[] mValues;
+		private final Pattern mPattern;
+
+		Term(String field, String operator, Object value) {
+			mField = field;
+			mOperator = operator;
+			if (operator.equals("in") || operator.equals("not in")) {
+				Object[] operands = operands(value);
+				mValues = new Object[operands.length];
+				for (int i = 0; i < operands.length; i++) {
+					mValues[i] = normalize(operands[i]);
+				}
+				mValue = null;
+			} else {
+				mValues = null;
+				mValue = normalize(value);
+			}
+			mPattern = operator.contains("like") ? Pattern.compile(toRegex(mValue != null ? String.valueOf(mValue) : "", operator)) : null;
+		}
+
+		/** like is '%value%' in SQL, =like takes the SQL pattern as is */
+		private static String toRegex(String value, String operator) {
+			StringBuilder regex = new StringBuilder();
+			if (operator.contains("ilike")) {
+				regex.append("(?is)");
+			} else {
+				regex.append("(?s)");
+			}
+			boolean raw = operator.startsWith("=");
+			if (!raw) {
+				regex.append(".*");
+			}
+			StringBuilder literal = new StringBuilder();
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (raw && (c == '%' || c == '_')) {
+					if (literal.length() > 0) {
+						regex.append(Pattern.quote(literal.toString()));
+						literal.setLength(0);
+					}
+					regex.append(c == '%' ? ".*" : ".");
+				} else {
+					literal.append(c);
+				}
+			}
+			if (literal.length() > 0) {
+				regex.append(Pattern.quote(literal.toString()));
+			}
+			if (!raw) {
+				regex.append(".*");
+			}
+			return regex.toString();
+		}
+
+		boolean isNegative() {
+			return mOperator.equals("!=") || mOperator.startsWith("not ");
+		}
+
+		@Override
+		boolean matches(Map<String, ?> record) {
+			Object value = record.get(mField);
+			boolean any = false;
+			if (mPattern != null) {
+				// On many2one fields like compares the name
+				Object text = value instanceof Object[] && isMany2one((Object[]) value) ? ((Object[]) value)[1] : value;
+				any = text != null && !Boolean.FALSE.equals(text) && mPattern.matcher(String.valueOf(text)).matches();
+			} else {
+				Object[] values = values(value);
+				if (values.length == 0) {
+					values = new Object[] { null };
+				}
+				// Negative operators hold when no value matches the positive one
+				for (Object item : values) {
+					if (matchesPositive(normalize(item))) {
+						any = true;
+						break;
+					}
+				}
+			}
+			return isNegative() ? !any : any;
+		}
+
+		private boolean matchesPositive(Object value) {
+			if (mOperator.equals("=") || mOperator.equals("!=")) {
+				return equal(value, mValue);
+			}
+			if (mValues != null) {
+				for (Object candidate : mValues) {
+					if (equal(value, candidate)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			Integer order = compare(value, mValue);
+			if (order == null) {
+				return false;
+			}
+			if (mOperator.equals("<")) {
+				return order < 0;
+			} else if (mOperator.equals("<=")) {
+				return order <= 0;
+			} else if (mOperator.equals(">")) {
+				return order > 0;
+			}
+			return order >= 0;
+		}
+
+		private static boolean equal(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+
+		@Override
+		void appendKey(StringBuilder key) {
+			key.append('(').append(mField).append(',').append(mOperator).append(',');
+			if (mValues != null) {
+				TreeSet<String> values = new TreeSet<String>();
+				for (Object value : mValues) {
+					StringBuilder valueKey = new StringBuilder();
+					appendValue(valueKey, value);
+					values.add(valueKey.toString());
+				}
+				key.append('[');
+				boolean first = true;
+				for (String value : values) {
+					if (!first) {
+						key.append(',');
+					}
+					key.append(value);
+					first = false;
+				}
+				key.append(']');
+			} else {
+				appendValue(key, mValue);
+			}
+			key.append(')');
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package com.openerp.attendances;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFault;
+
+import android.util.Log;
+
+/**
+ * Routes the read-only calls of a connection among the primary server and
+ * its read replicas, while every other call stays on the primary. Each
+ * endpoint keeps an exponentially weighted moving average (EWMA) of its
+ * latency, and a read goes to the endpoint with the lowest average times
+ * its calls in flight, so a slow or busy replica gets less traffic. An
+ * endpoint without samples yet is tried first.<br>
+ * After maxFailures transport errors in a row an endpoint is ejected; when
+ * its ejection time is over, a health check (version of the common service)
+ * readmits it or ejects it again for twice as long, up to maxEjectMillis.
+ * startHealthChecks() also checks all the endpoints periodically, which keeps
+ * the averages of idle endpoints fresh. A read which fails at the transport
+ * level on a replica is sent again to the primary. Faults are answers of
+ * the server and count as successes.<br>
+ * The replicas lag behind the primary, so after a write the reads of the
+ * connection stay on the primary for pinAfterWriteMillis (2 s by default).
+ * Get it with OpenERPconn.addReplica().
+ */
+public class OpenERPEndpoints {
+
+	private static final double DEFAULT_DECAY = 0.3;
+	private static final int DEFAULT_MAX_FAILURES = 3;
+	private static final long DEFAULT_EJECT_MILLIS = 5 * 1000;
+	private static final long DEFAULT_MAX_EJECT_MILLIS = 5 * 60 * 1000;
+	private static final long DEFAULT_PIN_AFTER_WRITE_MILLIS = 2 * 1000;
+
+	private static ScheduledExecutorService sChecker;
+
+	private final Endpoint mPrimary;
+	private final List<Endpoint> mEndpoints = new ArrayList<Endpoint>();
+	private final Set<String> mReadOnlyMethods = new HashSet<String>(Arrays.asList("search", "read", "search_count", "search_read", "name_get", "name_search",
+			"fields_get", "read_group", "default_get", "getRegistersbyDate", "getLastRegisterToday", "getRangeDates_today", "getRangeDates_yesterday",
+			"getRangeDates_this_week", "getRangeDates_this_month", "module_installed"));
+	private double mDecay = DEFAULT_DECAY;
+	private int mMaxFailures = DEFAULT_MAX_FAILURES;
+	private long mEjectMillis = DEFAULT_EJECT_MILLIS;
+	private long mMaxEjectMillis = DEFAULT_MAX_EJECT_MILLIS;
+	private long mPinAfterWriteMillis = DEFAULT_PIN_AFTER_WRITE_MILLIS;
+	private long mLastWrite;
+	private ScheduledFuture<?> mHealthChecks;
+
+	OpenERPEndpoints(OpenERPTransport primary) {
+		mPrimary = new Endpoint(primary, true);
+		mEndpoints.add(mPrimary);
+	}
+
+	/** Adds a replica of the database, served on its own host or port. */
+	public Endpoint addReplica(String server, int port) throws MalformedURLException {
+		OpenERPTransport transport = new OpenERPTransport(new URL("http", server, port, "/xmlrpc/object"));
+		transport.setTracer(mPrimary.mTransport.getTracer());
+		transport.setCompression(mPrimary.mTransport.isCompressingRequests(), mPrimary.mTransport.mCompressionThreshold);
+		transport.setDatesAsMillis(mPrimary.mTransport.isDatesAsMillis());
+		Endpoint endpoint = new Endpoint(transport, false);
+		synchronized (this) {
+			mEndpoints.add(endpoint);
+		}
+		return endpoint;
+	}
+
+	public synchronized void removeReplica(Endpoint endpoint) {
+		if (endpoint != mPrimary) {
+			mEndpoints.remove(endpoint);
+		}
+	}
+
+	/** @return The primary first, then the replicas. */
+	public synchronized List<Endpoint> getEndpoints() {
+		return new ArrayList<Endpoint>(mEndpoints);
+	}
+
+	/** Marks an OpenERP method as safe, or not, to be sent to the replicas. */
+	public synchronized void setReadOnly(String method, boolean readOnly) {
+		if (readOnly) {
+			mReadOnlyMethods.add(method);
+		} else {
+			mReadOnlyMethods.remove(method);
+		}
+	}
+
+	public synchronized boolean isReadOnly(String method) {
+		return mReadOnlyMethods.contains(method);
+	}
+
+	/**
+	 * @param decay
+	 *            Weight of the last sample in the average latency, from 0 to 1.
+	 */
+	public synchronized void setDecay(double decay) {
+		mDecay = decay;
+	}
+
+	/** Ejects an endpoint after this many transport errors in a row. */
+	public synchronized void setEjection(int maxFailures, long ejectMillis, long maxEjectMillis) {
+		mMaxFailures = maxFailures;
+		mEjectMillis = ejectMillis;
+		mMaxEjectMillis = maxEjectMillis;
+	}
+
+	/** Time the reads stay on the primary after a write, 0 to never pin. */
+	public synchronized void setPinAfterWriteMillis(long millis) {
+		mPinAfterWriteMillis = millis;
+	}
+
+	void setTracer(OpenERPTracer tracer) {
+		for (Endpoint endpoint : getEndpoints()) {
+			endpoint.mTransport.setTracer(tracer);
+		}
+	}
+
+	void setCompression(boolean compressRequests, int thresholdBytes) {
+		for (Endpoint endpoint : getEndpoints()) {
+			endpoint.mTransport.setCompression(compressRequests, thresholdBytes);
+		}
+	}
+
+	void setDatesAsMillis(boolean datesAsMillis) {
+		for (Endpoint endpoint : getEndpoints()) {
+			endpoint.mTransport.setDatesAsMillis(datesAsMillis);
+		}
+	}
+
+	/** Sends the call to the endpoint chosen for its method. */
+	Object invoke(OpenERPCall scope, long deadline, OpenERPBinary.Sink sink, OpenERPRequestTemplate template, String method, Object[] params) throws XMLRPCException {
+		Endpoint endpoint = select(method);
+		try {
+			return invoke(endpoint, scope, deadline, sink, template, params);
+		} catch (XMLRPCException e) {
+			// A sink may have been partly written already
+			if (endpoint == mPrimary || e instanceof XMLRPCFault || sink != null || (scope != null && scope.isCancelled())) {
+				throw e;
+			}
+			Log.d(OpenERPconn.CONNECTOR_NAME, endpoint + ": " + e.toString());
+			return invoke(mPrimary, scope, deadline, sink, template, params);
+		}
+	}
+
+	private Object invoke(Endpoint endpoint, OpenERPCall scope, long deadline, OpenERPBinary.Sink sink, OpenERPRequestTemplate template, Object[] params) throws XMLRPCException {
+		synchronized (this) {
+			endpoint.mInFlight++;
+		}
+		long start = System.currentTimeMillis();
+		boolean failed = true;
+		try {
+			Object result = endpoint.mTransport.invoke(scope, deadline, sink, template, params);
+			failed = false;
+			synchronized (this) {
+				endpoint.mEjectMillis = 0; // Serving again, the next ejection starts short
+			}
+			return result;
+		} catch (XMLRPCFault e) {
+			failed = false;
+			throw e;
+		} finally {
+			synchronized (this) {
+				endpoint.mInFlight--;
+			}
+			if (!(failed && scope != null && scope.isCancelled())) {
+				record(endpoint, System.currentTimeMillis() - start, failed);
+			}
+		}
+	}
+
+	private synchronized Endpoint select(String method) {
+		long now = System.currentTimeMillis();
+		if (!mReadOnlyMethods.contains(method)) {
+			mLastWrite = now;
+			return mPrimary;
+		}
+		if (mEndpoints.size() == 1 || now - mLastWrite < mPinAfterWriteMillis) {
+			return mPrimary;
+		}
+		Endpoint best = null;
+		double bestScore = Double.MAX_VALUE;
+		for (Endpoint endpoint : mEndpoints) {
+			if (endpoint.mEjectedUntil != 0) {
+				if (now >= endpoint.mEjectedUntil && !endpoint.mChecking) {
+					check(endpoint);
+				}
+				continue;
+			}
+			double score = endpoint.mSamples == 0 ? -1 : endpoint.mAverageMillis * (1 + endpoint.mInFlight);
+			if (score < bestScore) {
+				bestScore = score;
+				best = endpoint;
+			}
+		}
+		return best != null ? best : mPrimary;
+	}
+
+	private synchronized void record(Endpoint endpoint, long millis, boolean failed) {
+		if (!failed) {
+			endpoint.mAverageMillis = endpoint.mSamples == 0 ? millis : mDecay * millis + (1 - mDecay) * endpoint.mAverageMillis;
+			endpoint.mSamples++;
+			endpoint.mFailures = 0;
+			return;
+		}
+		endpoint.mFailures++;
+		endpoint.mTotalFailures++;
+		if (endpoint.mFailures >= mMaxFailures && endpoint.mEjectedUntil == 0) {
+			eject(endpoint);
+		}
+	}
+
+	/** Ejects for twice as long as the last time, unless it served calls since. */
+	private void eject(Endpoint endpoint) {
+		endpoint.mEjectMillis = endpoint.mEjectMillis == 0 ? mEjectMillis : Math.min(endpoint.mEjectMillis * 2, mMaxEjectMillis);
+		endpoint.mEjectedUntil = System.currentTimeMillis() + endpoint.mEjectMillis;
+		endpoint.mEjections++;
+		Log.d(OpenERPconn.CONNECTOR_NAME, "Ejected " + endpoint + " for " + endpoint.mEjectMillis + " ms");
+	}
+
+	/** Runs the health check of the endpoint in the background. */
+	private void check(final Endpoint endpoint) {
+		endpoint.mChecking = true;
+		getChecker().execute(new Runnable() {
+			public void run() {
+				healthCheck(endpoint);
+			}
+		});
+	}
+
+	private void healthCheck(Endpoint endpoint) {
+		long start = System.currentTimeMillis();
+		boolean healthy = false;
+		try {
+			URL object = endpoint.mTransport.getUrl();
+			OpenERPconn.callService(new URL(object.getProtocol(), object.getHost(), object.getPort(), "/xmlrpc/common"), "version");
+			healthy = true;
+		} catch (XMLRPCFault e) {
+			healthy = true; // It answered
+		} catch (XMLRPCException e) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, endpoint + ": " + e.toString());
+		} catch (MalformedURLException e) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+		}
+		long millis = System.currentTimeMillis() - start;
+		synchronized (this) {
+			endpoint.mChecking = false;
+			if (healthy) {
+				if (endpoint.mEjectedUntil != 0) {
+					Log.d(OpenERPconn.CONNECTOR_NAME, "Readmitted " + endpoint);
+				}
+				endpoint.mEjectedUntil = 0;
+				endpoint.mFailures = 0;
+				record(endpoint, millis, false);
+			} else if (endpoint.mEjectedUntil != 0) {
+				endpoint.mEjectedUntil = 0;
+				eject(endpoint);
+			} else {
+				record(endpoint, millis, true);
+			}
+		}
+	}
+
+	/**
+	 * Checks all the endpoints every intervalMillis in the background, until
+	 * stopHealthChecks().
+	 */
+	public synchronized void startHealthChecks(long intervalMillis) {
+		stopHealthChecks();
+		mHealthChecks = getChecker().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (Endpoint endpoint : getEndpoints()) {
+					synchronized (OpenERPEndpoints.this) {
+						if (endpoint.mChecking || endpoint.mEjectedUntil > System.currentTimeMillis()) {
+							continue;
+						}
+						endpoint.mChecking = true;
+					}
+					healthCheck(endpoint);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stopHealthChecks() {
+		if (mHealthChecks != null) {
+			mHealthChecks.cancel(false);
+			mHealthChecks = null;
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getChecker() {
+		if (sChecker == null) {
+			sChecker = Executors.newScheduledThreadPool(1, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "OpenERPEndpoints");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sChecker;
+	}
+
+	/** A server answering the calls, the primary or a replica. */
+	public class Endpoint {
+
+		private final OpenERPTransport mTransport;
+		private final boolean mIsPrimary;
+		private double mAverageMillis;
+		private long mSamples;
+		private int mInFlight;
+		private int mFailures;
+		private long mTotalFailures;
+		private long mEjectedUntil;
+		private long mEjectMillis;
+		private int mEjections;
+		private boolean mChecking;
+
+		private Endpoint(OpenERPTransport transport, boolean isPrimary) {
+			mTransport = transport;
+			mIsPrimary = isPrimary;
+		}
+
+		public URL getUrl() {
+			return mTransport.getUrl();
+		}
+
+		public boolean isPrimary() {
+			return mIsPrimary;
+		}
+
+		/** @return The moving average of the latency, 0 without samples. */
+		public double getAverageMillis() {
+			synchronized (OpenERPEndpoints.this) {
+				return mAverageMillis;
+			}
+		}
+
+		public boolean isEjected() {
+			synchronized (OpenERPEndpoints.this) {
+				return mEjectedUntil != 0;
+			}
+		}
+
+		/** @return Transport errors since it was added. */
+		public long getFailures() {
+			synchronized (OpenERPEndpoints.this) {
+				return mTotalFailures;
+			}
+		}
+
+		public int getEjections() {
+			synchronized (OpenERPEndpoints.this) {
+				return mEjections;
+			}
+		}
+
+		public String toString() {
+			return (mIsPrimary ? "primary " : "replica ") + mTransport.getUrl().getHost() + ":" + mTransport.getUrl().getPort();
+		}
+	}
+}
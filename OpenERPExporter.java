@@ -0,0 +1,358 @@
+package com.openerp.attendances;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the records matching a domain to a stream, as CSV or as NDJSON
+ * (one JSON object per line), optionally gzipped. The records are read one
+ * page at a time with an OpenERPPager and written out as they come, so a
+ * full year of attendances takes the memory of a single page whatever the
+ * size of the export.<br>
+ * The id comes first, then the fields in the given order. In CSV the
+ * many2one fields are written as their name and the x2many fields as their
+ * ids separated by commas, and False is written as an empty value; in
+ * NDJSON the values are written as the server sent them. The Listener
+ * gets the progress after each page.
+ */
+public class OpenERPExporter {
+
+	public static final int FORMAT_CSV = 0;
+	public static final int FORMAT_NDJSON = 1;
+
+	public interface Listener {
+		/**
+		 * @param total
+		 *            Records matching the domain when the export started, -1
+		 *            if they could not be counted.
+		 * @param bytes
+		 *            Bytes written to the stream so far.
+		 */
+		void onProgress(int exported, int total, long bytes);
+	}
+
+	private static final int MAX_RETRIES = 3;
+	private static final long RETRY_DELAY_MILLIS = 1000;
+
+	private final OpenERPconn mConnection;
+	private final String mModel;
+	private final Object[] mConditions;
+	private final String[] mFields;
+	private int mFormat = FORMAT_CSV;
+	private boolean mGzip;
+	private int mPageSize = 500;
+	private String mSortField = "id";
+	private Listener mListener;
+
+	public OpenERPExporter(OpenERPconn connection, String model, Object[] conditions, String[] fields) {
+		mConnection = connection;
+		mModel = model;
+		mConditions = conditions;
+		mFields = fields;
+	}
+
+	/** FORMAT_CSV (the default) or FORMAT_NDJSON. */
+	public void setFormat(int format) {
+		mFormat = format;
+	}
+
+	public void setGzip(boolean gzip) {
+		mGzip = gzip;
+	}
+
+	/** Records read per request, 500 by default. */
+	public void setPageSize(int pageSize) {
+		mPageSize = pageSize;
+	}
+
+	/**
+	 * Order of the records, by id by default. Same restrictions as the field
+	 * of OpenERPPager.
+	 */
+	public void setSortField(String field) {
+		mSortField = field;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Writes all the records to the stream, which is flushed but not closed.
+	 * A page which can not be read is asked again a few times before giving
+	 * up.
+	 *
+	 * @throws IOException
+	 *             If the stream failed, or a page could not be read; what was
+	 *             written until then is left in the stream.
+	 */
+	public Result run(OutputStream out) throws IOException {
+		Result result = new Result();
+		long start = System.currentTimeMillis();
+		CountingOutputStream counter = new CountingOutputStream(out);
+		GZIPOutputStream gzip = mGzip ? new GZIPOutputStream(counter, 8 * 1024) : null;
+		Writer writer = new BufferedWriter(new OutputStreamWriter(gzip != null ? gzip : counter, "UTF-8"), 8 * 1024);
+		int total = -1;
+		if (mListener != null) {
+			Long[] count = mConnection.search(mModel, true, mConditions);
+			total = count != null ? count[0].intValue() : -1;
+		}
+		char[] dateBuffer = new char[OpenERPDateCodec.SERVER_DATETIME_LENGTH];
+		if (mFormat == FORMAT_CSV) {
+			writeCsvHeader(writer);
+		}
+		OpenERPPager pager = mConnection.page(mModel, mConditions, mSortField, false, mPageSize, mFields);
+		while (pager.hasNext()) {
+			List<HashMap<String, Object>> page = nextPage(pager);
+			for (HashMap<String, Object> record : page) {
+				if (mFormat == FORMAT_NDJSON) {
+					writeJsonRecord(writer, record, dateBuffer);
+				} else {
+					writeCsvRecord(writer, record, dateBuffer);
+				}
+			}
+			if (page.isEmpty()) {
+				continue;
+			}
+			writer.flush();
+			result.mRecords += page.size();
+			result.mPages++;
+			if (mListener != null) {
+				mListener.onProgress(result.mRecords, total, counter.mCount);
+			}
+		}
+		writer.flush();
+		if (gzip != null) {
+			gzip.finish();
+		}
+		out.flush();
+		result.mBytes = counter.mCount;
+		result.mElapsedMillis = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	private List<HashMap<String, Object>> nextPage(OpenERPPager pager) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			List<HashMap<String, Object>> page = pager.next();
+			if (page != null) {
+				return page;
+			}
+			if (attempt == MAX_RETRIES) {
+				throw new IOException("Could not read " + mModel + " after id " + pager.getLastId());
+			}
+			try {
+				Thread.sleep(RETRY_DELAY_MILLIS << attempt);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+		}
+	}
+
+	private void writeCsvHeader(Writer writer) throws IOException {
+		writer.write("id");
+		for (String field : mFields) {
+			writer.write(',');
+			writeCsvValue(writer, field);
+		}
+		writer.write("\r\n");
+	}
+
+	private void writeCsvRecord(Writer writer, Map<String, Object> record, char[] dateBuffer) throws IOException {
+		writer.write(String.valueOf(record.get("id")));
+		for (String field : mFields) {
+			writer.write(',');
+			Object value = record.get(field);
+			if (value == null || Boolean.FALSE.equals(value)) {
+				continue;
+			}
+			if (value instanceof Object[]) {
+				Object[] array = (Object[]) value;
+				if (array.length == 2 && array[0] instanceof Integer && array[1] instanceof String) {
+					value = array[1]; // many2one, [id, name]
+				} else {
+					StringBuilder ids = new StringBuilder();
+					for (Object item : array) {
+						if (ids.length() > 0) {
+							ids.append(',');
+						}
+						ids.append(item);
+					}
+					value = ids;
+				}
+			} else if (value instanceof Date) {
+				OpenERPDateCodec.formatServer(((Date) value).getTime(), false, dateBuffer, 0);
+				value = new String(dateBuffer);
+			}
+			writeCsvValue(writer, value.toString());
+		}
+		writer.write("\r\n");
+	}
+
+	/** Quoted only when needed, as in RFC 4180 */
+	private static void writeCsvValue(Writer writer, String value) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+		}
+		if (!quote) {
+			writer.write(value);
+			return;
+		}
+		writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				writer.write('"');
+			}
+			writer.write(c);
+		}
+		writer.write('"');
+	}
+
+	private void writeJsonRecord(Writer writer, Map<String, Object> record, char[] dateBuffer) throws IOException {
+		writer.write("{\"id\":");
+		writeJsonValue(writer, record.get("id"), dateBuffer);
+		for (String field : mFields) {
+			writer.write(',');
+			writeJsonString(writer, field);
+			writer.write(':');
+			writeJsonValue(writer, record.get(field), dateBuffer);
+		}
+		writer.write("}\n");
+	}
+
+	private static void writeJsonValue(Writer writer, Object value, char[] dateBuffer) throws IOException {
+		if (value == null) {
+			writer.write("null");
+		} else if (value instanceof Boolean || value instanceof Integer || value instanceof Long) {
+			writer.write(value.toString());
+		} else if (value instanceof Number) {
+			double number = ((Number) value).doubleValue();
+			writer.write(Double.isNaN(number) || Double.isInfinite(number) ? "null" : value.toString());
+		} else if (value instanceof Date) {
+			OpenERPDateCodec.formatServer(((Date) value).getTime(), false, dateBuffer, 0);
+			writer.write('"');
+			writer.write(dateBuffer);
+			writer.write('"');
+		} else if (value instanceof Object[]) {
+			writer.write('[');
+			Object[] array = (Object[]) value;
+			for (int i = 0; i < array.length; i++) {
+				if (i > 0) {
+					writer.write(',');
+				}
+				writeJsonValue(writer, array[i], dateBuffer);
+			}
+			writer.write(']');
+		} else if (value instanceof Map) {
+			writer.write('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (!first) {
+					writer.write(',');
+				}
+				first = false;
+				writeJsonString(writer, String.valueOf(entry.getKey()));
+				writer.write(':');
+				writeJsonValue(writer, entry.getValue(), dateBuffer);
+			}
+			writer.write('}');
+		} else {
+			writeJsonString(writer, value.toString());
+		}
+	}
+
+	private static void writeJsonString(Writer writer, String value) throws IOException {
+		writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				writer.write("\\\"");
+				break;
+			case '\\':
+				writer.write("\\\\");
+				break;
+			case '\n':
+				writer.write("\\n");
+				break;
+			case '\r':
+				writer.write("\\r");
+				break;
+			case '\t':
+				writer.write("\\t");
+				break;
+			default:
+				// The line separators break the lines of some JSON readers
+				if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+					writer.write(String.format(Locale.US, "\\u%04x", (int) c));
+				} else {
+					writer.write(c);
+				}
+			}
+		}
+		writer.write('"');
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long mCount;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			mCount += len;
+		}
+	}
+
+	public static class Result {
+
+		private int mRecords;
+		private int mPages;
+		private long mBytes;
+		private long mElapsedMillis;
+
+		public int getRecords() {
+			return mRecords;
+		}
+
+		public int getPages() {
+			return mPages;
+		}
+
+		/** @return Bytes written to the stream, after compression. */
+		public long getBytes() {
+			return mBytes;
+		}
+
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+		}
+
+		public String toString() {
+			return mRecords + " records in " + mPages + " pages, " + mBytes + " bytes in " + mElapsedMillis + " ms";
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.xmlrpc.android.XMLRPCException;
+
+import android.util.Log;
+
+/**
+ * Runs the same query against several databases of one server at the same
+ * time, e.g. today's attendances of every company. At most parallelism
+ * databases are queried at once; each one is logged in the first time and
+ * its connection is kept for the next queries, all of them sharing one
+ * OpenERPTransport.<br>
+ * A database which fails (login, error, fault or its timeout) does not
+ * stop the others: its Result holds the error instead of the value. The
+ * Listener gets each Result as soon as its database is done, from the
+ * worker threads; the methods return all of them in the order of the
+ * databases. mergeRecords() puts the records of read() together, each one
+ * tagged with its database in the DATABASE_FIELD key.
+ */
+public class OpenERPFanOut {
+
+	/** Key added to the merged records, with the name of their database. */
+	public static final String DATABASE_FIELD = "__database";
+
+	public interface Query {
+		Object run(OpenERPconn connection) throws XMLRPCException;
+	}
+
+	public interface Listener {
+		void onResult(Result result);
+	}
+
+	private final String mServer;
+	private final int mPort;
+	private final String mUser;
+	private final String mPassword;
+	private final String[] mDatabases;
+	private final HashMap<String, OpenERPconn> mConnections = new HashMap<String, OpenERPconn>();
+	private OpenERPTransport mTransport;
+	private int mParallelism = 4;
+	private long mTimeoutMillis;
+
+	/** The same user and password must be valid in all the databases. */
+	public OpenERPFanOut(String server, int port, String user, String pass, String... databases) {
+		mServer = server;
+		mPort = port;
+		mUser = user;
+		mPassword = pass;
+		mDatabases = databases;
+	}
+
+	/** @return A fan-out over all the databases of the server, null if they could not be listed. */
+	public static OpenERPFanOut allDatabases(String server, int port, String user, String pass) {
+		String[] databases = OpenERPconn.getDatabaseList(server, port);
+		return databases != null ? new OpenERPFanOut(server, port, user, pass, databases) : null;
+	}
+
+	public String[] getDatabases() {
+		return mDatabases.clone();
+	}
+
+	/** Databases queried at the same time, 4 by default. */
+	public void setParallelism(int parallelism) {
+		mParallelism = parallelism;
+	}
+
+	/** Time allowed to each database, login included. 0 (the default) for none. */
+	public void setTimeout(long millis) {
+		mTimeoutMillis = millis;
+	}
+
+	/** @return The ids matching the conditions in each database, as Long[]. */
+	public List<Result> search(final String model, final Object[] conditions, Listener listener) throws InterruptedException {
+		return run(new Query() {
+			public Object run(OpenERPconn connection) throws XMLRPCException {
+				return toIds((Object[]) connection.execute(model, "search", new Object[] { conditions }));
+			}
+		}, listener);
+	}
+
+	/**
+	 * @return The fields of the records matching the conditions in each
+	 *         database, as a List of HashMap.
+	 */
+	public List<Result> read(final String model, final Object[] conditions, final String[] fields, Listener listener) throws InterruptedException {
+		return run(new Query() {
+			public Object run(OpenERPconn connection) throws XMLRPCException {
+				Long[] ids = toIds((Object[]) connection.execute(model, "search", new Object[] { conditions }));
+				List<HashMap<String, Object>> records = new ArrayList<HashMap<String, Object>>(ids.length);
+				if (ids.length > 0) {
+					for (Object record : (Object[]) connection.execute(model, "read", ids, fields)) {
+						@SuppressWarnings("unchecked")
+						HashMap<String, Object> values = (HashMap<String, Object>) record;
+						records.add(values);
+					}
+				}
+				return records;
+			}
+		}, listener);
+	}
+
+	/** @return What the method returned in each database. */
+	public List<Result> call(final String model, final String method, Listener listener, final Object... parameters) throws InterruptedException {
+		return run(new Query() {
+			public Object run(OpenERPconn connection) throws XMLRPCException {
+				return connection.execute(model, method, parameters);
+			}
+		}, listener);
+	}
+
+	/**
+	 * Runs the query in every database, blocking until all of them are done.
+	 *
+	 * @param listener
+	 *            May be null.
+	 */
+	public List<Result> run(final Query query, final Listener listener) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(mParallelism, mDatabases.length)));
+		List<Future<Result>> futures = new ArrayList<Future<Result>>(mDatabases.length);
+		try {
+			for (final String database : mDatabases) {
+				futures.add(executor.submit(new Callable<Result>() {
+					public Result call() {
+						Result result = runIn(database, query);
+						if (listener != null) {
+							try {
+								listener.onResult(result);
+							} catch (RuntimeException e) {
+								// The result is still returned with the others
+								Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+							}
+						}
+						return result;
+					}
+				}));
+			}
+			List<Result> results = new ArrayList<Result>(futures.size());
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					// Only an Error gets here, keep the order anyway
+					Result result = new Result(mDatabases[i]);
+					result.mError = e.getCause().toString();
+					results.add(result);
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Result runIn(String database, Query query) {
+		Result result = new Result(database);
+		long start = System.currentTimeMillis();
+		OpenERPCall scope = OpenERPCall.begin(mTimeoutMillis);
+		try {
+			OpenERPconn connection = getConnection(database);
+			if (connection == null) {
+				result.mError = "Login failed";
+			} else {
+				result.mValue = query.run(connection);
+			}
+		} catch (XMLRPCException e) {
+			result.mError = e.toString();
+		} catch (RuntimeException e) {
+			result.mError = e.toString(); // Unexpected response
+		} finally {
+			scope.end();
+		}
+		result.mMillis = System.currentTimeMillis() - start;
+		if (result.mError != null) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, database + ": " + result.mError);
+		}
+		return result;
+	}
+
+	private OpenERPconn getConnection(String database) {
+		synchronized (mConnections) {
+			OpenERPconn connection = mConnections.get(database);
+			if (connection != null) {
+				return connection;
+			}
+		}
+		OpenERPconn connection = OpenERPconn.connect(mServer, mPort, database, mUser, mPassword);
+		if (connection == null || connection.getUserId() == null) {
+			return null;
+		}
+		synchronized (mConnections) {
+			if (mTransport == null) {
+				mTransport = connection.getTransport();
+			}
+			connection.setTransport(mTransport);
+			mConnections.put(database, connection);
+		}
+		return connection;
+	}
+
+	private static Long[] toIds(Object[] response) {
+		Long[] ids = new Long[response.length];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = ((Integer) response[i]).longValue();
+		}
+		return ids;
+	}
+
+	/**
+	 * @return The records of the successful results of read(), each one
+	 *         with its database in DATABASE_FIELD, in the order of the
+	 *         databases.
+	 */
+	public static List<HashMap<String, Object>> mergeRecords(List<Result> results) {
+		List<HashMap<String, Object>> merged = new ArrayList<HashMap<String, Object>>();
+		for (Result result : results) {
+			if (!result.isOk() || !(result.mValue instanceof List)) {
+				continue;
+			}
+			for (Object record : (List<?>) result.mValue) {
+				@SuppressWarnings("unchecked")
+				HashMap<String, Object> values = (HashMap<String, Object>) record;
+				values.put(DATABASE_FIELD, result.mDatabase);
+				merged.add(values);
+			}
+		}
+		return merged;
+	}
+
+	/** @return The errors of the failed databases, by database. */
+	public static Map<String, String> getErrors(List<Result> results) {
+		Map<String, String> errors = new HashMap<String, String>();
+		for (Result result : results) {
+			if (!result.isOk()) {
+				errors.put(result.mDatabase, result.mError);
+			}
+		}
+		return errors;
+	}
+
+	/** The outcome of the query in one database. */
+	public static class Result {
+
+		private final String mDatabase;
+		private volatile Object mValue;
+		private volatile String mError;
+		private volatile long mMillis;
+
+		Result(String database) {
+			mDatabase = database;
+		}
+
+		public String getDatabase() {
+			return mDatabase;
+		}
+
+		/** @return What the query returned, null if it failed. */
+		public Object getValue() {
+			return mValue;
+		}
+
+		/** @return Why it failed, null if it did not. */
+		public String getError() {
+			return mError;
+		}
+
+		public boolean isOk() {
+			return mError == null;
+		}
+
+		/** @return Time taken by the database, login included. */
+		public long getMillis() {
+			return mMillis;
+		}
+
+		public String toString() {
+			Object value = mValue instanceof Object[] ? Arrays.asList((Object[]) mValue) : mValue;
+			return mDatabase + ": " + (isOk() ? value : "error " + mError) + " (" + mMillis + " ms)";
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFault;
+
+import android.util.Log;
+
+/**
+ * Imports big amounts of rows by sending them in chunks to the load() method
+ * of the model, the one used by the OpenERP import wizard, with several
+ * chunks in flight at the same time. On servers without load() (before 7.0)
+ * each chunk is sent as create() calls instead, with the values converted to
+ * the types of fields_get(); that fallback takes only plain fields and
+ * relations given by database id, any other field fails its rows.<br>
+ * The rows are pulled from the Iterator only when there is room for a new
+ * chunk, so at most parallelism + 1 chunks are in memory whatever the size
+ * of the input. The ids and errors of each chunk are reported to the
+ * Listener as soon as it is done, from the worker threads, and are not kept.
+ * <br>
+ * The values of each row follow the order of the fields. load() expects
+ * them as in an import file: strings, with relations given by name, or by
+ * database id if the field is named e.g. "department_id/.id". Every row of
+ * the input ends up either imported or in a RowError.
+ */
+public class OpenERPImporter {
+
+	public interface Listener {
+		void onChunk(Chunk chunk);
+	}
+
+	private final OpenERPconn mConnection;
+	private final String mModel;
+	private final String[] mFields;
+	private int mChunkSize = 100;
+	private int mParallelism = 3;
+	private Listener mListener;
+
+	/** Cleared when the server does not know load() */
+	private volatile boolean mLoadAvailable = true;
+	/** fields_get() of the imported fields, for the create() fallback */
+	private volatile Map<?, ?> mFieldsInfo;
+
+	public OpenERPImporter(OpenERPconn connection, String model, String[] fields) {
+		mConnection = connection;
+		mModel = model;
+		mFields = fields;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		mChunkSize = chunkSize;
+	}
+
+	/** Number of chunks sent at the same time. */
+	public void setParallelism(int parallelism) {
+		mParallelism = parallelism;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** Imports all the rows, blocking until the last chunk is done. */
+	public Result run(Iterator<Object[]> rows) throws InterruptedException {
+		final Result result = new Result();
+		final Semaphore inFlight = new Semaphore(mParallelism);
+		ExecutorService executor = Executors.newFixedThreadPool(mParallelism);
+		long start = System.currentTimeMillis();
+		try {
+			int firstRow = 0;
+			while (rows.hasNext()) {
+				final List<Object[]> chunkRows = new ArrayList<Object[]>(mChunkSize);
+				while (chunkRows.size() < mChunkSize && rows.hasNext()) {
+					chunkRows.add(rows.next());
+				}
+				inFlight.acquire();
+				final int chunkFirstRow = firstRow;
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							Chunk chunk;
+							try {
+								chunk = send(chunkFirstRow, chunkRows);
+							} catch (RuntimeException e) {
+								// Unexpected response, the rows must not get lost
+								Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+								chunk = failed(chunkFirstRow, chunkRows.size(), e.toString());
+							}
+							result.add(chunk);
+							if (mListener != null) {
+								try {
+									mListener.onChunk(chunk);
+								} catch (RuntimeException e) {
+									Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+								}
+							}
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+				firstRow += chunkRows.size();
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		result.mElapsedMillis = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	private Chunk send(int firstRow, List<Object[]> rows) {
+		if (mLoadAvailable) {
+			try {
+				return load(firstRow, rows);
+			} catch (XMLRPCException e) {
+				if (!isMissingLoad(e)) {
+					Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+					Chunk chunk = new Chunk(firstRow, rows.size());
+					chunk.mErrors.add(new RowError(firstRow, e.toString()));
+					return chunk;
+				}
+				mLoadAvailable = false;
+			}
+		}
+		return create(firstRow, rows);
+	}
+
+	private Chunk load(int firstRow, List<Object[]> rows) throws XMLRPCException {
+		Chunk chunk = new Chunk(firstRow, rows.size());
+		Map<?, ?> response = (Map<?, ?>) mConnection.execute(mModel, "load", mFields, rows.toArray());
+		Object ids = response.get("ids");
+		if (ids instanceof Object[]) { // False when the chunk failed
+			Object[] responseIds = (Object[]) ids;
+			chunk.mIds = new Long[responseIds.length];
+			for (int i = 0; i < responseIds.length; i++) {
+				chunk.mIds[i] = ((Integer) responseIds[i]).longValue();
+			}
+		}
+		Object messages = response.get("messages");
+		if (messages instanceof Object[]) {
+			for (Object message : (Object[]) messages) {
+				Map<?, ?> fields = (Map<?, ?>) message;
+				if (!"error".equals(fields.get("type"))) {
+					continue;
+				}
+				Object record = fields.get("record");
+				int row = record instanceof Integer ? firstRow + (Integer) record : firstRow;
+				chunk.mErrors.add(new RowError(row, String.valueOf(fields.get("message"))));
+			}
+		}
+		if (chunk.mIds == null && chunk.mErrors.isEmpty()) {
+			chunk.mErrors.add(new RowError(firstRow, "load() did not import the chunk"));
+		}
+		return chunk;
+	}
+
+	/** Fallback for servers without load(), one create() per row. */
+	private Chunk create(int firstRow, List<Object[]> rows) {
+		Map<?, ?> fieldsInfo;
+		try {
+			fieldsInfo = getFieldsInfo();
+		} catch (XMLRPCException e) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+			return failed(firstRow, rows.size(), e.toString());
+		}
+		for (String field : mFields) {
+			String unsupported = checkCreateField(field, fieldsInfo);
+			if (unsupported != null) {
+				return failed(firstRow, rows.size(), unsupported);
+			}
+		}
+		Chunk chunk = new Chunk(firstRow, rows.size());
+		List<Long> ids = new ArrayList<Long>(rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			Object[] row = rows.get(i);
+			try {
+				HashMap<String, Object> values = new HashMap<String, Object>();
+				for (int field = 0; field < mFields.length && field < row.length; field++) {
+					String name = baseName(mFields[field]);
+					values.put(name, toCreateValue((Map<?, ?>) fieldsInfo.get(name), row[field]));
+				}
+				ids.add(((Integer) mConnection.execute(mModel, "create", values)).longValue());
+			} catch (XMLRPCException e) {
+				chunk.mErrors.add(new RowError(firstRow + i, e.toString()));
+			} catch (RuntimeException e) {
+				// Not a number, or an unexpected response
+				chunk.mErrors.add(new RowError(firstRow + i, e.toString()));
+			}
+		}
+		chunk.mIds = ids.toArray(new Long[ids.size()]);
+		return chunk;
+	}
+
+	private Map<?, ?> getFieldsInfo() throws XMLRPCException {
+		Map<?, ?> fieldsInfo = mFieldsInfo;
+		if (fieldsInfo == null) {
+			String[] names = new String[mFields.length];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = baseName(mFields[i]);
+			}
+			fieldsInfo = (Map<?, ?>) mConnection.execute(mModel, "fields_get", new Object[] { names });
+			mFieldsInfo = fieldsInfo;
+		}
+		return fieldsInfo;
+	}
+
+	/**
+	 * @return Why create() cannot take the field, null if it can: only plain
+	 *         fields and relations by database id ("field/.id") can be
+	 *         converted, names and external ids would need name_search() or
+	 *         ir.model.data.
+	 */
+	private static String checkCreateField(String field, Map<?, ?> fieldsInfo) {
+		String name = baseName(field);
+		Map<?, ?> info = (Map<?, ?>) fieldsInfo.get(name);
+		if (info == null) {
+			return "create() fallback: unknown field " + field;
+		}
+		boolean relational = info.get("relation") instanceof String;
+		if (field.equals(name) ? relational : !field.equals(name + "/.id") || !relational) {
+			return "create() fallback: cannot import " + field + ", only plain fields and relations as field/.id";
+		}
+		return null;
+	}
+
+	private static String baseName(String field) {
+		int slash = field.indexOf('/');
+		return slash >= 0 ? field.substring(0, slash) : field;
+	}
+
+	/** Converts an import file value to what create() expects for the field. */
+	private static Object toCreateValue(Map<?, ?> info, Object value) {
+		if (!(value instanceof String)) {
+			return value == null ? Boolean.FALSE : value;
+		}
+		String text = ((String) value).trim();
+		if (text.length() == 0) {
+			return Boolean.FALSE;
+		}
+		String type = String.valueOf(info.get("type"));
+		if (type.equals("many2one") || type.equals("integer")) {
+			return Integer.valueOf(text);
+		} else if (type.equals("many2many") || type.equals("one2many")) {
+			String[] parts = text.split(",");
+			Integer[] ids = new Integer[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				ids[i] = Integer.valueOf(parts[i].trim());
+			}
+			return new Object[] { new Object[] { 6, 0, ids } };
+		} else if (type.equals("float")) {
+			return Double.valueOf(text);
+		} else if (type.equals("boolean")) {
+			return text.equals("1") || text.equalsIgnoreCase("true") || text.equalsIgnoreCase("yes");
+		}
+		return value;
+	}
+
+	/** @return A chunk with every one of its rows failed with the message. */
+	private static Chunk failed(int firstRow, int size, String message) {
+		Chunk chunk = new Chunk(firstRow, size);
+		for (int i = 0; i < size; i++) {
+			chunk.mErrors.add(new RowError(firstRow + i, message));
+		}
+		return chunk;
+	}
+
+	private static boolean isMissingLoad(XMLRPCException e) {
+		if (!(e instanceof XMLRPCFault)) {
+			return false;
+		}
+		String fault = ((XMLRPCFault) e).getFaultString();
+		return fault != null && fault.contains("load") && (fault.contains("has no attribute") || fault.contains("does not exist"));
+	}
+
+	/** The outcome of one chunk, rows are counted from 0 in the whole input. */
+	public static class Chunk {
+
+		private final int mFirstRow;
+		private final int mSize;
+		private Long[] mIds;
+		private final List<RowError> mErrors = new ArrayList<RowError>();
+
+		Chunk(int firstRow, int size) {
+			mFirstRow = firstRow;
+			mSize = size;
+		}
+
+		public int getFirstRow() {
+			return mFirstRow;
+		}
+
+		public int getSize() {
+			return mSize;
+		}
+
+		/**
+		 * @return The ids of the created records, null if the server rejected
+		 *         the whole chunk (load() imports all or nothing).
+		 */
+		public Long[] getIds() {
+			return mIds;
+		}
+
+		public List<RowError> getErrors() {
+			return Collections.unmodifiableList(mErrors);
+		}
+	}
+
+	public static class RowError {
+
+		private final int mRow;
+		private final String mMessage;
+
+		RowError(int row, String message) {
+			mRow = row;
+			mMessage = message;
+		}
+
+		public int getRow() {
+			return mRow;
+		}
+
+		public String getMessage() {
+			return mMessage;
+		}
+
+		public String toString() {
+			return "row " + mRow + ": " + mMessage;
+		}
+	}
+
+	/** Totals of the import, the details go to the Listener. */
+	public static class Result {
+
+		private final AtomicInteger mRows = new AtomicInteger();
+		private final AtomicInteger mImported = new AtomicInteger();
+		private final AtomicInteger mErrors = new AtomicInteger();
+		private long mElapsedMillis;
+
+		void add(Chunk chunk) {
+			mRows.addAndGet(chunk.mSize);
+			mImported.addAndGet(chunk.mIds != null ? chunk.mIds.length : 0);
+			mErrors.addAndGet(chunk.mErrors.size());
+		}
+
+		public int getRows() {
+			return mRows.get();
+		}
+
+		public int getImported() {
+			return mImported.get();
+		}
+
+		public int getErrors() {
+			return mErrors.get();
+		}
+
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+		}
+	}
+}
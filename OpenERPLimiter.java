@@ -0,0 +1,205 @@
+package com.openerp.attendances;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Client side limit of the requests in flight to the server, which adapts
+ * itself to the observed latency (AIMD): while the calls answer within the
+ * target latency the limit grows by one per limit calls, and as soon as one
+ * takes longer, or fails at the transport level, it is cut by a quarter. So
+ * when the sync jobs and the kiosks hit the server at the same time, the
+ * requests queue here instead of saturating the OpenERP workers.<br>
+ * Queued requests are granted by priority: PRIORITY_INTERACTIVE (by default
+ * register_attendance) go before PRIORITY_BULK, the rest. When maxQueued
+ * bulk requests are already waiting, new bulk requests are rejected at once;
+ * queued requests give up at their deadline. Either way the method fails
+ * with ERROR_REJECTED, which is the signal to slow down. A queued request
+ * whose OpenERPCall is cancelled stops waiting at once.<br>
+ * Set it with OpenERPconn.setLimiter(), the same limiter can be shared by all
+ * the connections to one server.
+ */
+public class OpenERPLimiter {
+
+	public static final int PRIORITY_INTERACTIVE = 0;
+	public static final int PRIORITY_BULK = 1;
+
+	public static final String ERROR_REJECTED = "Rejected by the concurrency limiter";
+
+	private static final double BACKOFF_RATIO = 0.75;
+
+	private final int mMinLimit;
+	private final int mMaxLimit;
+	private final long mTargetLatencyMillis;
+	private final int mMaxQueued;
+	private final HashMap<String, Integer> mPriorities = new HashMap<String, Integer>();
+
+	private double mLimit;
+	private int mInFlight;
+	private long mLastBackoff;
+	/** Queued requests, by priority */
+	private final List<ArrayDeque<Waiter>> mWaiters = new ArrayList<ArrayDeque<Waiter>>();
+
+	public OpenERPLimiter(int initialLimit, int minLimit, int maxLimit, long targetLatencyMillis, int maxQueued) {
+		mLimit = initialLimit;
+		mMinLimit = minLimit;
+		mMaxLimit = maxLimit;
+		mTargetLatencyMillis = targetLatencyMillis;
+		mMaxQueued = maxQueued;
+		mWaiters.add(new ArrayDeque<Waiter>());
+		mWaiters.add(new ArrayDeque<Waiter>());
+		mPriorities.put("register_attendance", PRIORITY_INTERACTIVE);
+	}
+
+	/** Sets the priority of the calls of an OpenERP method. */
+	public synchronized void setPriority(String method, int priority) {
+		mPriorities.put(method, priority);
+	}
+
+	public synchronized int getPriority(String method) {
+		Integer priority = mPriorities.get(method);
+		return priority != null ? priority : PRIORITY_BULK;
+	}
+
+	/** Same as acquire(priority, deadline, null). */
+	public boolean acquire(int priority, long deadline) throws InterruptedException {
+		return acquire(priority, deadline, null);
+	}
+
+	/**
+	 * Waits for a slot. If the thread is interrupted, no slot is kept.
+	 *
+	 * @param deadline
+	 *            Absolute time to give up at, 0 to wait as long as needed.
+	 *            Pass the earliest of the call deadline and the scope one.
+	 * @param scope
+	 *            Stops waiting when it is cancelled, may be null.
+	 * @return False if the request was rejected, the deadline passed or the
+	 *         scope was cancelled.
+	 */
+	public boolean acquire(int priority, long deadline, OpenERPCall scope) throws InterruptedException {
+		if (scope != null && !scope.waitOn(this)) {
+			return false;
+		}
+		try {
+			return acquireSlot(priority, deadline, scope);
+		} finally {
+			if (scope != null) {
+				scope.waitOn(null);
+			}
+		}
+	}
+
+	private synchronized boolean acquireSlot(int priority, long deadline, OpenERPCall scope) throws InterruptedException {
+		if (mInFlight < (int) mLimit && !hasWaiters(priority)) {
+			mInFlight++;
+			return true;
+		}
+		if (priority == PRIORITY_BULK && mWaiters.get(PRIORITY_BULK).size() >= mMaxQueued) {
+			return false;
+		}
+		Waiter waiter = new Waiter();
+		mWaiters.get(priority).add(waiter);
+		boolean interrupted = true;
+		try {
+			while (!waiter.mGranted && (scope == null || !scope.isCancelled())) {
+				long wait = deadline != 0 ? deadline - System.currentTimeMillis() : 0;
+				if (deadline != 0 && wait <= 0) {
+					break;
+				}
+				wait(wait);
+			}
+			interrupted = false;
+		} finally {
+			if (!waiter.mGranted) {
+				mWaiters.get(priority).remove(waiter);
+			} else if (interrupted || (scope != null && scope.isCancelled())) {
+				// Granted meanwhile, but the caller will not use nor release it
+				waiter.mGranted = false;
+				mInFlight--;
+				grant();
+			}
+		}
+		return waiter.mGranted;
+	}
+
+	/** Wakes up the waiting requests, so cancelled ones can leave. */
+	synchronized void wakeUp() {
+		notifyAll();
+	}
+
+	/**
+	 * Frees the slot and adapts the limit.
+	 *
+	 * @param overloaded
+	 *            True if the call failed at the transport level (timeout,
+	 *            connection refused...), which counts as overload.
+	 */
+	public synchronized void release(long latencyMillis, boolean overloaded) {
+		boolean limitInUse = mInFlight >= (int) mLimit / 2;
+		mInFlight--;
+		long now = System.currentTimeMillis();
+		if (overloaded || latencyMillis > mTargetLatencyMillis) {
+			// Once per latency window, the calls in flight share the cause
+			if (now - mLastBackoff > latencyMillis) {
+				mLimit = Math.max(mMinLimit, mLimit * BACKOFF_RATIO);
+				mLastBackoff = now;
+			}
+		} else if (limitInUse) {
+			mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+		}
+		grant();
+	}
+
+	private void grant() {
+		boolean granted = false;
+		while (mInFlight < (int) mLimit) {
+			Waiter waiter = mWaiters.get(PRIORITY_INTERACTIVE).poll();
+			if (waiter == null) {
+				waiter = mWaiters.get(PRIORITY_BULK).poll();
+			}
+			if (waiter == null) {
+				break;
+			}
+			waiter.mGranted = true;
+			mInFlight++;
+			granted = true;
+		}
+		if (granted) {
+			notifyAll();
+		}
+	}
+
+	private boolean hasWaiters(int priority) {
+		for (int i = 0; i <= priority; i++) {
+			if (!mWaiters.get(i).isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return The current limit of requests in flight. */
+	public synchronized int getLimit() {
+		return (int) mLimit;
+	}
+
+	public synchronized int getInFlight() {
+		return mInFlight;
+	}
+
+	public synchronized int getQueued() {
+		return mWaiters.get(PRIORITY_INTERACTIVE).size() + mWaiters.get(PRIORITY_BULK).size();
+	}
+
+	/** @return True while requests are queueing, a hint to back off. */
+	public synchronized boolean isSaturated() {
+		return getQueued() > 0;
+	}
+
+	private static class Waiter {
+		private boolean mGranted;
+	}
+}
@@ -0,0 +1,319 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records of one model kept in memory, e.g. hr.employee or today's
+ * hr.attendance, searched with OpenERPDomain instead of asking the server.
+ * <br>
+ * index(field) keeps a hash index of the field, used for =, in and many2one
+ * ids, and a sorted index used for <, <=, > and >=. A search takes the
+ * candidates from the indexes of the terms joined with "&" (the most
+ * selective one) or "|" (the union, when every operand is indexed) and only
+ * evaluates the domain on those. The ids found are cached by the canonical
+ * key of the domain until the records change, within the budget of
+ * OpenERPCacheManager.getDefault().<br>
+ * The store is thread safe.
+ */
+public class OpenERPLocalStore {
+
+	/** Search results of all the stores, cheap to compute again */
+	private static final OpenERPCacheManager.Cache<String, Long[]> sResults = OpenERPCacheManager.getDefault().newCache("local searches", 1);
+	private static final AtomicInteger sStores = new AtomicInteger();
+
+	private final String mModel;
+	private final TreeMap<Long, HashMap<String, Object>> mRecords = new TreeMap<Long, HashMap<String, Object>>();
+	private final HashMap<String, Index> mIndexes = new HashMap<String, Index>();
+	private final int mStore = sStores.incrementAndGet();
+	/** Changed with the records, the older results are left to the LRU */
+	private int mVersion;
+
+	public OpenERPLocalStore(String model) {
+		mModel = model;
+	}
+
+	/**
+	 * @return A store with the fields of the records of the model matching the
+	 *         domain, null if they could not be read.
+	 */
+	public static OpenERPLocalStore load(OpenERPconn connection, String model, Object[] conditions, String[] fields) {
+		Long[] ids = connection.search(model, conditions);
+		if (ids == null) {
+			return null;
+		}
+		List<HashMap<String, Object>> records = connection.read(model, ids, fields);
+		if (records == null) {
+			return null;
+		}
+		OpenERPLocalStore store = new OpenERPLocalStore(model);
+		store.put(records);
+		return store;
+	}
+
+	public String getModel() {
+		return mModel;
+	}
+
+	/** Adds or replaces records, as returned by read() with their "id". */
+	public synchronized void put(Collection<? extends Map<String, Object>> records) {
+		for (Map<String, Object> record : records) {
+			Long id = ((Number) record.get("id")).longValue();
+			HashMap<String, Object> previous = mRecords.put(id, new HashMap<String, Object>(record));
+			for (Index index : mIndexes.values()) {
+				if (previous != null) {
+					index.remove(id, previous);
+				}
+				index.add(id, record);
+			}
+		}
+		mVersion++;
+	}
+
+	public synchronized void remove(Long... ids) {
+		for (Long id : ids) {
+			HashMap<String, Object> previous = mRecords.remove(id);
+			if (previous != null) {
+				for (Index index : mIndexes.values()) {
+					index.remove(id, previous);
+				}
+			}
+		}
+		mVersion++;
+	}
+
+	public synchronized void clear() {
+		mRecords.clear();
+		for (Index index : mIndexes.values()) {
+			index.clear();
+		}
+		mVersion++;
+	}
+
+	public synchronized int size() {
+		return mRecords.size();
+	}
+
+	/** @return A copy of the record, null if it is not in the store. */
+	public synchronized HashMap<String, Object> get(Long id) {
+		HashMap<String, Object> record = mRecords.get(id);
+		return record != null ? new HashMap<String, Object>(record) : null;
+	}
+
+	/** Indexes the field for the following searches. */
+	public synchronized void index(String field) {
+		if (mIndexes.containsKey(field)) {
+			return;
+		}
+		Index index = new Index(field);
+		for (Map.Entry<Long, HashMap<String, Object>> record : mRecords.entrySet()) {
+			index.add(record.getKey(), record.getValue());
+		}
+		mIndexes.put(field, index);
+	}
+
+	/** @return The ids of the matching records, in ascending order. */
+	public Long[] search(Object[] conditions) {
+		return search(OpenERPDomain.compile(conditions));
+	}
+
+	public synchronized Long[] search(OpenERPDomain domain) {
+		String key = mStore + "/" + mVersion + "/" + domain.getKey();
+		Long[] cached = sResults.get(key);
+		if (cached != null) {
+			return cached.clone();
+		}
+		Set<Long> candidates = candidates(domain.getRoot());
+		List<Long> ids = new ArrayList<Long>();
+		if (candidates != null) {
+			for (Long id : candidates) {
+				if (domain.matches(mRecords.get(id))) {
+					ids.add(id);
+				}
+			}
+			Collections.sort(ids);
+		} else {
+			for (Map.Entry<Long, HashMap<String, Object>> record : mRecords.entrySet()) {
+				if (domain.matches(record.getValue())) {
+					ids.add(record.getKey());
+				}
+			}
+		}
+		Long[] result = ids.toArray(new Long[ids.size()]);
+		sResults.put(key, result);
+		return result.clone();
+	}
+
+	/** @return Copies of the matching records. */
+	public synchronized List<HashMap<String, Object>> read(Object[] conditions) {
+		Long[] ids = search(conditions);
+		List<HashMap<String, Object>> records = new ArrayList<HashMap<String, Object>>(ids.length);
+		for (Long id : ids) {
+			records.add(new HashMap<String, Object>(mRecords.get(id)));
+		}
+		return records;
+	}
+
+	/**
+	 * @return The ids which may match the node according to the indexes, a
+	 *         superset of the result, or null if any record may match.
+	 */
+	private Set<Long> candidates(OpenERPDomain.Node node) {
+		if (node instanceof OpenERPDomain.Term) {
+			OpenERPDomain.Term term = (OpenERPDomain.Term) node;
+			Index index = mIndexes.get(term.mField);
+			return index != null ? index.candidates(term) : null;
+		}
+		if (node instanceof OpenERPDomain.Junction) {
+			OpenERPDomain.Junction junction = (OpenERPDomain.Junction) node;
+			Set<Long> result = null;
+			for (OpenERPDomain.Node operand : junction.mOperands) {
+				Set<Long> candidates = candidates(operand);
+				if (junction.mAnd) {
+					if (candidates != null && (result == null || candidates.size() < result.size())) {
+						result = candidates;
+					}
+				} else {
+					if (candidates == null) {
+						return null;
+					}
+					if (result == null) {
+						result = new HashSet<Long>();
+					}
+					result.addAll(candidates);
+				}
+			}
+			return result;
+		}
+		return null;
+	}
+
+	private static class Index {
+
+		private final String mField;
+		private final HashMap<Object, Set<Long>> mHash = new HashMap<Object, Set<Long>>();
+		private final TreeMap<Double, Set<Long>> mNumbers = new TreeMap<Double, Set<Long>>();
+		private final TreeMap<String, Set<Long>> mStrings = new TreeMap<String, Set<Long>>();
+
+		Index(String field) {
+			mField = field;
+		}
+
+		void add(Long id, Map<String, Object> record) {
+			for (Object value : keys(record)) {
+				add(mHash, value, id);
+				if (value instanceof Double) {
+					add(mNumbers, (Double) value, id);
+				} else if (value instanceof String) {
+					add(mStrings, (String) value, id);
+				}
+			}
+		}
+
+		void remove(Long id, Map<String, Object> record) {
+			for (Object value : keys(record)) {
+				remove(mHash, value, id);
+				if (value instanceof Double) {
+					remove(mNumbers, (Double) value, id);
+				} else if (value instanceof String) {
+					remove(mStrings, (String) value, id);
+				}
+			}
+		}
+
+		void clear() {
+			mHash.clear();
+			mNumbers.clear();
+			mStrings.clear();
+		}
+
+		/** x2many fields are indexed by each of their ids */
+		private List<Object> keys(Map<String, Object> record) {
+			Object[] values = OpenERPDomain.values(record.get(mField));
+			List<Object> keys = new ArrayList<Object>(Math.max(1, values.length));
+			for (Object value : values) {
+				keys.add(OpenERPDomain.normalize(value));
+			}
+			if (keys.isEmpty()) {
+				keys.add(null);
+			}
+			return keys;
+		}
+
+		private static <K> void add(Map<K, Set<Long>> map, K key, Long id) {
+			Set<Long> ids = map.get(key);
+			if (ids == null) {
+				ids = new HashSet<Long>();
+				map.put(key, ids);
+			}
+			ids.add(id);
+		}
+
+		private static <K> void remove(Map<K, Set<Long>> map, K key, Long id) {
+			Set<Long> ids = map.get(key);
+			if (ids != null) {
+				ids.remove(id);
+				if (ids.isEmpty()) {
+					map.remove(key);
+				}
+			}
+		}
+
+		/** @return Null for the operators which the index can not answer. */
+		Set<Long> candidates(OpenERPDomain.Term term) {
+			String operator = term.mOperator;
+			if (operator.equals("=")) {
+				Set<Long> ids = mHash.get(term.mValue);
+				return ids != null ? ids : new HashSet<Long>();
+			}
+			if (operator.equals("in")) {
+				Set<Long> result = new HashSet<Long>();
+				for (Object value : term.mValues) {
+					Set<Long> ids = mHash.get(value);
+					if (ids != null) {
+						result.addAll(ids);
+					}
+				}
+				return result;
+			}
+			NavigableMap<?, Set<Long>> range;
+			if (term.mValue instanceof Double) {
+				range = range(mNumbers, (Double) term.mValue, operator);
+			} else if (term.mValue instanceof String) {
+				range = range(mStrings, (String) term.mValue, operator);
+			} else {
+				return null;
+			}
+			if (range == null) {
+				return null;
+			}
+			Set<Long> result = new HashSet<Long>();
+			for (Set<Long> ids : range.values()) {
+				result.addAll(ids);
+			}
+			return result;
+		}
+
+		private static <K> NavigableMap<K, Set<Long>> range(TreeMap<K, Set<Long>> map, K value, String operator) {
+			if (operator.equals("<")) {
+				return map.headMap(value, false);
+			} else if (operator.equals("<=")) {
+				return map.headMap(value, true);
+			} else if (operator.equals(">")) {
+				return map.tailMap(value, false);
+			} else if (operator.equals(">=")) {
+				return map.tailMap(value, true);
+			}
+			return null;
+		}
+	}
+}
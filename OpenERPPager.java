@@ -0,0 +1,126 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Pages through the records matching a domain, sorted by a field and then
+ * by id, with keyset pagination: each page is searched for the records after
+ * the (field, id) of the last record of the previous page, see
+ * OpenERPconn.searchAfter(). The field must be a stored field which is not a
+ * relation, e.g. a date, and should be set in every record.<br>
+ * Deep pages of big tables such as hr.attendance cost the same as the first
+ * one, and records created or deleted meanwhile do not make pages skip or
+ * repeat records. The position can be saved with getLastKey() and
+ * getLastId() and restored with seek(), e.g. to continue a sync after a
+ * restart. Get one from OpenERPconn.page().
+ */
+public class OpenERPPager {
+
+	private final OpenERPconn mConnection;
+	private final String mModel;
+	private final Object[] mConditions;
+	private final String mField;
+	private final boolean mDescending;
+	private final int mPageSize;
+	private final String[] mFields;
+
+	private Object mLastKey;
+	private Long mLastId;
+	private boolean mDone;
+
+	/**
+	 * @param fields
+	 *            Fields to read, the sort field is always read.
+	 */
+	public OpenERPPager(OpenERPconn connection, String model, Object[] conditions, String field, boolean descending, int pageSize, String... fields) {
+		mConnection = connection;
+		mModel = model;
+		mConditions = conditions;
+		mField = field;
+		mDescending = descending;
+		mPageSize = pageSize;
+		if (fields.length > 0 && !Arrays.asList(fields).contains(field)) {
+			mFields = Arrays.copyOf(fields, fields.length + 1);
+			mFields[fields.length] = field;
+		} else {
+			mFields = fields;
+		}
+	}
+
+	/** @return False once a page shorter than the page size was returned. */
+	public synchronized boolean hasNext() {
+		return !mDone;
+	}
+
+	/**
+	 * @return The next page, in order. Empty at the end, null if the request
+	 *         failed, in which case the same page can be asked again.
+	 */
+	public synchronized List<HashMap<String, Object>> next() {
+		if (mDone) {
+			return new ArrayList<HashMap<String, Object>>();
+		}
+		Long[] ids = mConnection.searchAfter(mModel, mConditions, mField, mDescending, mLastKey, mLastId, mPageSize);
+		if (ids == null) {
+			return null;
+		}
+		if (ids.length == 0) {
+			mDone = true;
+			return new ArrayList<HashMap<String, Object>>();
+		}
+		List<HashMap<String, Object>> records = mConnection.read(mModel, ids, mFields);
+		if (records == null) {
+			return null;
+		}
+		// read() does not keep the order of search(), ids does
+		HashMap<Long, HashMap<String, Object>> byId = new HashMap<Long, HashMap<String, Object>>();
+		for (HashMap<String, Object> record : records) {
+			byId.put(((Number) record.get("id")).longValue(), record);
+		}
+		List<HashMap<String, Object>> page = new ArrayList<HashMap<String, Object>>(ids.length);
+		for (Long id : ids) {
+			HashMap<String, Object> record = byId.get(id);
+			if (record != null) {
+				page.add(record);
+			}
+		}
+		if (page.isEmpty()) {
+			mDone = true; // Deleted meanwhile, they were the last ones
+			return page;
+		}
+		HashMap<String, Object> last = page.get(page.size() - 1);
+		Object key = last.get(mField);
+		if (key == null || Boolean.FALSE.equals(key)) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, "Empty " + mField + " in " + mModel + " " + last.get("id") + ", can not page past it");
+			mDone = true;
+		}
+		mLastKey = key;
+		mLastId = ids[ids.length - 1];
+		if (ids.length < mPageSize) {
+			mDone = true;
+		}
+		return page;
+	}
+
+	/** @return The sort value of the last record returned. */
+	public synchronized Object getLastKey() {
+		return mLastKey;
+	}
+
+	/** @return The id of the last record returned, null before the first page. */
+	public synchronized Long getLastId() {
+		return mLastId;
+	}
+
+	/** Continues after the given record, or from the start if lastId is null. */
+	public synchronized void seek(Object lastKey, Long lastId) {
+		mLastKey = lastKey;
+		mLastId = lastId;
+		mDone = false;
+	}
+}
@@ -0,0 +1,184 @@
+package com.openerp.attendances;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.openerp.attendances.OpenERPconn.OpenERPconnException;
+
+/**
+ * Tells browse() which relational fields to load along with the records.
+ * Instead of one read() per row, the ids found in those fields across all
+ * the records are collected and read with one read() per related model.
+ * The related records are then put in each record HashMap under
+ * key(field), before the instances are built, so the class constructor can
+ * pick them up:<br>
+ * <code>
+ * OpenERPPrefetch prefetch = new OpenERPPrefetch(); <br>
+ * prefetch.add("department_id", "hr.department", new String[] { "name" }); <br>
+ * connection.browse("hr.employee", Employee.class, ids, fields, prefetch, employees); <br>
+ * </code> Many2one fields get one related object (or null if empty), one2many
+ * and many2many fields get a List. The related objects are HashMaps, or
+ * instances of the target class if you give one, which must have the same
+ * HashMap constructor browse() requires. If the related model is null it is
+ * taken from fields_get().
+ */
+public class OpenERPPrefetch {
+
+	private static final String KEY_SUFFIX = "_record";
+
+	private final List<Relation> mRelations = new ArrayList<Relation>();
+
+	/** @return The key of the related record(s) in the record HashMap. */
+	public static String key(String field) {
+		return field + KEY_SUFFIX;
+	}
+
+	public OpenERPPrefetch add(String field, String relatedModel, String[] fields) {
+		return add(field, relatedModel, fields, null);
+	}
+
+	public OpenERPPrefetch add(String field, String relatedModel, String[] fields, Class<?> targetClass) {
+		mRelations.add(new Relation(field, relatedModel, fields, targetClass));
+		return this;
+	}
+
+	/** @return The prefetched fields, which must be read with the records. */
+	public List<String> getFields() {
+		List<String> fields = new ArrayList<String>(mRelations.size());
+		for (Relation relation : mRelations) {
+			fields.add(relation.mField);
+		}
+		return fields;
+	}
+
+	/**
+	 * Loads the related records of all the given records and attaches them,
+	 * issuing one read() per related model.
+	 */
+	public void apply(OpenERPconn connection, String model, List<HashMap<String, Object>> records) throws OpenERPconnException {
+		// Group the relations by model, so each model is read only once
+		Map<String, List<Relation>> byModel = new LinkedHashMap<String, List<Relation>>();
+		for (Relation relation : mRelations) {
+			String relatedModel = relation.mModel;
+			if (relatedModel == null) {
+				relatedModel = connection.getRelation(model, relation.mField);
+				if (relatedModel == null) {
+					throw new OpenERPconnException("Unknown relation of field " + model + "." + relation.mField);
+				}
+			}
+			List<Relation> relations = byModel.get(relatedModel);
+			if (relations == null) {
+				relations = new ArrayList<Relation>();
+				byModel.put(relatedModel, relations);
+			}
+			relations.add(relation);
+		}
+
+		for (Map.Entry<String, List<Relation>> entry : byModel.entrySet()) {
+			Set<Long> ids = new LinkedHashSet<Long>();
+			Set<String> fields = new LinkedHashSet<String>();
+			boolean allFields = false;
+			for (Relation relation : entry.getValue()) {
+				for (HashMap<String, Object> record : records) {
+					collectIds(record.get(relation.mField), ids);
+				}
+				if (relation.mFields == null || relation.mFields.length == 0) {
+					allFields = true; // As in read(), no fields means all of them
+				} else {
+					for (String field : relation.mFields) {
+						fields.add(field);
+					}
+				}
+			}
+			if (allFields) {
+				fields.clear();
+			}
+			if (ids.isEmpty()) {
+				for (Relation relation : entry.getValue()) {
+					attach(relation, records, new HashMap<Long, HashMap<String, Object>>());
+				}
+				continue;
+			}
+			List<HashMap<String, Object>> related = connection.read(entry.getKey(), ids.toArray(new Long[ids.size()]), fields.toArray(new String[fields.size()]));
+			if (related == null) {
+				throw new OpenERPconnException("read() of " + entry.getKey() + " returned unexpected null value");
+			}
+			Map<Long, HashMap<String, Object>> relatedById = new HashMap<Long, HashMap<String, Object>>(related.size() * 2);
+			for (HashMap<String, Object> relatedRecord : related) {
+				relatedById.put(((Integer) relatedRecord.get("id")).longValue(), relatedRecord);
+			}
+			for (Relation relation : entry.getValue()) {
+				attach(relation, records, relatedById);
+			}
+		}
+	}
+
+	private void attach(Relation relation, List<HashMap<String, Object>> records, Map<Long, HashMap<String, Object>> relatedById) throws OpenERPconnException {
+		for (HashMap<String, Object> record : records) {
+			Object value = record.get(relation.mField);
+			if (isMany2one(value)) {
+				HashMap<String, Object> related = relatedById.get(((Integer) ((Object[]) value)[0]).longValue());
+				record.put(key(relation.mField), related != null ? relation.newInstance(related) : null);
+			} else if (value instanceof Object[]) {
+				List<Object> relatedList = new ArrayList<Object>(((Object[]) value).length);
+				for (Object id : (Object[]) value) {
+					HashMap<String, Object> related = relatedById.get(((Integer) id).longValue());
+					if (related != null) {
+						relatedList.add(relation.newInstance(related));
+					}
+				}
+				record.put(key(relation.mField), relatedList);
+			} else {
+				// False, the relation is empty
+				record.put(key(relation.mField), null);
+			}
+		}
+	}
+
+	private static void collectIds(Object value, Set<Long> ids) {
+		if (isMany2one(value)) {
+			ids.add(((Integer) ((Object[]) value)[0]).longValue());
+		} else if (value instanceof Object[]) {
+			for (Object id : (Object[]) value) {
+				ids.add(((Integer) id).longValue());
+			}
+		}
+	}
+
+	private static boolean isMany2one(Object value) {
+		return value instanceof Object[] && OpenERPDomain.isMany2one((Object[]) value);
+	}
+
+	private static class Relation {
+
+		private final String mField;
+		private final String mModel;
+		private final String[] mFields;
+		private final Class<?> mTargetClass;
+
+		Relation(String field, String model, String[] fields, Class<?> targetClass) {
+			mField = field;
+			mModel = model;
+			mFields = fields;
+			mTargetClass = targetClass;
+		}
+
+		Object newInstance(HashMap<String, Object> values) throws OpenERPconnException {
+			if (mTargetClass == null) {
+				return values;
+			}
+			try {
+				Constructor<?> constructor = mTargetClass.getConstructor(HashMap.class);
+				return constructor.newInstance(values);
+			} catch (Exception e) {
+				throw new OpenERPconnException(e.toString());
+			}
+		}
+	}
+}
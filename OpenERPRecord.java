@@ -0,0 +1,179 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import com.openerp.attendances.OpenERPconn.OpenERPconnException;
+
+/**
+ * One record of an OpenERPRecordSet. Asking for a field which is not loaded
+ * yet loads it for the whole set, see OpenERPRecordSet.<br>
+ * The values loaded are kept as read, and set() records the edits apart;
+ * save() sends only the fields whose value changed, nothing at all if none
+ * did, and fails with ERROR_CONFLICT if the record was modified on the
+ * server since it was read.
+ */
+public class OpenERPRecord {
+
+	private final OpenERPRecordSet mRecordSet;
+	private final Long mId;
+	private final HashMap<String, Object> mValues = new HashMap<String, Object>();
+	private final HashMap<String, Object> mChanges = new HashMap<String, Object>();
+
+	OpenERPRecord(OpenERPRecordSet recordSet, Long id) {
+		mRecordSet = recordSet;
+		mId = id;
+	}
+
+	public Long getId() {
+		return mId;
+	}
+
+	public OpenERPRecordSet getRecordSet() {
+		return mRecordSet;
+	}
+
+	/**
+	 * @return The value of the field as read() returns it, loading the field
+	 *         for the whole set if needed. Null if it could not be loaded.
+	 */
+	public Object get(String field) {
+		synchronized (mRecordSet) {
+			if (mChanges.containsKey(field)) {
+				return mChanges.get(field);
+			}
+			if (!mValues.containsKey(field)) {
+				mRecordSet.load(field);
+			}
+			return mValues.get(field);
+		}
+	}
+
+	/**
+	 * Changes the value of the field until save(). Many2one fields can be set
+	 * to the id and x2many fields to all their ids.
+	 */
+	public void set(String field, Object value) {
+		synchronized (mRecordSet) {
+			if (mChanges.isEmpty() && !mValues.containsKey(OpenERPconn.LAST_UPDATE_FIELD)) {
+				mRecordSet.load(OpenERPconn.LAST_UPDATE_FIELD); // What the edit is based on
+			}
+			mChanges.put(field, value);
+		}
+	}
+
+	/** @return True if some field was set to a value different from the read one. */
+	public boolean isDirty() {
+		return !getChanges().isEmpty();
+	}
+
+	/** @return The fields which would be sent by save(), as they would be sent. */
+	public HashMap<String, Object> getChanges() {
+		synchronized (mRecordSet) {
+			return OpenERPconn.diff(mValues, mChanges);
+		}
+	}
+
+	/** Forgets the values set since the last save(). */
+	public void revert() {
+		synchronized (mRecordSet) {
+			mChanges.clear();
+		}
+	}
+
+	/**
+	 * Writes the changed fields. The fields saved, like the rest of changes
+	 * made by the server, are read again the next time they are asked for.
+	 * 
+	 * @return False if nothing changed, in which case nothing is sent.
+	 * @throws OpenERPconnException
+	 *             With ERROR_CONFLICT if the record was modified since it was
+	 *             read; the values set are kept, revert() them to start over.
+	 */
+	public boolean save() throws OpenERPconnException {
+		synchronized (mRecordSet) {
+			boolean written = mRecordSet.getConnection().writeChanges(mRecordSet.getModel(), mId, mValues, mChanges);
+			if (written) {
+				for (String field : mChanges.keySet()) {
+					mValues.remove(field);
+				}
+				mValues.remove(OpenERPconn.LAST_UPDATE_FIELD);
+			}
+			mChanges.clear();
+			return written;
+		}
+	}
+
+	/**
+	 * @return The record referenced by a many2one field, or null if it is
+	 *         empty. The related records of the whole set are loaded together.
+	 */
+	public OpenERPRecord getRecord(String field) {
+		List<Long> ids = relatedIds(get(field));
+		OpenERPRecordSet related = mRecordSet.getRelated(field);
+		if (ids.isEmpty() || related == null) {
+			return null;
+		}
+		return related.getById(ids.get(0));
+	}
+
+	/** @return The records referenced by a one2many or many2many field. */
+	public List<OpenERPRecord> getRecords(String field) {
+		List<Long> ids = relatedIds(get(field));
+		OpenERPRecordSet related = mRecordSet.getRelated(field);
+		if (ids.isEmpty() || related == null) {
+			return Collections.emptyList();
+		}
+		List<OpenERPRecord> records = new ArrayList<OpenERPRecord>(ids.size());
+		for (Long id : ids) {
+			records.add(related.getById(id));
+		}
+		return records;
+	}
+
+	public boolean isLoaded(String field) {
+		synchronized (mRecordSet) {
+			return mValues.containsKey(field);
+		}
+	}
+
+	/** @return A copy of the loaded values, without loading anything. */
+	public HashMap<String, Object> getValues() {
+		synchronized (mRecordSet) {
+			HashMap<String, Object> values = new HashMap<String, Object>(mValues);
+			values.put("id", mId.intValue());
+			return values;
+		}
+	}
+
+	/** Called by the set with the read() values, or null if not returned. */
+	void setLoaded(HashMap<String, Object> values, String[] fields) {
+		for (String field : fields) {
+			if (!mValues.containsKey(field)) {
+				mValues.put(field, values != null ? values.get(field) : null);
+			}
+		}
+	}
+
+	/** Many2one values come as [id, name], x2many values as [id, id...] */
+	static List<Long> relatedIds(Object value) {
+		if (!(value instanceof Object[])) {
+			return Collections.emptyList();
+		}
+		Object[] items = (Object[]) value;
+		if (items.length == 2 && items[1] instanceof String) {
+			return Collections.singletonList(((Integer) items[0]).longValue());
+		}
+		List<Long> ids = new ArrayList<Long>(items.length);
+		for (Object id : items) {
+			ids.add(((Integer) id).longValue());
+		}
+		return ids;
+	}
+
+	public String toString() {
+		return mRecordSet.getModel() + "(" + mId + ")";
+	}
+}
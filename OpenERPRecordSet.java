@@ -0,0 +1,144 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records of one model whose fields are loaded on demand. Only the fields
+ * given to OpenERPconn.browseLazy() are read up front; the first time a
+ * record is asked for any other field, that field is read for every record
+ * of the set which does not have it yet, with a single read(). So iterating
+ * over the set and accessing the same field costs one request, not one per
+ * record.<br>
+ * Relational fields can be followed with OpenERPRecord.getRecord() and
+ * getRecords(), which build a lazy set with the related records of the whole
+ * set, so the next model is loaded in batches as well.<br>
+ * The set is thread safe, but it keeps the values for as long as you keep
+ * it, so do not hold it longer than the screen using it.
+ */
+public class OpenERPRecordSet implements Iterable<OpenERPRecord> {
+
+	private final OpenERPconn mConnection;
+	private final String mModel;
+	private final List<OpenERPRecord> mRecords;
+	private final Map<Long, OpenERPRecord> mRecordsById;
+	private final Map<String, OpenERPRecordSet> mRelated = new HashMap<String, OpenERPRecordSet>();
+
+	OpenERPRecordSet(OpenERPconn connection, String model, Long[] ids) {
+		mConnection = connection;
+		mModel = model;
+		mRecords = new ArrayList<OpenERPRecord>(ids.length);
+		mRecordsById = new HashMap<Long, OpenERPRecord>(ids.length * 2);
+		for (Long id : ids) {
+			OpenERPRecord record = mRecordsById.get(id);
+			if (record == null) {
+				record = new OpenERPRecord(this, id);
+				mRecordsById.put(id, record);
+			}
+			mRecords.add(record);
+		}
+	}
+
+	public String getModel() {
+		return mModel;
+	}
+
+	public OpenERPconn getConnection() {
+		return mConnection;
+	}
+
+	public int size() {
+		return mRecords.size();
+	}
+
+	public OpenERPRecord get(int index) {
+		return mRecords.get(index);
+	}
+
+	/** @return The record with the id, or null if it is not in the set. */
+	public OpenERPRecord getById(Long id) {
+		return mRecordsById.get(id);
+	}
+
+	public Long[] getIds() {
+		Long[] ids = new Long[mRecords.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = mRecords.get(i).getId();
+		}
+		return ids;
+	}
+
+	public Iterator<OpenERPRecord> iterator() {
+		return Collections.unmodifiableList(mRecords).iterator();
+	}
+
+	/**
+	 * Reads the fields for the records which do not have them yet, in a
+	 * single read(). Use it when you know you will need several fields, so
+	 * they come in one request instead of one per field.
+	 *
+	 * @return False if the read failed.
+	 */
+	public synchronized boolean load(String... fields) {
+		Set<Long> ids = new LinkedHashSet<Long>();
+		for (OpenERPRecord record : mRecordsById.values()) {
+			for (String field : fields) {
+				if (!record.isLoaded(field)) {
+					ids.add(record.getId());
+					break;
+				}
+			}
+		}
+		if (ids.isEmpty()) {
+			return true;
+		}
+		if (!Arrays.asList(fields).contains(OpenERPconn.LAST_UPDATE_FIELD)) {
+			// The base of the conflict check of OpenERPRecord.save()
+			fields = Arrays.copyOf(fields, fields.length + 1);
+			fields[fields.length - 1] = OpenERPconn.LAST_UPDATE_FIELD;
+		}
+		List<HashMap<String, Object>> values = mConnection.read(mModel, ids.toArray(new Long[ids.size()]), fields);
+		if (values == null) {
+			return false;
+		}
+		for (HashMap<String, Object> recordValues : values) {
+			OpenERPRecord record = mRecordsById.get(((Integer) recordValues.get("id")).longValue());
+			if (record != null) {
+				record.setLoaded(recordValues, fields);
+			}
+		}
+		// Records the server did not return (e.g. deleted) are not read again
+		for (Long id : ids) {
+			mRecordsById.get(id).setLoaded(null, fields);
+		}
+		return true;
+	}
+
+	/**
+	 * @return A lazy set with the records referenced by the relational field
+	 *         in any record of this set, built once per field.
+	 */
+	synchronized OpenERPRecordSet getRelated(String field) {
+		OpenERPRecordSet related = mRelated.get(field);
+		if (related == null) {
+			String relatedModel = mConnection.getRelation(mModel, field);
+			if (relatedModel == null || !load(field)) {
+				return null;
+			}
+			Set<Long> ids = new LinkedHashSet<Long>();
+			for (OpenERPRecord record : mRecords) {
+				ids.addAll(OpenERPRecord.relatedIds(record.get(field)));
+			}
+			related = new OpenERPRecordSet(mConnection, relatedModel, ids.toArray(new Long[ids.size()]));
+			mRelated.put(field, related);
+		}
+		return related;
+	}
+}
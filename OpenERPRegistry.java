@@ -0,0 +1,205 @@
+package com.openerp.attendances;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares connections among the requests of a process serving many
+ * databases or users, e.g. a gateway proxying the attendances of several
+ * companies. Each (server, port, database, user) is a Tenant holding one
+ * OpenERPconn, so the login is done once and the session uid and the caches
+ * of the connection are shared. Each tenant keeps its own OpenERPTransport,
+ * also across new logins, so its tracer or compression settings do not
+ * change the other tenants of the same server.<br>
+ * Work submitted through submit() runs on the registry worker threads. Each
+ * tenant runs at most maxConcurrency tasks at the same time and the workers
+ * take the queued tasks of the tenants in turns, so a busy tenant can not
+ * starve the rest.
+ */
+public class OpenERPRegistry {
+
+	private final int mDefaultMaxConcurrency;
+	private final Map<String, Tenant> mTenants = new HashMap<String, Tenant>();
+
+	/** All the tenants, rotated on every dispatch for round-robin */
+	private final ArrayDeque<Tenant> mRing = new ArrayDeque<Tenant>();
+	private final Object mLock = new Object();
+	private final List<Thread> mWorkers = new ArrayList<Thread>();
+	private boolean mShutdown;
+
+	/**
+	 * @param workers
+	 *            Threads running the submitted tasks, for all the tenants.
+	 * @param defaultMaxConcurrency
+	 *            Tasks of one tenant running at the same time, unless changed
+	 *            with Tenant.setMaxConcurrency().
+	 */
+	public OpenERPRegistry(int workers, int defaultMaxConcurrency) {
+		mDefaultMaxConcurrency = defaultMaxConcurrency;
+		for (int i = 0; i < workers; i++) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "OpenERPRegistry-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			mWorkers.add(worker);
+		}
+	}
+
+	/**
+	 * @return The tenant for those parameters, logging in the first time or
+	 *         if the password changed. Null if the login failed.
+	 */
+	public Tenant getTenant(String server, Integer port, String db, String user, String pass) {
+		String key = server + ":" + port + "/" + db + "/" + user;
+		Tenant tenant;
+		synchronized (mTenants) {
+			tenant = mTenants.get(key);
+			if (tenant != null && pass.equals(tenant.mConnection.getPassword())) {
+				return tenant;
+			}
+		}
+		OpenERPconn connection = OpenERPconn.connect(server, port, db, user, pass);
+		if (connection == null) {
+			return null;
+		}
+		synchronized (mTenants) {
+			tenant = mTenants.get(key);
+			if (tenant != null) {
+				// Keeps the tracer and compression set on the tenant
+				connection.setTransport(tenant.mConnection.getTransport());
+			} else {
+				tenant = new Tenant(key, mDefaultMaxConcurrency);
+				mTenants.put(key, tenant);
+				synchronized (mLock) {
+					mRing.add(tenant);
+				}
+			}
+			tenant.mConnection = connection;
+		}
+		return tenant;
+	}
+
+	/** Queues the task to run with the tenant's concurrency limit. */
+	public <T> Future<T> submit(Tenant tenant, Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		synchronized (mLock) {
+			if (mShutdown) {
+				throw new IllegalStateException("The registry is shut down");
+			}
+			tenant.mQueue.add(future);
+			mLock.notifyAll();
+		}
+		return future;
+	}
+
+	/** Stops the workers, queued tasks which did not start are cancelled. */
+	public void shutdown() {
+		synchronized (mLock) {
+			mShutdown = true;
+			for (Tenant tenant : mRing) {
+				for (FutureTask<?> task : tenant.mQueue) {
+					task.cancel(false);
+				}
+				tenant.mQueue.clear();
+			}
+			mLock.notifyAll();
+		}
+	}
+
+	private void work() {
+		while (true) {
+			Tenant tenant;
+			FutureTask<?> task;
+			synchronized (mLock) {
+				tenant = null;
+				while (!mShutdown && (tenant = nextTenant()) == null) {
+					try {
+						mLock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (mShutdown) {
+					return;
+				}
+				task = tenant.mQueue.poll();
+				tenant.mRunning++;
+			}
+			try {
+				task.run();
+			} finally {
+				synchronized (mLock) {
+					tenant.mRunning--;
+					mLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/** @return The next tenant in turn with queued work and a free slot. */
+	private Tenant nextTenant() {
+		for (int i = mRing.size(); i > 0; i--) {
+			Tenant tenant = mRing.poll();
+			mRing.add(tenant);
+			if (!tenant.mQueue.isEmpty() && tenant.mRunning < tenant.mMaxConcurrency) {
+				return tenant;
+			}
+		}
+		return null;
+	}
+
+	public class Tenant {
+
+		private final String mKey;
+		private volatile OpenERPconn mConnection;
+		private int mMaxConcurrency;
+		private int mRunning;
+		private final ArrayDeque<FutureTask<?>> mQueue = new ArrayDeque<FutureTask<?>>();
+
+		Tenant(String key, int maxConcurrency) {
+			mKey = key;
+			mMaxConcurrency = maxConcurrency;
+		}
+
+		/** @return The shared connection, use it within submitted tasks. */
+		public OpenERPconn getConnection() {
+			return mConnection;
+		}
+
+		public void setMaxConcurrency(int maxConcurrency) {
+			synchronized (mLock) {
+				mMaxConcurrency = maxConcurrency;
+				mLock.notifyAll();
+			}
+		}
+
+		public int getQueued() {
+			synchronized (mLock) {
+				return mQueue.size();
+			}
+		}
+
+		public int getRunning() {
+			synchronized (mLock) {
+				return mRunning;
+			}
+		}
+
+		public <T> Future<T> submit(Callable<T> task) {
+			return OpenERPRegistry.this.submit(this, task);
+		}
+
+		public String toString() {
+			return mKey;
+		}
+	}
+}
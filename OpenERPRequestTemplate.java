@@ -0,0 +1,139 @@
+package com.openerp.attendances;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * The bytes of a method call up to its last constant parameter, serialized
+ * once. Every execute() starts with the same database, uid, password, model
+ * and method, so OpenERPconn keeps a template per model and method and only
+ * the trailing parameters are serialized on each call. The result is byte
+ * for byte the same as serializing the whole call; run main() to check it
+ * with a set of typical calls.
+ */
+final class OpenERPRequestTemplate {
+
+	private static final String CHARSET = "UTF-8";
+	private static final byte[] SUFFIX;
+
+	static {
+		try {
+			SUFFIX = OpenERPXmlWriter.METHOD_CALL_END.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private final String mMethod;
+	private final Object[] mLeadingParams;
+	private final byte[] mPrefix;
+
+	OpenERPRequestTemplate(String method, Object... leadingParams) throws IOException {
+		mMethod = method;
+		mLeadingParams = leadingParams.clone();
+		ByteArrayOutputStream prefix = new ByteArrayOutputStream(256);
+		Writer writer = new OutputStreamWriter(prefix, CHARSET);
+		OpenERPXmlWriter xmlWriter = new OpenERPXmlWriter(writer);
+		xmlWriter.writeMethodCallStart(method);
+		xmlWriter.writeParams(mLeadingParams);
+		writer.flush();
+		mPrefix = prefix.toByteArray();
+	}
+
+	String getMethod() {
+		return mMethod;
+	}
+
+	/**
+	 * @return True if the template starts with these three parameters, false
+	 *         e.g. after the password of the connection changed.
+	 */
+	boolean matches(Object first, Object second, Object third) {
+		return mLeadingParams.length >= 3 && equal(mLeadingParams[0], first) && equal(mLeadingParams[1], second) && equal(mLeadingParams[2], third);
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/** @return The leading parameters followed by the given ones. */
+	Object[] allParams(Object[] params) {
+		Object[] all = new Object[mLeadingParams.length + params.length];
+		System.arraycopy(mLeadingParams, 0, all, 0, mLeadingParams.length);
+		System.arraycopy(params, 0, all, mLeadingParams.length, params.length);
+		return all;
+	}
+
+	/** Writes the whole call, serializing only the trailing parameters. */
+	void writeTo(OpenERPBufferPool pool, OutputStream out, Object[] params) throws IOException {
+		out.write(mPrefix);
+		Writer writer = pool.takeWriter(out);
+		OpenERPXmlWriter xmlWriter = pool.takeXmlWriter(writer);
+		try {
+			xmlWriter.writeParams(params);
+		} finally {
+			pool.giveXmlWriter(xmlWriter);
+			writer.close();
+		}
+		out.write(SUFFIX);
+	}
+
+	/** Serializes the whole call the usual way, to compare with writeTo(). */
+	byte[] writeFull(Object[] params) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+		Writer writer = new OutputStreamWriter(out, CHARSET);
+		new OpenERPXmlWriter(writer).writeMethodCall(mMethod, allParams(params));
+		writer.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Checks that the template gives the same bytes as a full serialization
+	 * for a few typical execute() calls, and prints the first difference of
+	 * each call which does not.
+	 */
+	public static void main(String[] args) throws IOException {
+		OpenERPRequestTemplate template = new OpenERPRequestTemplate("execute", "attendances", 1, "p&ss<word>", "hr.attendance", "search");
+		HashMap<String, Object> values = new HashMap<String, Object>();
+		values.put("name", "Jos\u00e9 \u00d1\u00fa\u00f1ez \ud83d\ude00 & <Co>");
+		values.put("action", "sign_in");
+		values.put("employee_id", 42L);
+		values.put("worked_hours", 7.5);
+		values.put("active", Boolean.TRUE);
+		values.put("date", new Date(1792396800000L));
+		values.put("tag_ids", new Object[] { new Object[] { 6, 0, new Object[] { 1, 2, 3 } } });
+		values.put("note", null);
+		values.put("photo", new byte[] { 0, 1, 2, (byte) 0xff });
+		Object[][] calls = {
+				{},
+				{ new Object[0] },
+				{ new Object[] { new Object[] { "employee_id", "in", new Object[] { 1, 2, 3 } }, "|", new Object[] { "name", ">=", "2026-10-19 00:00:00" } }, 0, 80, "name desc" },
+				{ new Long[] { 1L, 2L, 5000000000L }, new String[] { "name", "action" } },
+				{ new Long[] { 7L }, values, new HashMap<String, Object>() },
+				{ new Object[] { "a\r\nb", "\t", "\u00e1".toUpperCase(), "", new Object[0] } } };
+		OpenERPBufferPool pool = OpenERPBufferPool.get();
+		int failed = 0;
+		for (Object[] params : calls) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+			template.writeTo(pool, out, params);
+			byte[] templated = out.toByteArray();
+			byte[] full = template.writeFull(params);
+			if (!Arrays.equals(templated, full)) {
+				int i = 0;
+				while (i < templated.length && i < full.length && templated[i] == full[i]) {
+					i++;
+				}
+				System.out.println("Different at byte " + i + " of " + Arrays.asList(params) + ": " + new String(full, CHARSET));
+				failed++;
+			}
+		}
+		System.out.println(calls.length - failed + " of " + calls.length + " calls byte-identical");
+	}
+}
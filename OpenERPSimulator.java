@@ -0,0 +1,621 @@
+package com.openerp.attendances;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.xmlrpc.android.XMLRPCException;
+
+/**
+ * Stand-in OpenERP server on localhost, to load test the attendance kiosks
+ * without touching production, and a Driver which simulates many kiosks
+ * against it (or against any server) and reports the throughput and the
+ * latency percentiles.<br>
+ * The server answers login, check_connectivity and version of the common
+ * service, list of the db service, and the methods of
+ * control.horario.register used by OpenERPconn: register_attendance,
+ * getRegistersbyDate, getRangeDates_today, _yesterday, _this_week and
+ * _this_month, getLastRegisterToday, validate_register and
+ * module_installed, plus the batch method set with setBatchMethod(). Any
+ * other method answers the fault OpenERP gives for unknown methods. Attendances are kept in memory, alternating sign_in and
+ * sign_out for each employee.<br>
+ * Every call waits a random latency between the configured bounds, a
+ * faultRate share of them answer a fault and a dropRate share close the
+ * connection without answering. setWorkers() limits the calls served at the
+ * same time, like the worker processes of the real server.<br>
+ * Run main() for a quick test: kiosks, seconds, min and max latency in ms,
+ * fault rate.
+ */
+public class OpenERPSimulator {
+
+	public static final String MODEL = "control.horario.register";
+
+	private final ServerSocket mServerSocket;
+	private final ExecutorService mExecutor;
+	private final Random mRandom = new Random();
+	private volatile long mMinLatencyMillis;
+	private volatile long mMaxLatencyMillis;
+	private volatile double mFaultRate;
+	private volatile double mDropRate;
+	private volatile Semaphore mWorkers;
+	private volatile String mBatchMethod;
+
+	private final String[] mDatabases;
+	private final HashMap<String, String> mPasswords = new HashMap<String, String>();
+	private final HashMap<String, Integer> mUserIds = new HashMap<String, Integer>();
+	private final Set<String> mModules = new HashSet<String>(Arrays.asList("hr", "hr_attendance"));
+	private final HashMap<Integer, List<HashMap<String, Object>>> mRegisters = new HashMap<Integer, List<HashMap<String, Object>>>();
+	private int mNextRegisterId = 1;
+	private long mCalls;
+	private volatile boolean mStopped;
+
+	/**
+	 * Starts serving.
+	 *
+	 * @param port
+	 *            0 for any free port, see getPort().
+	 * @param databases
+	 *            Names returned by list, the users log in to any of them.
+	 */
+	public OpenERPSimulator(int port, String... databases) throws IOException {
+		mDatabases = databases;
+		mServerSocket = new ServerSocket(port, 64, InetAddress.getByName("127.0.0.1"));
+		mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "OpenERPSimulator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		addUser("admin", "admin", 1);
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				accept();
+			}
+		});
+	}
+
+	public int getPort() {
+		return mServerSocket.getLocalPort();
+	}
+
+	public synchronized void addUser(String login, String password, int uid) {
+		mPasswords.put(login, password);
+		mUserIds.put(login, uid);
+	}
+
+	/** Modules module_installed says are installed, hr_attendance by default. */
+	public synchronized void setModules(String... modules) {
+		mModules.clear();
+		mModules.addAll(Arrays.asList(modules));
+	}
+
+	public void setLatency(long minMillis, long maxMillis) {
+		mMinLatencyMillis = minMillis;
+		mMaxLatencyMillis = Math.max(minMillis, maxMillis);
+	}
+
+	/** Share of the calls, from 0 to 1, answered with a fault. */
+	public void setFaultRate(double faultRate) {
+		mFaultRate = faultRate;
+	}
+
+	/** Share of the calls, from 0 to 1, whose connection is just closed. */
+	public void setDropRate(double dropRate) {
+		mDropRate = dropRate;
+	}
+
+	/**
+	 * Also answers this method of control.horario.register, which registers
+	 * a list of employee ids and returns one boolean per id, as a server
+	 * module would for OpenERPAttendanceAggregator.setBatchMethod(). Null
+	 * (the default) for none.
+	 */
+	public void setBatchMethod(String method) {
+		mBatchMethod = method;
+	}
+
+	/** Calls served at the same time, the rest wait. 0 for no limit. */
+	public void setWorkers(int workers) {
+		mWorkers = workers > 0 ? new Semaphore(workers, true) : null;
+	}
+
+	public synchronized long getCalls() {
+		return mCalls;
+	}
+
+	/** @return The attendances registered for the employee, oldest first. */
+	public synchronized List<HashMap<String, Object>> getRegisters(int employeeId) {
+		List<HashMap<String, Object>> registers = mRegisters.get(employeeId);
+		return registers != null ? new ArrayList<HashMap<String, Object>>(registers) : new ArrayList<HashMap<String, Object>>();
+	}
+
+	public void stop() {
+		mStopped = true;
+		try {
+			mServerSocket.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		mExecutor.shutdownNow();
+	}
+
+	private void accept() {
+		while (!mStopped) {
+			final Socket socket;
+			try {
+				socket = mServerSocket.accept();
+			} catch (IOException e) {
+				return; // Stopped
+			}
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					serve(socket);
+				}
+			});
+		}
+	}
+
+	/** Serves the requests of a kept alive connection until it is closed. */
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while (!mStopped) {
+				String requestLine = readLine(in);
+				if (requestLine == null) {
+					return;
+				}
+				int contentLength = 0;
+				boolean close = false;
+				String header;
+				while ((header = readLine(in)) != null && header.length() > 0) {
+					String lower = header.toLowerCase(Locale.US);
+					if (lower.startsWith("content-length:")) {
+						contentLength = Integer.parseInt(header.substring(15).trim());
+					} else if (lower.startsWith("connection:") && lower.contains("close")) {
+						close = true;
+					}
+				}
+				byte[] body = new byte[contentLength];
+				int read = 0;
+				while (read < contentLength) {
+					int count = in.read(body, read, contentLength - read);
+					if (count < 0) {
+						return;
+					}
+					read += count;
+				}
+				String[] parts = requestLine.split(" ");
+				byte[] response = handle(parts.length > 1 ? parts[1] : "/", body);
+				if (response == null) {
+					return; // Dropped
+				}
+				byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nContent-Length: " + response.length + "\r\n" + (close ? "Connection: close\r\n" : "") + "\r\n")
+						.getBytes("US-ASCII");
+				// In one write, a second small segment would wait for the delayed ACK
+				byte[] packet = Arrays.copyOf(head, head.length + response.length);
+				System.arraycopy(response, 0, packet, head.length, response.length);
+				out.write(packet);
+				out.flush();
+				if (close) {
+					return;
+				}
+			}
+		} catch (SocketException e) {
+			// Closed by the client
+		} catch (IOException e) {
+			// Broken request, the connection is closed
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				return line.length() > 0 ? line.toString() : null;
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+	/** @return The response body, null to drop the connection. */
+	private byte[] handle(String path, byte[] body) throws IOException {
+		Semaphore workers = mWorkers;
+		if (workers != null) {
+			workers.acquireUninterruptibly();
+		}
+		try {
+			long latency;
+			double dice;
+			synchronized (mRandom) {
+				latency = mMinLatencyMillis + (long) (mRandom.nextDouble() * (mMaxLatencyMillis - mMinLatencyMillis));
+				dice = mRandom.nextDouble();
+			}
+			if (latency > 0) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+			synchronized (this) {
+				mCalls++;
+			}
+			if (dice < mDropRate) {
+				return null;
+			}
+			ByteArrayOutputStream response = new ByteArrayOutputStream(512);
+			Writer writer = new OutputStreamWriter(response, "UTF-8");
+			OpenERPXmlWriter xmlWriter = new OpenERPXmlWriter(writer);
+			try {
+				Object[] call = new OpenERPXmlReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"), null).readMethodCall();
+				if (dice < mDropRate + mFaultRate) {
+					throw new SimulatedFault("Simulated failure");
+				}
+				xmlWriter.writeMethodResponse(dispatch(path, (String) call[0], Arrays.copyOfRange(call, 1, call.length)));
+			} catch (SimulatedFault e) {
+				xmlWriter.writeFault(e.getMessage(), "Traceback (most recent call last):\n  ...\n" + e.getMessage());
+			} catch (XMLRPCException e) {
+				xmlWriter.writeFault("Malformed request", e.toString());
+			} catch (RuntimeException e) {
+				xmlWriter.writeFault(e.toString(), e.toString()); // Bad parameters
+			}
+			return response.toByteArray();
+		} finally {
+			if (workers != null) {
+				workers.release();
+			}
+		}
+	}
+
+	private Object dispatch(String path, String method, Object[] params) throws SimulatedFault {
+		if (path.endsWith("/common")) {
+			if (method.equals("login")) {
+				Integer uid = authenticate((String) params[1], (String) params[2]);
+				return uid != null ? uid : (Object) Boolean.FALSE;
+			} else if (method.equals("check_connectivity")) {
+				return true;
+			} else if (method.equals("version")) {
+				return "7.0-simulator";
+			}
+		} else if (path.endsWith("/db")) {
+			if (method.equals("list")) {
+				return mDatabases;
+			}
+		} else if (path.endsWith("/object") && method.equals("execute")) {
+			Integer uid = (Integer) params[1];
+			String password = (String) params[2];
+			if (!isUser(uid, password)) {
+				throw new SimulatedFault("AccessDenied");
+			}
+			String model = (String) params[3];
+			String modelMethod = (String) params[4];
+			Object[] args = Arrays.copyOfRange(params, 5, params.length);
+			if (model.equals(MODEL)) {
+				return execute(modelMethod, args);
+			}
+			throw new SimulatedFault("Object " + model + " doesn't exist");
+		}
+		throw new SimulatedFault("Method not available " + method);
+	}
+
+	private Object execute(String method, Object[] args) throws SimulatedFault {
+		if (method.equals("register_attendance")) {
+			return register((Integer) args[0]);
+		} else if (method.equals(mBatchMethod)) {
+			Object[] employeeIds = (Object[]) args[0];
+			Object[] registered = new Object[employeeIds.length];
+			for (int i = 0; i < employeeIds.length; i++) {
+				registered[i] = register((Integer) employeeIds[i]);
+			}
+			return registered;
+		} else if (method.equals("getLastRegisterToday")) {
+			List<HashMap<String, Object>> registers = getRegisters((Integer) args[0]);
+			Date today = startOfDay(0);
+			for (int i = registers.size() - 1; i >= 0; i--) {
+				if (!((Date) registers.get(i).get("date")).before(today)) {
+					return toResult(registers.get(i));
+				}
+			}
+			return new HashMap<String, Object>();
+		} else if (method.equals("getRegistersbyDate")) {
+			return registersBetween((Integer) args[2], (String) args[0], (String) args[1]);
+		} else if (method.equals("getRangeDates_today")) {
+			return range(startOfDay(0), startOfDay(1));
+		} else if (method.equals("getRangeDates_yesterday")) {
+			return range(startOfDay(-1), startOfDay(0));
+		} else if (method.equals("getRangeDates_this_week")) {
+			Calendar calendar = Calendar.getInstance();
+			int fromMonday = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+			return range(startOfDay(-fromMonday), startOfDay(7 - fromMonday));
+		} else if (method.equals("getRangeDates_this_month")) {
+			Calendar calendar = Calendar.getInstance();
+			int day = calendar.get(Calendar.DAY_OF_MONTH);
+			return range(startOfDay(1 - day), startOfDay(calendar.getActualMaximum(Calendar.DAY_OF_MONTH) - day + 1));
+		} else if (method.equals("validate_register")) {
+			return true;
+		} else if (method.equals("module_installed")) {
+			synchronized (this) {
+				return mModules.contains(args[0]);
+			}
+		}
+		throw new SimulatedFault("'" + MODEL + "' object has no attribute '" + method + "'");
+	}
+
+	private synchronized Integer authenticate(String login, String password) {
+		return password != null && password.equals(mPasswords.get(login)) ? mUserIds.get(login) : null;
+	}
+
+	private synchronized boolean isUser(Integer uid, String password) {
+		for (String login : mUserIds.keySet()) {
+			if (mUserIds.get(login).equals(uid) && mPasswords.get(login).equals(password)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized boolean register(int employeeId) {
+		List<HashMap<String, Object>> registers = mRegisters.get(employeeId);
+		if (registers == null) {
+			registers = new ArrayList<HashMap<String, Object>>();
+			mRegisters.put(employeeId, registers);
+		}
+		boolean signIn = registers.isEmpty() || "sign_out".equals(registers.get(registers.size() - 1).get("action"));
+		HashMap<String, Object> register = new HashMap<String, Object>();
+		register.put("id", mNextRegisterId++);
+		register.put("employee_id", employeeId);
+		register.put("action", signIn ? "sign_in" : "sign_out");
+		register.put("date", new Date());
+		registers.add(register);
+		return true;
+	}
+
+	private HashMap<String, Object> registersBetween(int employeeId, String from, String to) {
+		List<Object> found = new ArrayList<Object>();
+		for (HashMap<String, Object> register : getRegisters(employeeId)) {
+			String name = format((Date) register.get("date"));
+			if (name.compareTo(from) >= 0 && name.compareTo(to) <= 0) {
+				found.add(toResult(register));
+			}
+		}
+		HashMap<String, Object> result = new HashMap<String, Object>();
+		result.put("registers", found.toArray());
+		return result;
+	}
+
+	/** As the server sends it, with the date as a String in name */
+	private static HashMap<String, Object> toResult(HashMap<String, Object> register) {
+		HashMap<String, Object> result = new HashMap<String, Object>();
+		result.put("id", register.get("id"));
+		result.put("employee_id", register.get("employee_id"));
+		result.put("action", register.get("action"));
+		result.put("name", format((Date) register.get("date")));
+		return result;
+	}
+
+	private static HashMap<String, Object> range(Date from, Date to) {
+		HashMap<String, Object> range = new HashMap<String, Object>();
+		range.put("date_from", from);
+		range.put("date_to", new Date(to.getTime() - 1000));
+		return range;
+	}
+
+	private static Date startOfDay(int days) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.DAY_OF_MONTH, days);
+		return calendar.getTime();
+	}
+
+	private static String format(Date date) {
+		return OpenERPDateCodec.formatServer(date.getTime(), false);
+	}
+
+	private static class SimulatedFault extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		SimulatedFault(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Simulates kiosks, each on its own thread with its own connection, which
+	 * register a punch of a random employee and then read its last register,
+	 * as the kiosk screen does, with thinkMillis between punches.
+	 */
+	public static class Driver {
+
+		private final String mServer;
+		private final int mPort;
+		private final String mDatabase;
+		private final String mUser;
+		private final String mPassword;
+		private int mEmployees = 200;
+		private long mThinkMillis;
+
+		public Driver(String server, int port, String db, String user, String pass) {
+			mServer = server;
+			mPort = port;
+			mDatabase = db;
+			mUser = user;
+			mPassword = pass;
+		}
+
+		/** Employee ids punched, from 1 to employees. */
+		public Driver setEmployees(int employees) {
+			mEmployees = employees;
+			return this;
+		}
+
+		public Driver setThinkMillis(long thinkMillis) {
+			mThinkMillis = thinkMillis;
+			return this;
+		}
+
+		/** Runs the kiosks for the duration and blocks until they stop. */
+		public Report run(int kiosks, final long durationMillis) throws InterruptedException {
+			final Report report = new Report();
+			final long end = System.currentTimeMillis() + durationMillis;
+			List<Thread> threads = new ArrayList<Thread>(kiosks);
+			for (int i = 0; i < kiosks; i++) {
+				final Random random = new Random(i);
+				Thread kiosk = new Thread(new Runnable() {
+					public void run() {
+						runKiosk(random, end, report);
+					}
+				}, "Kiosk-" + i);
+				threads.add(kiosk);
+				kiosk.start();
+			}
+			for (Thread kiosk : threads) {
+				kiosk.join();
+			}
+			report.mElapsedMillis = durationMillis;
+			return report;
+		}
+
+		private void runKiosk(Random random, long end, Report report) {
+			OpenERPconn connection = OpenERPconn.connect(mServer, mPort, mDatabase, mUser, mPassword);
+			if (connection == null) {
+				report.add(0, false);
+				return;
+			}
+			List<Long> latencies = new ArrayList<Long>();
+			int errors = 0;
+			while (System.currentTimeMillis() < end) {
+				int employeeId = 1 + random.nextInt(mEmployees);
+				long start = System.currentTimeMillis();
+				boolean registered = call(connection, "register_attendance", employeeId) != null;
+				long middle = System.currentTimeMillis();
+				latencies.add(middle - start);
+				boolean read = call(connection, "getLastRegisterToday", employeeId) != null;
+				latencies.add(System.currentTimeMillis() - middle);
+				errors += (registered ? 0 : 1) + (read ? 0 : 1);
+				if (mThinkMillis > 0) {
+					try {
+						Thread.sleep(mThinkMillis);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+			report.add(latencies, errors);
+		}
+
+		/** The public methods hide the errors, the report needs them */
+		private static Object call(OpenERPconn connection, String method, Object... params) {
+			try {
+				return connection.execute(MODEL, method, params);
+			} catch (XMLRPCException e) {
+				return null;
+			}
+		}
+	}
+
+	public static class Report {
+
+		private final List<Long> mLatencies = new ArrayList<Long>();
+		private int mErrors;
+		private long mElapsedMillis;
+
+		synchronized void add(long latency, boolean ok) {
+			mLatencies.add(latency);
+			if (!ok) {
+				mErrors++;
+			}
+		}
+
+		synchronized void add(List<Long> latencies, int errors) {
+			mLatencies.addAll(latencies);
+			mErrors += errors;
+		}
+
+		public synchronized int getCalls() {
+			return mLatencies.size();
+		}
+
+		public synchronized int getErrors() {
+			return mErrors;
+		}
+
+		/** @return Calls per second. */
+		public synchronized double getThroughput() {
+			return mElapsedMillis > 0 ? mLatencies.size() * 1000.0 / mElapsedMillis : 0;
+		}
+
+		/** @return The latency under which the share of the calls finished. */
+		public synchronized long getPercentile(double share) {
+			if (mLatencies.isEmpty()) {
+				return 0;
+			}
+			List<Long> sorted = new ArrayList<Long>(mLatencies);
+			Collections.sort(sorted);
+			int index = (int) Math.ceil(share * sorted.size()) - 1;
+			return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+		}
+
+		public String toString() {
+			return getCalls() + " calls, " + getErrors() + " errors, " + String.format(Locale.US, "%.1f", getThroughput()) + " calls/s, p50 " + getPercentile(0.5) + " ms, p99 "
+					+ getPercentile(0.99) + " ms";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int kiosks = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+		long minLatency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+		long maxLatency = args.length > 3 ? Long.parseLong(args[3]) : 80;
+		double faultRate = args.length > 4 ? Double.parseDouble(args[4]) : 0.01;
+		OpenERPSimulator simulator = new OpenERPSimulator(0, "simulation");
+		simulator.setLatency(minLatency, maxLatency);
+		simulator.setFaultRate(faultRate);
+		try {
+			Report report = new Driver("127.0.0.1", simulator.getPort(), "simulation", "admin", "admin").run(kiosks, seconds * 1000);
+			System.out.println(kiosks + " kiosks for " + seconds + " s: " + report);
+		} finally {
+			simulator.stop();
+		}
+	}
+}
@@ -0,0 +1,439 @@
+package com.openerp.attendances;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * What the app asks the server on launch (database list, session uid, module
+ * flags, validate_register and hot records such as the employee list), saved
+ * in a compact binary file after a successful session so the next launch can
+ * render from it at once while a background refresh runs.<br>
+ * The file starts with a magic number and a format version and ends with a
+ * CRC32 of its content. read() returns null, never a half read snapshot, if
+ * the file is missing, corrupt, of another version, older than maxAgeMillis
+ * or saved for another server, database or user. The password is never
+ * saved: connect() takes it from wherever the app keeps it.
+ */
+public class OpenERPSnapshot {
+
+	private static final int MAGIC = 0x4f45534e; // "OESN"
+	private static final int VERSION = 1;
+
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_INT = 2;
+	private static final byte TYPE_LONG = 3;
+	private static final byte TYPE_BOOLEAN = 4;
+	private static final byte TYPE_DOUBLE = 5;
+	private static final byte TYPE_DATE = 6;
+	private static final byte TYPE_ARRAY = 7;
+	private static final byte TYPE_MAP = 8;
+
+	private final String mServer;
+	private final int mPort;
+	private final String mDatabase;
+	private final String mUserName;
+	private final Integer mUserId;
+	private long mSavedAt;
+	private String[] mDatabases = new String[0];
+	private String mValidateRegister;
+	private final LinkedHashMap<String, Boolean> mModules = new LinkedHashMap<String, Boolean>();
+	private final LinkedHashMap<String, List<HashMap<String, Object>>> mRecords = new LinkedHashMap<String, List<HashMap<String, Object>>>();
+
+	public OpenERPSnapshot(String server, int port, String db, String user, Integer uid) {
+		mServer = server;
+		mPort = port;
+		mDatabase = db;
+		mUserName = user;
+		mUserId = uid;
+	}
+
+	/** A snapshot of the session of the connection, without data yet. */
+	public OpenERPSnapshot(OpenERPconn connection) {
+		this(connection.getServer(), connection.getPort(), connection.getDatabase(), connection.getUserName(), connection.getUserId());
+	}
+
+	/**
+	 * Asks the server for the database list, whether each module is installed
+	 * and validate_register, like the app does on launch. Add the hot records
+	 * with putRecords() and then write() it.
+	 */
+	public static OpenERPSnapshot capture(OpenERPconn connection, String... modules) {
+		OpenERPSnapshot snapshot = new OpenERPSnapshot(connection);
+		snapshot.setDatabases(OpenERPconn.getDatabaseList(connection.getServer(), connection.getPort()));
+		for (String module : modules) {
+			snapshot.putModule(module, connection.Module_Installed(module));
+		}
+		snapshot.setValidateRegister(connection.ValidateRegister());
+		return snapshot;
+	}
+
+	/**
+	 * @return A connection for the saved session, without logging in again, or
+	 *         null if the snapshot has no uid.
+	 */
+	public OpenERPconn connect(String password) {
+		if (mUserId == null) {
+			return null;
+		}
+		try {
+			return new OpenERPconn(mServer, mPort, mDatabase, mUserName, password, mUserId);
+		} catch (MalformedURLException e) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+			return null;
+		}
+	}
+
+	public String getServer() {
+		return mServer;
+	}
+
+	public int getPort() {
+		return mPort;
+	}
+
+	public String getDatabase() {
+		return mDatabase;
+	}
+
+	public String getUserName() {
+		return mUserName;
+	}
+
+	public Integer getUserId() {
+		return mUserId;
+	}
+
+	/** @return When it was written, 0 if it was not. */
+	public long getSavedAt() {
+		return mSavedAt;
+	}
+
+	public String[] getDatabases() {
+		return mDatabases;
+	}
+
+	public void setDatabases(String[] databases) {
+		mDatabases = databases != null ? databases : new String[0];
+	}
+
+	public String getValidateRegister() {
+		return mValidateRegister;
+	}
+
+	public void setValidateRegister(String validateRegister) {
+		mValidateRegister = validateRegister;
+	}
+
+	/** @return The saved flag, null if the module was not captured. */
+	public Boolean isModuleInstalled(String module) {
+		return mModules.get(module);
+	}
+
+	public void putModule(String module, boolean installed) {
+		mModules.put(module, installed);
+	}
+
+	/** @return The saved records of the key, null if there are none. */
+	public List<HashMap<String, Object>> getRecords(String key) {
+		return mRecords.get(key);
+	}
+
+	/**
+	 * Saves records as returned by OpenERPconn.read(), under a key of your
+	 * choice such as the model name. Values must be of the XML-RPC types,
+	 * binary fields are not saved.
+	 */
+	public void putRecords(String key, List<HashMap<String, Object>> records) {
+		mRecords.put(key, records);
+	}
+
+	/**
+	 * @return True if the snapshot was saved for that server, database and
+	 *         user.
+	 */
+	public boolean matches(String server, int port, String db, String user) {
+		return mServer.equals(server) && mPort == port && mDatabase.equals(db) && mUserName.equals(user);
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file which then replaces the given
+	 * one, so a crash while writing leaves the previous snapshot intact.
+	 */
+	public void write(File file) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream(4096);
+		DataOutputStream out = new DataOutputStream(content);
+		long savedAt = System.currentTimeMillis();
+		out.writeUTF(mServer);
+		out.writeInt(mPort);
+		out.writeUTF(mDatabase);
+		out.writeUTF(mUserName);
+		writeValue(out, mUserId);
+		out.writeLong(savedAt);
+		writeValue(out, mDatabases);
+		writeValue(out, mValidateRegister);
+		writeValue(out, mModules);
+		out.writeInt(mRecords.size());
+		for (Map.Entry<String, List<HashMap<String, Object>>> entry : mRecords.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (HashMap<String, Object> record : entry.getValue()) {
+				writeValue(out, record);
+			}
+		}
+		out.flush();
+		CRC32 crc = new CRC32();
+		byte[] bytes = content.toByteArray();
+		crc.update(bytes);
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			fileOut.writeInt(MAGIC);
+			fileOut.writeInt(VERSION);
+			fileOut.writeInt(bytes.length);
+			fileOut.write(bytes);
+			fileOut.writeLong(crc.getValue());
+		} finally {
+			fileOut.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Can not replace " + file);
+		}
+		mSavedAt = savedAt;
+	}
+
+	/**
+	 * @param maxAgeMillis
+	 *            Snapshots older than this are ignored, 0 for no limit.
+	 * @return The snapshot saved in the file for that server, database and
+	 *         user, null if there is no valid one. Corrupt files and files of
+	 *         other format versions are deleted.
+	 */
+	public static OpenERPSnapshot read(File file, String server, int port, String db, String user, long maxAgeMillis) {
+		if (!file.exists()) {
+			return null;
+		}
+		OpenERPSnapshot snapshot;
+		try {
+			snapshot = read(new BufferedInputStream(new FileInputStream(file)), file.length());
+		} catch (IOException e) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+			snapshot = null;
+		}
+		if (snapshot == null) {
+			file.delete();
+			return null;
+		}
+		if (!snapshot.matches(server, port, db, user)) {
+			return null;
+		}
+		if (maxAgeMillis > 0 && System.currentTimeMillis() - snapshot.mSavedAt > maxAgeMillis) {
+			return null;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @param fileLength
+	 *            Size of the file, which bounds the content length read from
+	 *            its header.
+	 * @return Null if the content is not a valid snapshot of this version.
+	 */
+	private static OpenERPSnapshot read(InputStream stream, long fileLength) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			int length = in.readInt();
+			// Magic, version and length before the content, the CRC after it
+			if (length < 0 || length > fileLength - 3 * 4 - 8) {
+				return null; // Corrupt, do not allocate it
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			if (in.readLong() != crc.getValue()) {
+				return null;
+			}
+			return parse(new DataInputStream(new ByteArrayInputStream(bytes)));
+		} catch (EOFException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static OpenERPSnapshot parse(DataInputStream in) throws IOException {
+		try {
+			String server = in.readUTF();
+			int port = in.readInt();
+			String db = in.readUTF();
+			String user = in.readUTF();
+			Integer uid = (Integer) readValue(in);
+			OpenERPSnapshot snapshot = new OpenERPSnapshot(server, port, db, user, uid);
+			snapshot.mSavedAt = in.readLong();
+			Object[] databases = (Object[]) readValue(in);
+			String[] names = new String[databases.length];
+			for (int i = 0; i < databases.length; i++) {
+				names[i] = (String) databases[i];
+			}
+			snapshot.mDatabases = names;
+			snapshot.mValidateRegister = (String) readValue(in);
+			for (Map.Entry<String, Object> module : ((Map<String, Object>) readValue(in)).entrySet()) {
+				snapshot.mModules.put(module.getKey(), (Boolean) module.getValue());
+			}
+			int keys = in.readInt();
+			for (int i = 0; i < keys; i++) {
+				String key = in.readUTF();
+				int count = readCount(in);
+				List<HashMap<String, Object>> records = new ArrayList<HashMap<String, Object>>(count);
+				for (int j = 0; j < count; j++) {
+					records.add((HashMap<String, Object>) readValue(in));
+				}
+				snapshot.mRecords.put(key, records);
+			}
+			return snapshot;
+		} catch (ClassCastException e) {
+			return null; // Passed the CRC but not written by this version
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(TYPE_NULL);
+		} else if (value instanceof String) {
+			out.writeByte(TYPE_STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(TYPE_INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(TYPE_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(TYPE_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Double) {
+			out.writeByte(TYPE_DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Date) {
+			out.writeByte(TYPE_DATE);
+			out.writeLong(((Date) value).getTime());
+		} else if (value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			out.writeByte(TYPE_ARRAY);
+			out.writeInt(array.length);
+			for (Object item : array) {
+				writeValue(out, item);
+			}
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			int count = 0;
+			for (Object item : map.values()) {
+				if (!(item instanceof OpenERPBinary)) {
+					count++;
+				}
+			}
+			out.writeByte(TYPE_MAP);
+			out.writeInt(count);
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				if (!(entry.getValue() instanceof OpenERPBinary)) {
+					writeString(out, String.valueOf(entry.getKey()));
+					writeValue(out, entry.getValue());
+				}
+			}
+		} else {
+			throw new IOException("Can not save a " + value.getClass().getName() + " in a snapshot");
+		}
+	}
+
+	/** writeUTF() is limited to 64KB, long texts would not fit */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new EOFException();
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case TYPE_NULL:
+			return null;
+		case TYPE_STRING:
+			return readString(in);
+		case TYPE_INT:
+			return in.readInt();
+		case TYPE_LONG:
+			return in.readLong();
+		case TYPE_BOOLEAN:
+			return in.readBoolean();
+		case TYPE_DOUBLE:
+			return in.readDouble();
+		case TYPE_DATE:
+			return new Date(in.readLong());
+		case TYPE_ARRAY: {
+			int length = readCount(in);
+			Object[] array = new Object[length];
+			for (int i = 0; i < length; i++) {
+				array[i] = readValue(in);
+			}
+			return array;
+		}
+		case TYPE_MAP: {
+			int count = readCount(in);
+			HashMap<String, Object> map = new HashMap<String, Object>();
+			for (int i = 0; i < count; i++) {
+				String key = readString(in);
+				map.put(key, readValue(in));
+			}
+			return map;
+		}
+		default:
+			throw new EOFException("Unknown type " + type);
+		}
+	}
+
+	/** Every item takes at least a byte, bigger counts are corrupt */
+	private static int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > in.available()) {
+			throw new EOFException();
+		}
+		return count;
+	}
+}
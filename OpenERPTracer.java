@@ -0,0 +1,363 @@
+package com.openerp.attendances;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import android.util.Log;
+
+/**
+ * Keeps a summary of the last calls in a bounded ring buffer, to find out
+ * afterwards why "it was slow at 9:02": when, which model and method, the
+ * types and sizes of the arguments, the bytes sent and received, the outcome
+ * and where the time went (connect, send, wait for the server, decode).<br>
+ * A sampleRate share of the calls is recorded; calls slower than the
+ * threshold, and failed calls, are always recorded and slow calls are also
+ * logged. Argument values are never recorded, only their types and sizes, so
+ * neither passwords nor personal data end up in the buffer or in the file
+ * written by export().<br>
+ * Set it with OpenERPconn.setTracer(), or setServiceTracer() for the calls
+ * to the common and db services such as login.
+ */
+public class OpenERPTracer {
+
+	private final Trace[] mTraces;
+	private final double mSampleRate;
+	private final long mSlowMillis;
+	private final Random mRandom = new Random();
+	private int mNext;
+	private int mCount;
+
+	/**
+	 * @param capacity
+	 *            Calls kept, the oldest ones are overwritten.
+	 * @param sampleRate
+	 *            Share of the calls recorded, from 0 to 1.
+	 * @param slowMillis
+	 *            Calls taking longer are always recorded.
+	 */
+	public OpenERPTracer(int capacity, double sampleRate, long slowMillis) {
+		mTraces = new Trace[capacity];
+		mSampleRate = sampleRate;
+		mSlowMillis = slowMillis;
+	}
+
+	/** Starts timing a call, the transport calls the Span methods. */
+	Span start(String url, OpenERPRequestTemplate template, String method, Object[] params) {
+		boolean sampled;
+		synchronized (mRandom) {
+			sampled = mRandom.nextDouble() < mSampleRate;
+		}
+		return new Span(url, template, method, params, sampled);
+	}
+
+	private void add(Trace trace) {
+		synchronized (mTraces) {
+			mTraces[mNext] = trace;
+			mNext = (mNext + 1) % mTraces.length;
+			mCount = Math.min(mCount + 1, mTraces.length);
+		}
+		if (trace.mSlow) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, "Slow call: " + trace);
+		}
+	}
+
+	/** @return The recorded calls, oldest first. */
+	public List<Trace> getTraces() {
+		synchronized (mTraces) {
+			List<Trace> traces = new ArrayList<Trace>(mCount);
+			int first = (mNext - mCount + mTraces.length) % mTraces.length;
+			for (int i = 0; i < mCount; i++) {
+				traces.add(mTraces[(first + i) % mTraces.length]);
+			}
+			return traces;
+		}
+	}
+
+	public void clear() {
+		synchronized (mTraces) {
+			for (int i = 0; i < mTraces.length; i++) {
+				mTraces[i] = null;
+			}
+			mNext = 0;
+			mCount = 0;
+		}
+	}
+
+	/** Writes the recorded calls as tab separated values, with a header. */
+	public void export(File file) throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			out.write("time\tservice\tcall\targuments\trequest_bytes\tresponse_bytes\tstatus\tconnect_ms\tsend_ms\twait_ms\tdecode_ms\ttotal_ms\tslow\trequest_raw_bytes\tresponse_raw_bytes\tdeflate_ms\tinflate_ms\n");
+			for (Trace trace : getTraces()) {
+				out.write(format.format(new Date(trace.mStartedAt)) + "\t" + trace.mService + "\t" + trace.mCall + "\t" + trace.mArguments + "\t" + trace.mRequestBytes + "\t"
+						+ trace.mResponseBytes + "\t" + trace.mStatus.replace('\t', ' ').replace('\n', ' ') + "\t" + trace.mConnectMillis + "\t" + trace.mSendMillis + "\t"
+						+ trace.mWaitMillis + "\t" + trace.mDecodeMillis + "\t" + trace.getTotalMillis() + "\t" + trace.mSlow + "\t" + trace.mRequestRawBytes + "\t" + trace.mResponseRawBytes + "\t"
+						+ trace.mDeflateMillis + "\t" + trace.mInflateMillis + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/** @return The types and sizes of the values, never the values. */
+	static String describe(Object value) {
+		if (value == null) {
+			return "None";
+		} else if (value instanceof Boolean || value instanceof Number) {
+			return value.getClass().getSimpleName().toLowerCase(Locale.US);
+		} else if (value instanceof String) {
+			return "str(" + ((String) value).length() + ")";
+		} else if (value instanceof Object[]) {
+			return "list(" + ((Object[]) value).length + ")";
+		} else if (value instanceof Collection) {
+			return "list(" + ((Collection<?>) value).size() + ")";
+		} else if (value instanceof int[]) {
+			return "list(" + ((int[]) value).length + ")";
+		} else if (value instanceof long[]) {
+			return "list(" + ((long[]) value).length + ")";
+		} else if (value instanceof Map) {
+			return "dict(" + ((Map<?, ?>) value).size() + ")";
+		} else if (value instanceof OpenERPBinary) {
+			return "binary(" + ((OpenERPBinary) value).length() + ")";
+		} else if (value instanceof byte[]) {
+			return "binary(" + ((byte[]) value).length + ")";
+		}
+		return value.getClass().getSimpleName();
+	}
+
+	/** Timing of one call in progress. */
+	final class Span {
+
+		private final String mUrl;
+		private final OpenERPRequestTemplate mTemplate;
+		private final String mMethod;
+		private final Object[] mParams;
+		private final boolean mSampled;
+		private final long mStart = System.currentTimeMillis();
+		private long mConnectStart;
+		private long mConnectEnd;
+		private long mSent;
+		private long mResponded;
+		private long mRequestBytes;
+		private long mResponseBytes;
+		private long mRequestRawBytes;
+		private long mResponseRawBytes;
+		private long mDeflateMillis;
+		private long mInflateMillis;
+
+		private Span(String url, OpenERPRequestTemplate template, String method, Object[] params, boolean sampled) {
+			mUrl = url;
+			mTemplate = template;
+			mMethod = method;
+			mParams = params;
+			mSampled = sampled;
+		}
+
+		void connecting() {
+			mConnectStart = System.currentTimeMillis();
+		}
+
+		void connected() {
+			mConnectEnd = System.currentTimeMillis();
+		}
+
+		void sent(long requestBytes) {
+			mSent = System.currentTimeMillis();
+			mRequestBytes = requestBytes;
+		}
+
+		void responded() {
+			mResponded = System.currentTimeMillis();
+		}
+
+		void received(long responseBytes) {
+			mResponseBytes = responseBytes;
+		}
+
+		/** The request was gzipped from rawBytes. */
+		void deflated(long rawBytes, long millis) {
+			mRequestRawBytes = rawBytes;
+			mDeflateMillis = millis;
+		}
+
+		/** The response was gunzipped to rawBytes. */
+		void inflated(long rawBytes, long millis) {
+			mResponseRawBytes = rawBytes;
+			mInflateMillis = millis;
+		}
+
+		/** @param status Null if the call succeeded. */
+		void finish(String status) {
+			long end = System.currentTimeMillis();
+			boolean slow = end - mStart >= mSlowMillis;
+			if (!mSampled && !slow && status == null) {
+				return;
+			}
+			Trace trace = new Trace();
+			trace.mStartedAt = mStart;
+			trace.mService = mUrl;
+			Object[] params = mTemplate != null ? mTemplate.allParams(mParams) : mParams;
+			int firstArgument = 0;
+			if (mMethod.equals("execute") && params.length >= 5) {
+				trace.mCall = params[3] + "." + params[4];
+				firstArgument = 5;
+			} else {
+				trace.mCall = mMethod;
+			}
+			StringBuilder arguments = new StringBuilder();
+			for (int i = firstArgument; i < params.length; i++) {
+				if (i > firstArgument) {
+					arguments.append(", ");
+				}
+				arguments.append(describe(params[i]));
+			}
+			trace.mArguments = arguments.toString();
+			trace.mRequestBytes = mRequestBytes;
+			trace.mResponseBytes = mResponseBytes;
+			trace.mRequestRawBytes = mRequestRawBytes != 0 ? mRequestRawBytes : mRequestBytes;
+			trace.mResponseRawBytes = mResponseRawBytes != 0 ? mResponseRawBytes : mResponseBytes;
+			trace.mDeflateMillis = mDeflateMillis;
+			trace.mInflateMillis = mInflateMillis;
+			trace.mStatus = status != null ? status : "ok";
+			// A phase which was not reached takes no time
+			long connectEnd = mConnectEnd != 0 ? mConnectEnd : mConnectStart;
+			long sent = mSent != 0 ? mSent : mConnectStart != 0 ? end : mStart;
+			long responded = mResponded != 0 ? mResponded : mSent != 0 ? end : sent;
+			trace.mConnectMillis = mConnectStart != 0 ? connectEnd - mConnectStart : 0;
+			trace.mSendMillis = sent - mStart - trace.mConnectMillis;
+			trace.mWaitMillis = responded - sent;
+			trace.mDecodeMillis = end - responded;
+			trace.mSlow = slow;
+			add(trace);
+		}
+	}
+
+	public static class Trace {
+
+		private long mStartedAt;
+		private String mService;
+		private String mCall;
+		private String mArguments;
+		private long mRequestBytes;
+		private long mResponseBytes;
+		private long mRequestRawBytes;
+		private long mResponseRawBytes;
+		private long mDeflateMillis;
+		private long mInflateMillis;
+		private String mStatus;
+		private long mConnectMillis;
+		private long mSendMillis;
+		private long mWaitMillis;
+		private long mDecodeMillis;
+		private boolean mSlow;
+
+		public long getStartedAt() {
+			return mStartedAt;
+		}
+
+		/** @return The URL of the XML-RPC service. */
+		public String getService() {
+			return mService;
+		}
+
+		/** @return model.method for execute(), the service method otherwise. */
+		public String getCall() {
+			return mCall;
+		}
+
+		/** @return The types and sizes of the arguments. */
+		public String getArguments() {
+			return mArguments;
+		}
+
+		public long getRequestBytes() {
+			return mRequestBytes;
+		}
+
+		public long getResponseBytes() {
+			return mResponseBytes;
+		}
+
+		/** @return Size of the request before gzip, as sent if not gzipped. */
+		public long getRequestRawBytes() {
+			return mRequestRawBytes;
+		}
+
+		/** @return Size of the response after gunzip, as received if not gzipped. */
+		public long getResponseRawBytes() {
+			return mResponseRawBytes;
+		}
+
+		/** @return Bytes sent per byte of request, 1 if not gzipped. */
+		public double getRequestRatio() {
+			return mRequestRawBytes > 0 ? (double) mRequestBytes / mRequestRawBytes : 1;
+		}
+
+		/** @return Bytes received per byte of response, 1 if not gzipped. */
+		public double getResponseRatio() {
+			return mResponseRawBytes > 0 ? (double) mResponseBytes / mResponseRawBytes : 1;
+		}
+
+		/** @return Time to gzip the request, part of getSendMillis(). */
+		public long getDeflateMillis() {
+			return mDeflateMillis;
+		}
+
+		/** @return Time to gunzip the response, part of getDecodeMillis(). */
+		public long getInflateMillis() {
+			return mInflateMillis;
+		}
+
+		/** @return "ok", or the fault or error the call ended with. */
+		public String getStatus() {
+			return mStatus;
+		}
+
+		/** @return Time to open the connection, 0 if a kept alive one was used. */
+		public long getConnectMillis() {
+			return mConnectMillis;
+		}
+
+		/** @return Time to serialize and upload the request. */
+		public long getSendMillis() {
+			return mSendMillis;
+		}
+
+		/** @return Time until the server started answering. */
+		public long getWaitMillis() {
+			return mWaitMillis;
+		}
+
+		/** @return Time to download and parse the response. */
+		public long getDecodeMillis() {
+			return mDecodeMillis;
+		}
+
+		public long getTotalMillis() {
+			return mConnectMillis + mSendMillis + mWaitMillis + mDecodeMillis;
+		}
+
+		public boolean isSlow() {
+			return mSlow;
+		}
+
+		public String toString() {
+			return mCall + "(" + mArguments + ") " + mStatus + " in " + getTotalMillis() + " ms (connect " + mConnectMillis + ", send " + mSendMillis + ", wait " + mWaitMillis + ", decode "
+					+ mDecodeMillis + "), " + mRequestBytes + " bytes sent" + (mRequestRawBytes != mRequestBytes ? " (" + mRequestRawBytes + " before gzip)" : "") + ", " + mResponseBytes
+					+ " received" + (mResponseRawBytes != mResponseBytes ? " (" + mResponseRawBytes + " after gunzip)" : "");
+		}
+	}
+}
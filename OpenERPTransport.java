@@ -0,0 +1,502 @@
+package com.openerp.attendances;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFault;
+
+import android.util.Log;
+
+/**
+ * XML-RPC transport over HttpURLConnection which streams both directions:
+ * the response is parsed while it is being received, so binary fields can be
+ * decoded straight to a OpenERPBinary.Sink, and OpenERPBinary values are
+ * encoded from their files while the request is being sent.<br>
+ * Every exchange honours the OpenERPCall scope it is made in: it is aborted
+ * as soon as the scope is cancelled or its deadline passes.<br>
+ * Gzipped responses are accepted and inflated while they are parsed.
+ * Requests are sent gzipped only if enabled with setCompression(), as the
+ * OpenERP server itself does not inflate them (a proxy in front of it, or a
+ * patched server, has to); if the server refuses a gzipped request with
+ * 400, 411 or 415, it is sent again as is and compression is turned off for
+ * this transport. Other statuses fail the call as usual, the server may
+ * have run it already.
+ */
+public class OpenERPTransport {
+
+	public static final String ERROR_CANCELLED = "Call cancelled";
+	public static final String ERROR_DEADLINE_EXCEEDED = "Deadline exceeded";
+
+	private static final String CHARSET = "UTF-8";
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_TRACED_STATUS = 200;
+	private static final int DEFAULT_COMPRESSION_THRESHOLD = 2 * 1024;
+	private static final String GZIP = "gzip";
+	/** Returned by exchange() when the request must be sent again as is. */
+	private static final Object RETRY_UNCOMPRESSED = new Object();
+
+	private static ScheduledExecutorService sWatchdog;
+
+	protected final URL mUrl;
+	protected int mConnectTimeout;
+	protected int mReadTimeout;
+	protected volatile OpenERPTracer mTracer;
+	protected volatile boolean mAcceptGzip = true;
+	protected volatile boolean mCompressRequests;
+	protected volatile int mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	protected volatile boolean mDatesAsMillis;
+
+	public OpenERPTransport(URL url) {
+		mUrl = url;
+	}
+
+	public URL getUrl() {
+		return mUrl;
+	}
+
+	/** Timeouts in milliseconds, 0 means the system default. */
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		mConnectTimeout = connectTimeout;
+		mReadTimeout = readTimeout;
+	}
+
+	/** Records the calls made through this transport, null to stop. */
+	public void setTracer(OpenERPTracer tracer) {
+		mTracer = tracer;
+	}
+
+	public OpenERPTracer getTracer() {
+		return mTracer;
+	}
+
+	/**
+	 * Sends the requests of at least thresholdBytes gzipped. Requests with
+	 * OpenERPBinary values, which are streamed from their files, are never
+	 * compressed. The compression ratio and time of each call are recorded
+	 * by the tracer.
+	 */
+	public void setCompression(boolean compressRequests, int thresholdBytes) {
+		mCompressRequests = compressRequests;
+		mCompressionThreshold = thresholdBytes;
+	}
+
+	/** @return False if off, or turned off because the server refused it. */
+	public boolean isCompressingRequests() {
+		return mCompressRequests;
+	}
+
+	/** Asks for gzipped responses, true by default. */
+	public void setAcceptGzip(boolean acceptGzip) {
+		mAcceptGzip = acceptGzip;
+	}
+
+	/**
+	 * Returns the dateTime values of the responses as Long milliseconds since
+	 * the epoch instead of Date, false by default.
+	 */
+	public void setDatesAsMillis(boolean datesAsMillis) {
+		mDatesAsMillis = datesAsMillis;
+	}
+
+	public boolean isDatesAsMillis() {
+		return mDatesAsMillis;
+	}
+
+	/**
+	 * Calls the method within the OpenERPCall scope of the current thread, if
+	 * any.
+	 */
+	public Object call(String method, Object... params) throws XMLRPCException {
+		OpenERPCall scope = OpenERPCall.current();
+		return invoke(scope, scope != null ? scope.getDeadline() : 0, null, method, params);
+	}
+
+	/**
+	 * Like call(), but the binary fields accepted by the sink are decoded to
+	 * it while the response is parsed, and the result holds whatever the sink
+	 * returned for them.
+	 */
+	public Object callStreaming(OpenERPBinary.Sink sink, String method, Object... params) throws XMLRPCException {
+		OpenERPCall scope = OpenERPCall.current();
+		return invoke(scope, scope != null ? scope.getDeadline() : 0, sink, method, params);
+	}
+
+	/**
+	 * Does the HTTP exchange. If the scope is cancelled or the deadline passes
+	 * meanwhile, the connection is disconnected, which makes the blocked
+	 * read or write fail at once, and the XMLRPCException says why.
+	 *
+	 * @param scope
+	 *            Cancellation scope, may be null.
+	 * @param deadline
+	 *            Absolute deadline in milliseconds, 0 for none.
+	 * @param sink
+	 *            Where binary fields go, may be null.
+	 */
+	public Object invoke(OpenERPCall scope, long deadline, OpenERPBinary.Sink sink, String method, Object[] params) throws XMLRPCException {
+		return invoke(scope, deadline, sink, null, method, params);
+	}
+
+	/**
+	 * Same as invoke(), but the call starts with the bytes of the template and
+	 * only the given parameters are serialized.
+	 */
+	Object invoke(OpenERPCall scope, long deadline, OpenERPBinary.Sink sink, OpenERPRequestTemplate template, Object[] params) throws XMLRPCException {
+		return invoke(scope, deadline, sink, template, template.getMethod(), params);
+	}
+
+	private Object invoke(OpenERPCall scope, long deadline, OpenERPBinary.Sink sink, OpenERPRequestTemplate template, String method, Object[] params) throws XMLRPCException {
+		OpenERPTracer tracer = mTracer;
+		if (tracer == null) {
+			Object result;
+			do {
+				result = exchange(scope, deadline, sink, template, method, params, null);
+			} while (result == RETRY_UNCOMPRESSED);
+			return result;
+		}
+		while (true) {
+			// The uncompressed retry gets its own span
+			OpenERPTracer.Span span = tracer.start(mUrl.getPath(), template, method, params);
+			String status = "error";
+			try {
+				Object result = exchange(scope, deadline, sink, template, method, params, span);
+				if (result == RETRY_UNCOMPRESSED) {
+					status = "error: gzipped request refused, sent again uncompressed";
+					continue;
+				}
+				status = null;
+				return result;
+			} catch (XMLRPCException e) {
+				status = e instanceof XMLRPCFault ? "fault: " + ((XMLRPCFault) e).getFaultString() : "error: " + e.getMessage();
+				if (status.length() > MAX_TRACED_STATUS) {
+					status = status.substring(0, MAX_TRACED_STATUS); // Tracebacks
+				}
+				throw e;
+			} finally {
+				span.finish(status);
+			}
+		}
+	}
+
+	/**
+	 * @return RETRY_UNCOMPRESSED if the server refused the gzipped request,
+	 *         compression is then turned off.
+	 */
+	private Object exchange(OpenERPCall scope, long deadline, OpenERPBinary.Sink sink, OpenERPRequestTemplate template, String method, Object[] params, OpenERPTracer.Span span)
+			throws XMLRPCException {
+		checkAlive(scope, deadline);
+		HttpURLConnection connection = null;
+		ScheduledFuture<?> watchdog = null;
+		boolean completed = false;
+		try {
+			connection = (HttpURLConnection) mUrl.openConnection();
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "text/xml; charset=" + CHARSET);
+			if (mAcceptGzip) {
+				// Set explicitly, Android no longer inflates on its own
+				connection.setRequestProperty("Accept-Encoding", GZIP);
+			}
+			connection.setConnectTimeout(timeout(mConnectTimeout, deadline));
+			connection.setReadTimeout(timeout(mReadTimeout, deadline));
+			if (scope != null && !scope.attach(connection)) {
+				throw new XMLRPCException(ERROR_CANCELLED);
+			}
+			if (deadline != 0) {
+				watchdog = scheduleDisconnect(connection, deadline);
+			}
+			boolean compressed = sendRequest(connection, template, method, params, span);
+
+			int status = connection.getResponseCode();
+			if (span != null) {
+				span.responded();
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				if (compressed && isEncodingRefused(status)) {
+					Log.d(OpenERPconn.CONNECTOR_NAME, "HTTP status code " + status + " to a gzipped request, compression turned off for " + mUrl);
+					mCompressRequests = false;
+					return RETRY_UNCOMPRESSED;
+				}
+				throw new XMLRPCException("HTTP status code: " + status + " != " + HttpURLConnection.HTTP_OK);
+			}
+			OpenERPBufferPool pool = OpenERPBufferPool.get();
+			InputStream stream = connection.getInputStream();
+			CountingInputStream counter = null;
+			if (span != null) {
+				stream = counter = new CountingInputStream(stream);
+			}
+			TimedGzipInputStream inflater = null;
+			if (GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+				stream = inflater = new TimedGzipInputStream(stream);
+			}
+			try {
+				Object result = readResponse(pool, stream, sink, mDatesAsMillis);
+				completed = true;
+				return result;
+			} finally {
+				if (counter != null) {
+					span.received(counter.mCount);
+					if (inflater != null) {
+						span.inflated(inflater.mCount, inflater.mNanos / 1000000);
+					}
+				}
+			}
+		} catch (IOException e) {
+			checkAlive(scope, deadline);
+			throw new XMLRPCException(e);
+		} finally {
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
+			if (scope != null) {
+				scope.detach();
+			}
+			if (connection != null && (!completed || sink != null)) {
+				// Do not return aborted connections or the ones used for big
+				// binary transfers to the keep-alive pool
+				connection.disconnect();
+			}
+		}
+	}
+
+	private static void checkAlive(OpenERPCall scope, long deadline) throws XMLRPCException {
+		if (scope != null && scope.isCancelled()) {
+			throw new XMLRPCException(ERROR_CANCELLED);
+		}
+		if (deadline != 0 && System.currentTimeMillis() >= deadline) {
+			throw new XMLRPCException(ERROR_DEADLINE_EXCEEDED);
+		}
+	}
+
+	/** @return The configured timeout, shortened to what the deadline allows. */
+	private static int timeout(int configured, long deadline) {
+		if (deadline == 0) {
+			return configured;
+		}
+		long remaining = Math.max(1, deadline - System.currentTimeMillis());
+		return (int) (configured > 0 ? Math.min(configured, remaining) : Math.min(Integer.MAX_VALUE, remaining));
+	}
+
+	/**
+	 * Socket timeouts only bound each read, so a slow trickle could go on
+	 * forever: the watchdog disconnects at the deadline whatever happens.
+	 */
+	private static ScheduledFuture<?> scheduleDisconnect(final HttpURLConnection connection, long deadline) {
+		synchronized (OpenERPTransport.class) {
+			if (sWatchdog == null) {
+				sWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "OpenERPTransport watchdog");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		}
+		return sWatchdog.schedule(new Runnable() {
+			public void run() {
+				connection.disconnect();
+			}
+		}, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Requests are sent with a fixed length, as the OpenERP server does not
+	 * accept chunked bodies. Requests with OpenERPBinary values are serialized
+	 * twice, once to count the bytes and once to send them, so files are
+	 * never loaded in memory.
+	 */
+	/**
+	 * @return True if the status means the body was not understood, so the
+	 *         call did not run. Gateway errors and the like may come after
+	 *         the server ran it.
+	 */
+	private static boolean isEncodingRefused(int status) {
+		return status == HttpURLConnection.HTTP_BAD_REQUEST || status == HttpURLConnection.HTTP_LENGTH_REQUIRED || status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
+	}
+
+	/** @return True if the request was sent gzipped. */
+	private boolean sendRequest(HttpURLConnection connection, OpenERPRequestTemplate template, String method, Object[] params, OpenERPTracer.Span span) throws IOException {
+		OpenERPBufferPool pool = OpenERPBufferPool.get();
+		long length;
+		boolean compressed = false;
+		if (OpenERPXmlWriter.hasBinary(params)) {
+			CountingOutputStream counter = new CountingOutputStream();
+			writeRequest(pool, counter, template, method, params);
+			length = counter.mCount;
+			setFixedLength(connection, length);
+			connect(connection, span);
+			OutputStream out = connection.getOutputStream();
+			try {
+				writeRequest(pool, out, template, method, params);
+			} finally {
+				out.close();
+			}
+		} else {
+			OpenERPBufferPool.ByteSink body = pool.takeSink();
+			try {
+				writeRequest(pool, body, template, method, params);
+				if (mCompressRequests && body.size() >= mCompressionThreshold) {
+					long start = System.nanoTime();
+					OpenERPBufferPool.ByteSink gzipped = pool.takeSink();
+					OutputStream gzip = new GZIPOutputStream(gzipped, 8 * 1024);
+					body.writeTo(gzip);
+					gzip.close();
+					if (span != null) {
+						span.deflated(body.size(), (System.nanoTime() - start) / 1000000);
+					}
+					body.release();
+					body = gzipped;
+					connection.setRequestProperty("Content-Encoding", GZIP);
+					compressed = true;
+				}
+				length = body.size();
+				setFixedLength(connection, length);
+				connect(connection, span);
+				OutputStream out = connection.getOutputStream();
+				try {
+					body.writeTo(out);
+				} finally {
+					out.close();
+				}
+			} finally {
+				body.release();
+			}
+		}
+		if (span != null) {
+			span.sent(length);
+		}
+		return compressed;
+	}
+
+	private static void connect(HttpURLConnection connection, OpenERPTracer.Span span) throws IOException {
+		if (span != null) {
+			span.connecting();
+		}
+		connection.connect();
+		if (span != null) {
+			span.connected();
+		}
+	}
+
+	static void writeRequest(OpenERPBufferPool pool, OutputStream out, OpenERPRequestTemplate template, String method, Object[] params) throws IOException {
+		if (template != null) {
+			template.writeTo(pool, out, params);
+			return;
+		}
+		Writer writer = pool.takeWriter(out);
+		OpenERPXmlWriter xmlWriter = pool.takeXmlWriter(writer);
+		try {
+			xmlWriter.writeMethodCall(method, params);
+		} finally {
+			pool.giveXmlWriter(xmlWriter);
+			writer.close();
+		}
+	}
+
+	/** Parses the response, and closes the stream. */
+	static Object readResponse(OpenERPBufferPool pool, InputStream stream, OpenERPBinary.Sink sink, boolean datesAsMillis) throws IOException, XMLRPCException {
+		Reader in = pool.takeReader(stream);
+		OpenERPXmlReader reader = pool.takeXmlReader(in, sink);
+		reader.setDatesAsMillis(datesAsMillis);
+		try {
+			return reader.readMethodResponse();
+		} finally {
+			pool.giveXmlReader(reader);
+			in.close();
+		}
+	}
+
+	private static void setFixedLength(HttpURLConnection connection, long length) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Request too big: " + length + " bytes");
+		}
+		connection.setFixedLengthStreamingMode((int) length);
+	}
+
+	/** Counts the bytes inflated and the time taken */
+	private static class TimedGzipInputStream extends GZIPInputStream {
+
+		private long mCount;
+		private long mNanos;
+
+		TimedGzipInputStream(InputStream in) throws IOException {
+			super(in, READ_BUFFER_SIZE);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			int count = super.read(b, off, len);
+			mNanos += System.nanoTime() - start;
+			if (count > 0) {
+				mCount += count;
+			}
+			return count;
+		}
+
+		/** Waiting for the network is not inflating */
+		@Override
+		protected void fill() throws IOException {
+			long start = System.nanoTime();
+			super.fill();
+			mNanos -= System.nanoTime() - start;
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long mCount;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				mCount++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				mCount += read;
+			}
+			return read;
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private long mCount;
+
+		@Override
+		public void write(int b) {
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			mCount += len;
+		}
+	}
+}
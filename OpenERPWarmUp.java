@@ -0,0 +1,279 @@
+package com.openerp.attendances;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.xmlrpc.android.XMLRPCException;
+
+import android.util.Log;
+
+/**
+ * Optional warm-up of a new connection, so the first screen does not pay
+ * for the DNS lookup, the TCP handshakes and the cold caches of the server.
+ * While login runs, the host name is resolved and several connections are
+ * opened in parallel (each with a call to the version method of the common
+ * service, which needs no login), so they wait in the keep-alive pool of
+ * HttpURLConnection for the first requests. Once logged in, the configured
+ * warm-up calls, e.g. fields_get of the hot models or Module_Installed
+ * checks, are sent in parallel in the background; fields_get also fills the
+ * relation cache used by getRelation() and browse() prefetching.<br>
+ * connect() returns as soon as login and the pre-connects are done; use
+ * await() to wait for the warm-up calls and getMetrics() to see what took
+ * how long. An OpenERPWarmUp is used for a single connect().
+ */
+public class OpenERPWarmUp {
+
+	private int mConnections = 3;
+	private final List<Call> mCalls = new ArrayList<Call>();
+	private final Metrics mMetrics = new Metrics();
+	private final CountDownLatch mDone = new CountDownLatch(1);
+
+	/** Connections opened in advance, 3 by default. */
+	public OpenERPWarmUp setConnections(int connections) {
+		mConnections = connections;
+		return this;
+	}
+
+	/** Reads the definition of all the fields of the model. */
+	public OpenERPWarmUp addFieldsGet(String model) {
+		mCalls.add(new Call("fields_get " + model, model, "fields_get", new Object[] { new Object[0] }));
+		return this;
+	}
+
+	/** Checks the module is installed, see getModuleInstalled(). */
+	public OpenERPWarmUp addModuleCheck(String module) {
+		mCalls.add(new Call("module_installed " + module, "control.horario.register", "module_installed", new Object[] { module }));
+		return this;
+	}
+
+	/** Any other call, its result is available with getResult(name). */
+	public OpenERPWarmUp addCall(String name, String model, String method, Object... parameters) {
+		mCalls.add(new Call(name, model, method, parameters));
+		return this;
+	}
+
+	/**
+	 * Logs in and warms the connection up.
+	 *
+	 * @return The connection, or null if the login failed, in which case no
+	 *         warm-up call is sent.
+	 */
+	public OpenERPconn connect(final String server, final Integer port, final String db, final String user, final String pass) {
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.max(mConnections, mCalls.size())));
+		List<Future<?>> preconnects = new ArrayList<Future<?>>();
+		for (int i = 0; i < mConnections; i++) {
+			preconnects.add(executor.submit(new Runnable() {
+				public void run() {
+					preconnect(server, port);
+				}
+			}));
+		}
+		OpenERPconn connection = OpenERPconn.connect(server, port, db, user, pass);
+		long loginMillis = System.currentTimeMillis() - start;
+		for (Future<?> preconnect : preconnects) {
+			try {
+				preconnect.get();
+			} catch (Exception e) {
+				Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+			}
+		}
+		synchronized (mMetrics) {
+			mMetrics.mLoginMillis = loginMillis;
+			mMetrics.mConnectMillis = System.currentTimeMillis() - start;
+		}
+		if (connection == null || mCalls.isEmpty()) {
+			executor.shutdown();
+			mDone.countDown();
+			return connection;
+		}
+		startCalls(connection, executor, start);
+		return connection;
+	}
+
+	private void preconnect(String server, int port) {
+		long start = System.currentTimeMillis();
+		try {
+			InetAddress.getByName(server); // Cached for the next lookups
+			OpenERPconn.callService(new URL("http", server, port, "/xmlrpc/common"), "version");
+			synchronized (mMetrics) {
+				mMetrics.mConnections++;
+			}
+		} catch (XMLRPCException e) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+		} catch (MalformedURLException e) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+		} catch (UnknownHostException e) {
+			Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+		}
+		synchronized (mMetrics) {
+			mMetrics.mMaxPreconnectMillis = Math.max(mMetrics.mMaxPreconnectMillis, System.currentTimeMillis() - start);
+		}
+	}
+
+	private void startCalls(final OpenERPconn connection, ExecutorService executor, final long start) {
+		final CountDownLatch calls = new CountDownLatch(mCalls.size());
+		for (final Call call : mCalls) {
+			executor.execute(new Runnable() {
+				public void run() {
+					long callStart = System.currentTimeMillis();
+					try {
+						call.mResult = connection.execute(call.mModel, call.mMethod, call.mParameters);
+						if (call.mMethod.equals("fields_get") && call.mResult instanceof Map) {
+							connection.cacheRelations(call.mModel, (Map<?, ?>) call.mResult);
+						}
+					} catch (XMLRPCException e) {
+						call.mError = e.toString();
+						Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+					} catch (RuntimeException e) {
+						call.mError = e.toString(); // Unexpected response
+						Log.d(OpenERPconn.CONNECTOR_NAME, e.toString());
+					} finally {
+						synchronized (mMetrics) {
+							mMetrics.mCallMillis.put(call.mName, System.currentTimeMillis() - callStart);
+							if (call.mError != null) {
+								mMetrics.mFailedCalls++;
+							}
+						}
+						calls.countDown();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		Thread finisher = new Thread(new Runnable() {
+			public void run() {
+				try {
+					calls.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				synchronized (mMetrics) {
+					mMetrics.mTotalMillis = System.currentTimeMillis() - start;
+				}
+				mDone.countDown();
+			}
+		}, "OpenERPWarmUp");
+		finisher.setDaemon(true);
+		finisher.start();
+	}
+
+	/** @return False if the warm-up calls did not finish in time. */
+	public boolean await(long timeoutMillis) throws InterruptedException {
+		return mDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** @return The result of the call, null if it failed or did not finish. */
+	public Object getResult(String name) {
+		for (Call call : mCalls) {
+			if (call.mName.equals(name)) {
+				return call.mResult;
+			}
+		}
+		return null;
+	}
+
+	/** @return The result of addModuleCheck(), null if it is not known. */
+	public Boolean getModuleInstalled(String module) {
+		Object result = getResult("module_installed " + module);
+		return result != null ? Boolean.parseBoolean(result + "") : null;
+	}
+
+	public Metrics getMetrics() {
+		synchronized (mMetrics) {
+			return new Metrics(mMetrics);
+		}
+	}
+
+	private static class Call {
+
+		private final String mName;
+		private final String mModel;
+		private final String mMethod;
+		private final Object[] mParameters;
+		private volatile Object mResult;
+		private volatile String mError;
+
+		Call(String name, String model, String method, Object[] parameters) {
+			mName = name;
+			mModel = model;
+			mMethod = method;
+			mParameters = parameters;
+		}
+	}
+
+	/** Times in milliseconds from the start of connect(). */
+	public static class Metrics {
+
+		private long mLoginMillis;
+		private long mConnectMillis;
+		private long mMaxPreconnectMillis;
+		private int mConnections;
+		private long mTotalMillis;
+		private int mFailedCalls;
+		private final LinkedHashMap<String, Long> mCallMillis = new LinkedHashMap<String, Long>();
+
+		Metrics() {
+		}
+
+		Metrics(Metrics metrics) {
+			mLoginMillis = metrics.mLoginMillis;
+			mConnectMillis = metrics.mConnectMillis;
+			mMaxPreconnectMillis = metrics.mMaxPreconnectMillis;
+			mConnections = metrics.mConnections;
+			mTotalMillis = metrics.mTotalMillis;
+			mFailedCalls = metrics.mFailedCalls;
+			mCallMillis.putAll(metrics.mCallMillis);
+		}
+
+		public long getLoginMillis() {
+			return mLoginMillis;
+		}
+
+		/** @return Time until connect() returned. */
+		public long getConnectMillis() {
+			return mConnectMillis;
+		}
+
+		/** @return Time of the slowest pre-connect. */
+		public long getMaxPreconnectMillis() {
+			return mMaxPreconnectMillis;
+		}
+
+		/** @return Connections opened in advance. */
+		public int getConnections() {
+			return mConnections;
+		}
+
+		/** @return Time until the last warm-up call finished, 0 until then. */
+		public long getTotalMillis() {
+			return mTotalMillis;
+		}
+
+		public int getFailedCalls() {
+			return mFailedCalls;
+		}
+
+		/** @return The time each finished warm-up call took, by name. */
+		public Map<String, Long> getCallMillis() {
+			return Collections.unmodifiableMap(mCallMillis);
+		}
+
+		public String toString() {
+			return "login " + mLoginMillis + " ms, connect " + mConnectMillis + " ms (" + mConnections + " connections, slowest " + mMaxPreconnectMillis + " ms), warm-up " + mTotalMillis
+					+ " ms " + mCallMillis + (mFailedCalls > 0 ? ", " + mFailedCalls + " failed" : "");
+		}
+	}
+}
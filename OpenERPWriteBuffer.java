@@ -0,0 +1,351 @@
+package com.openerp.attendances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers write() calls so they can be sent in as few requests as possible.
+ * Successive writes to the same record are merged into one value map (the
+ * last value of each field wins) and the records which end up with identical
+ * value maps are written together in a single write() with all their ids;
+ * arrays in the values, such as x2many commands, are compared by content.
+ * Writes to a record which is pending with another context are sent after
+ * the pending ones, so the last write still wins.<br>
+ * The buffer is flushed when it holds maxRecords records, maxDelayMillis
+ * after the first pending write, or when you call flush(). Automatic flushes
+ * run in a background thread and report to the Listener; flush() runs in the
+ * caller's thread and returns the outcome of each record.<br>
+ * Get one from OpenERPconn.newWriteBuffer() and close() it when you are done,
+ * which flushes what is left; write() after close() throws
+ * IllegalStateException.
+ */
+public class OpenERPWriteBuffer {
+
+	public interface Listener {
+		void onFlush(Result result);
+	}
+
+	private final OpenERPconn mConnection;
+	private final int mMaxRecords;
+	private final long mMaxDelayMillis;
+	private Listener mListener;
+
+	/** Pending values per model and context, then per record id. */
+	private Map<Group, LinkedHashMap<Long, HashMap<String, Object>>> mPending = new LinkedHashMap<Group, LinkedHashMap<Long, HashMap<String, Object>>>();
+	/** Earlier pending values, to be written before mPending, oldest first. */
+	private List<Map<Group, LinkedHashMap<Long, HashMap<String, Object>>>> mSealed = new ArrayList<Map<Group, LinkedHashMap<Long, HashMap<String, Object>>>>();
+	private int mPendingRecords;
+	private boolean mClosed;
+	private ScheduledFuture<?> mScheduledFlush;
+	private final ScheduledExecutorService mExecutor;
+
+	/** Flushes must not overlap, or writes to one record could be reordered */
+	private final Object mFlushLock = new Object();
+
+	public OpenERPWriteBuffer(OpenERPconn connection, int maxRecords, long maxDelayMillis) {
+		mConnection = connection;
+		mMaxRecords = maxRecords;
+		mMaxDelayMillis = maxDelayMillis;
+		mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "OpenERPWriteBuffer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Same parameters as OpenERPconn.write(), but the values are buffered.
+	 *
+	 * @throws IllegalStateException
+	 *             If the buffer has been closed.
+	 */
+	public void write(String model, Long[] ids, HashMap<String, ?> values, HashMap<String, ?> context) {
+		boolean flushNow = false;
+		synchronized (this) {
+			if (mClosed) {
+				throw new IllegalStateException("The write buffer is closed");
+			}
+			Group group = new Group(model, context);
+			if (isPendingElsewhere(group, ids)) {
+				// Merging would send these values before the pending ones
+				mSealed.add(mPending);
+				mPending = new LinkedHashMap<Group, LinkedHashMap<Long, HashMap<String, Object>>>();
+			}
+			LinkedHashMap<Long, HashMap<String, Object>> records = mPending.get(group);
+			if (records == null) {
+				records = new LinkedHashMap<Long, HashMap<String, Object>>();
+				mPending.put(group, records);
+			}
+			for (Long id : ids) {
+				HashMap<String, Object> merged = records.get(id);
+				if (merged == null) {
+					merged = new HashMap<String, Object>();
+					records.put(id, merged);
+					mPendingRecords++;
+				}
+				merged.putAll(values);
+			}
+			if (mPendingRecords >= mMaxRecords) {
+				flushNow = true;
+			} else if (mScheduledFlush == null && mMaxDelayMillis > 0) {
+				mScheduledFlush = mExecutor.schedule(new Runnable() {
+					public void run() {
+						flushAndNotify();
+					}
+				}, mMaxDelayMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (flushNow) {
+			try {
+				mExecutor.execute(new Runnable() {
+					public void run() {
+						flushAndNotify();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Closed meanwhile, close() has flushed the records
+			}
+		}
+	}
+
+	/** @return True if any of the records is pending in another group. */
+	private boolean isPendingElsewhere(Group group, Long[] ids) {
+		for (Map.Entry<Group, LinkedHashMap<Long, HashMap<String, Object>>> entry : mPending.entrySet()) {
+			if (entry.getKey().equals(group) || !entry.getKey().mModel.equals(group.mModel)) {
+				continue;
+			}
+			for (Long id : ids) {
+				if (entry.getValue().containsKey(id)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** @return Number of records waiting to be written. */
+	public synchronized int getPendingRecords() {
+		return mPendingRecords;
+	}
+
+	/** Sends everything pending now, in the caller's thread. */
+	public Result flush() {
+		synchronized (mFlushLock) {
+			List<Map<Group, LinkedHashMap<Long, HashMap<String, Object>>>> pending;
+			synchronized (this) {
+				pending = mSealed;
+				pending.add(mPending);
+				mSealed = new ArrayList<Map<Group, LinkedHashMap<Long, HashMap<String, Object>>>>();
+				mPending = new LinkedHashMap<Group, LinkedHashMap<Long, HashMap<String, Object>>>();
+				mPendingRecords = 0;
+				if (mScheduledFlush != null) {
+					mScheduledFlush.cancel(false);
+					mScheduledFlush = null;
+				}
+			}
+			Result result = new Result();
+			for (Map<Group, LinkedHashMap<Long, HashMap<String, Object>>> groups : pending) {
+				for (Map.Entry<Group, LinkedHashMap<Long, HashMap<String, Object>>> entry : groups.entrySet()) {
+					Group group = entry.getKey();
+					for (Map.Entry<Values, List<Long>> batch : groupByValues(entry.getValue()).entrySet()) {
+						List<Long> ids = batch.getValue();
+						HashMap<String, Object> values = batch.getKey().mValues;
+						Boolean writeOk = mConnection.write(group.mModel, ids.toArray(new Long[ids.size()]), values, group.mContext);
+						boolean success = writeOk != null && writeOk;
+						for (Long id : ids) {
+							result.mOutcomes.add(new Outcome(group.mModel, id, values, success));
+						}
+					}
+				}
+			}
+			return result;
+		}
+	}
+
+	/** Flushes what is left and stops the background thread. */
+	public Result close() {
+		synchronized (this) {
+			mClosed = true;
+		}
+		Result result = flush();
+		mExecutor.shutdown();
+		return result;
+	}
+
+	private void flushAndNotify() {
+		Result result = flush();
+		Listener listener = mListener;
+		if (listener != null && !result.mOutcomes.isEmpty()) {
+			listener.onFlush(result);
+		}
+	}
+
+	/** Records with equal value maps can be written with a single call. */
+	private static Map<Values, List<Long>> groupByValues(LinkedHashMap<Long, HashMap<String, Object>> records) {
+		Map<Values, List<Long>> batches = new LinkedHashMap<Values, List<Long>>();
+		for (Map.Entry<Long, HashMap<String, Object>> record : records.entrySet()) {
+			Values values = new Values(record.getValue());
+			List<Long> ids = batches.get(values);
+			if (ids == null) {
+				ids = new ArrayList<Long>();
+				batches.put(values, ids);
+			}
+			ids.add(record.getKey());
+		}
+		return batches;
+	}
+
+	/** A value map compared by content, arrays included. */
+	private static class Values {
+
+		private final HashMap<String, Object> mValues;
+		private final Object mKey;
+
+		Values(HashMap<String, Object> values) {
+			mValues = values;
+			mKey = normalize(values);
+		}
+
+		/** @return The value with its arrays turned into Lists, which compare by content. */
+		private static Object normalize(Object value) {
+			if (value instanceof Object[]) {
+				return normalize(Arrays.asList((Object[]) value));
+			} else if (value instanceof int[]) {
+				List<Object> list = new ArrayList<Object>();
+				for (int item : (int[]) value) {
+					list.add(item);
+				}
+				return list;
+			} else if (value instanceof long[]) {
+				List<Object> list = new ArrayList<Object>();
+				for (long item : (long[]) value) {
+					list.add(item);
+				}
+				return list;
+			} else if (value instanceof Collection) {
+				List<Object> list = new ArrayList<Object>();
+				for (Object item : (Collection<?>) value) {
+					list.add(normalize(item));
+				}
+				return list;
+			} else if (value instanceof Map) {
+				HashMap<Object, Object> map = new HashMap<Object, Object>();
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+					map.put(entry.getKey(), normalize(entry.getValue()));
+				}
+				return map;
+			}
+			return value;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Values && mKey.equals(((Values) o).mKey);
+		}
+
+		@Override
+		public int hashCode() {
+			return mKey.hashCode();
+		}
+	}
+
+	private static class Group {
+
+		private final String mModel;
+		private final HashMap<String, ?> mContext;
+
+		Group(String model, HashMap<String, ?> context) {
+			mModel = model;
+			// Copied, so later changes by the caller do not move the records
+			mContext = context != null ? new HashMap<String, Object>(context) : null;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Group)) {
+				return false;
+			}
+			Group other = (Group) o;
+			return mModel.equals(other.mModel) && (mContext == null ? other.mContext == null : mContext.equals(other.mContext));
+		}
+
+		@Override
+		public int hashCode() {
+			return mModel.hashCode() * 31 + (mContext != null ? mContext.hashCode() : 0);
+		}
+	}
+
+	/** What happened to one record in a flush. */
+	public static class Outcome {
+
+		private final String mModel;
+		private final Long mId;
+		private final HashMap<String, Object> mValues;
+		private final boolean mSuccess;
+
+		Outcome(String model, Long id, HashMap<String, Object> values, boolean success) {
+			mModel = model;
+			mId = id;
+			mValues = values;
+			mSuccess = success;
+		}
+
+		public String getModel() {
+			return mModel;
+		}
+
+		public Long getId() {
+			return mId;
+		}
+
+		/** @return The merged values that were sent for the record. */
+		public HashMap<String, Object> getValues() {
+			return mValues;
+		}
+
+		public boolean isSuccess() {
+			return mSuccess;
+		}
+	}
+
+	public static class Result {
+
+		private final List<Outcome> mOutcomes = new ArrayList<Outcome>();
+
+		public List<Outcome> getOutcomes() {
+			return Collections.unmodifiableList(mOutcomes);
+		}
+
+		public List<Outcome> getFailed() {
+			List<Outcome> failed = new ArrayList<Outcome>();
+			for (Outcome outcome : mOutcomes) {
+				if (!outcome.isSuccess()) {
+					failed.add(outcome);
+				}
+			}
+			return failed;
+		}
+
+		public boolean isSuccess() {
+			return getFailed().isEmpty();
+		}
+	}
+}
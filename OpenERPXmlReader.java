@@ -0,0 +1,592 @@
+package com.openerp.attendances;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFault;
+
+/**
+ * Minimal pull parser for XML-RPC responses (and calls). It only
+ * understands the subset of XML used by XML-RPC, which lets it read
+ * character data in chunks straight from its buffer: the content of binary
+ * fields accepted by the OpenERPBinary.Sink is base64-decoded on the fly and
+ * never becomes a String.
+ */
+class OpenERPXmlReader {
+
+	private static final int TYPE_INT = 0;
+	private static final int TYPE_I8 = 1;
+	private static final int TYPE_BOOLEAN = 2;
+	private static final int TYPE_DOUBLE = 3;
+	private static final int TYPE_DATETIME = 4;
+
+	private Reader mIn;
+	private final char[] mBuffer;
+	private int mPosition;
+	private int mLimit;
+
+	private OpenERPBinary.Sink mSink;
+	private boolean mDatesAsMillis;
+	/** The binary field being decoded, and the ones already decoded. */
+	private BinaryTarget mOpenBinary;
+	private final List<Object> mBinaries = new ArrayList<Object>();
+
+	/** Name of the last tag read, without the '/' of end tags. */
+	private final StringBuilder mTag = new StringBuilder(32);
+	private boolean mEndTag;
+	private boolean mEmptyTag;
+
+	private final StringBuilder mText = new StringBuilder(64);
+	private final TextTarget mTextTarget = new TextTarget() {
+		public void text(char[] chars, int offset, int length) {
+			mText.append(chars, offset, length);
+		}
+	};
+
+	private final StringBuilder mEntity = new StringBuilder(8);
+	private final char[] mEntityChars = new char[2];
+
+	OpenERPXmlReader(Reader in, OpenERPBinary.Sink sink) {
+		mIn = in;
+		mSink = sink;
+		mBuffer = new char[8 * 1024];
+	}
+
+	/**
+	 * Points the reader to another response, see OpenERPBufferPool. The
+	 * buffers and builders are kept.
+	 */
+	void reset(Reader in, OpenERPBinary.Sink sink) {
+		mIn = in;
+		mSink = sink;
+		mPosition = 0;
+		mLimit = 0;
+		mTag.setLength(0);
+		mEndTag = false;
+		mEmptyTag = false;
+		mText.setLength(0);
+		mOpenBinary = null;
+		mBinaries.clear();
+		mDatesAsMillis = false;
+	}
+
+	/** Reads dateTime values as Long milliseconds instead of Date. */
+	void setDatesAsMillis(boolean datesAsMillis) {
+		mDatesAsMillis = datesAsMillis;
+	}
+
+	/**
+	 * @return The decoded result of a methodResponse.
+	 * @throws XMLRPCFault
+	 *             If the server answered with a fault.
+	 */
+	Object readMethodResponse() throws IOException, XMLRPCException {
+		boolean read = false;
+		try {
+			Object result = readResponse();
+			read = true;
+			return result;
+		} finally {
+			if (!read) {
+				discardBinaries();
+			}
+		}
+	}
+
+	private Object readResponse() throws IOException, XMLRPCException {
+		nextTag();
+		expect("methodResponse");
+		nextTag();
+		if (isTag("fault")) {
+			nextTag();
+			expect("value");
+			throw toFault(readValue(null));
+		}
+		expect("params");
+		nextTag();
+		expect("param");
+		nextTag();
+		expect("value");
+		return mEmptyTag ? "" : readValue(null);
+	}
+
+	/**
+	 * Reads a methodCall, which only the stand-in server of OpenERPSimulator
+	 * needs.
+	 *
+	 * @return The method name followed by the params.
+	 */
+	Object[] readMethodCall() throws IOException, XMLRPCException {
+		nextTag();
+		expect("methodCall");
+		nextTag();
+		expect("methodName");
+		mText.setLength(0);
+		readText(mTextTarget);
+		List<Object> call = new ArrayList<Object>();
+		call.add(mText.toString().trim());
+		readTag(); // </methodName>
+		nextTag();
+		if (mEndTag || mEmptyTag) { // </methodCall> or <params/>
+			return call.toArray();
+		}
+		expect("params");
+		while (true) {
+			nextTag();
+			if (mEndTag) { // </params>
+				return call.toArray();
+			}
+			expect("param");
+			nextTag();
+			expect("value");
+			call.add(mEmptyTag ? "" : readValue(null));
+			nextTag(); // </param>
+		}
+	}
+
+	private XMLRPCFault toFault(Object value) {
+		String faultString = "";
+		int faultCode = 0;
+		if (value instanceof HashMap) {
+			HashMap<?, ?> fault = (HashMap<?, ?>) value;
+			Object code = fault.get("faultCode");
+			faultString = String.valueOf(fault.get("faultString"));
+			if (code instanceof Integer) {
+				faultCode = (Integer) code;
+			} else if (code != null) {
+				// OpenERP sends the exception message as a String faultCode
+				faultString = code + "\n" + faultString;
+			}
+		}
+		return new XMLRPCFault(faultString, faultCode);
+	}
+
+	/**
+	 * The response will not reach the caller: aborts the binary field being
+	 * decoded and deletes the files of the ones already decoded.
+	 */
+	private void discardBinaries() {
+		if (mOpenBinary != null) {
+			mOpenBinary.abort();
+		}
+		for (Object binary : mBinaries) {
+			if (binary instanceof OpenERPBinary) {
+				((OpenERPBinary) binary).delete();
+			}
+		}
+		mBinaries.clear();
+	}
+
+	/** Reads a value whose start tag has just been consumed. */
+	private Object readValue(String member) throws IOException, XMLRPCException {
+		BinaryTarget binary = null;
+		if (member != null && mSink != null && mSink.accepts(member)) {
+			binary = new BinaryTarget(member);
+			mOpenBinary = binary;
+		}
+		mText.setLength(0);
+		readText(binary != null ? binary : mTextTarget);
+		readTag();
+		if (mEndTag) {
+			// Untyped value, which XML-RPC defines as a string
+			return binary != null ? binary.close() : mText.toString();
+		}
+
+		if (binary != null && (mEmptyTag || !(isTag("string") || isTag("base64")))) {
+			binary.abort(); // Empty, or not a binary value
+			binary = null;
+		}
+		Object value;
+		if (mEmptyTag) {
+			if (isTag("struct")) {
+				value = new HashMap<String, Object>();
+			} else if (isTag("array")) {
+				value = new Object[0];
+			} else {
+				value = isTag("nil") ? null : "";
+			}
+		} else if (isTag("string")) {
+			if (binary == null) {
+				mText.setLength(0);
+			}
+			readText(binary != null ? binary : mTextTarget);
+			readTag();
+			value = binary != null ? binary.close() : mText.toString();
+		} else if (isTag("struct")) {
+			value = readStruct();
+		} else if (isTag("array")) {
+			value = readArray();
+		} else if (isTag("base64")) {
+			value = readBase64(binary);
+		} else {
+			value = readScalar();
+		}
+		nextTag(); // </value>
+		return value;
+	}
+
+	private Object readScalar() throws IOException, XMLRPCException {
+		int type;
+		if (isTag("int") || isTag("i4")) {
+			type = TYPE_INT;
+		} else if (isTag("i8")) {
+			type = TYPE_I8;
+		} else if (isTag("boolean")) {
+			type = TYPE_BOOLEAN;
+		} else if (isTag("double")) {
+			type = TYPE_DOUBLE;
+		} else if (isTag("dateTime.iso8601")) {
+			type = TYPE_DATETIME;
+		} else {
+			throw new XMLRPCException("Cannot deserialize " + mTag);
+		}
+		mText.setLength(0);
+		readText(mTextTarget);
+		readTag();
+		try {
+			switch (type) {
+			case TYPE_INT:
+				long value = parseLong(mText);
+				if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+					throw new NumberFormatException("Out of range int: " + value);
+				}
+				return Integer.valueOf((int) value);
+			case TYPE_I8:
+				return Long.valueOf(parseLong(mText));
+			case TYPE_BOOLEAN:
+				return Boolean.valueOf(parseLong(mText) == 1);
+			case TYPE_DOUBLE:
+				return Double.valueOf(mText.toString().trim());
+			default:
+				long millis = OpenERPDateCodec.parse(mText, 0, mText.length(), false);
+				return mDatesAsMillis ? (Object) Long.valueOf(millis) : new Date(millis);
+			}
+		} catch (NumberFormatException e) {
+			throw new XMLRPCException(e);
+		}
+	}
+
+	private HashMap<String, Object> readStruct() throws IOException, XMLRPCException {
+		HashMap<String, Object> struct = new HashMap<String, Object>();
+		while (true) {
+			nextTag();
+			if (mEndTag) { // </struct>
+				return struct;
+			}
+			expect("member");
+			nextTag();
+			expect("name");
+			mText.setLength(0);
+			readText(mTextTarget);
+			String name = mText.toString();
+			readTag(); // </name>
+			nextTag();
+			expect("value");
+			Object value = mEmptyTag ? "" : readValue(name);
+			nextTag(); // </member>
+			struct.put(name, value);
+		}
+	}
+
+	private Object[] readArray() throws IOException, XMLRPCException {
+		List<Object> items = new ArrayList<Object>();
+		nextTag();
+		expect("data");
+		if (!mEmptyTag) {
+			while (true) {
+				nextTag();
+				if (mEndTag) { // </data>
+					break;
+				}
+				expect("value");
+				items.add(mEmptyTag ? "" : readValue(null));
+			}
+		}
+		nextTag(); // </array>
+		return items.toArray();
+	}
+
+	private Object readBase64(BinaryTarget binary) throws IOException, XMLRPCException {
+		if (binary != null) {
+			readText(binary);
+			readTag();
+			return binary.close();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final OpenERPBase64.Decoder decoder = new OpenERPBase64.Decoder(bytes);
+		readText(new TextTarget() {
+			public void text(char[] chars, int offset, int length) throws IOException {
+				decoder.decode(chars, offset, length);
+			}
+		});
+		readTag();
+		decoder.finish();
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Tokenizer
+	 */
+
+	private interface TextTarget {
+		void text(char[] chars, int offset, int length) throws IOException;
+	}
+
+	/**
+	 * Streams the content of a binary field to the sink. The sink is only
+	 * opened when the first base64 character arrives, so empty values and
+	 * the False OpenERP sends for empty fields do not create anything.
+	 */
+	private class BinaryTarget implements TextTarget {
+
+		private final String mField;
+		private OutputStream mOut;
+		private OpenERPBase64.Decoder mDecoder;
+
+		BinaryTarget(String field) {
+			mField = field;
+		}
+
+		public void text(char[] chars, int offset, int length) throws IOException {
+			if (mDecoder == null) {
+				int end = offset + length;
+				while (offset < end && Character.isWhitespace(chars[offset])) {
+					offset++;
+				}
+				if (offset == end) {
+					return;
+				}
+				length = end - offset;
+				mOut = mSink.open(mField);
+				mDecoder = new OpenERPBase64.Decoder(mOut);
+			}
+			mDecoder.decode(chars, offset, length);
+		}
+
+		Object close() throws IOException {
+			mOpenBinary = null;
+			if (mDecoder == null) {
+				return "";
+			}
+			mDecoder.finish();
+			OutputStream out = mOut;
+			mOut = null;
+			Object value = mSink.close(mField, out, mDecoder.length());
+			mBinaries.add(value);
+			return value;
+		}
+
+		/** Releases the sink stream, if it was opened, without a value. */
+		void abort() {
+			mOpenBinary = null;
+			if (mOut != null) {
+				OutputStream out = mOut;
+				mOut = null;
+				mSink.abort(mField, out);
+			}
+		}
+	}
+
+	private boolean fill() throws IOException {
+		int read = mIn.read(mBuffer, 0, mBuffer.length);
+		mPosition = 0;
+		mLimit = read > 0 ? read : 0;
+		return read > 0;
+	}
+
+	private int read() throws IOException {
+		if (mPosition == mLimit && !fill()) {
+			return -1;
+		}
+		return mBuffer[mPosition++];
+	}
+
+	/**
+	 * Hands the character data up to the next '<' to the target, chunk by
+	 * chunk, and consumes the '<'.
+	 */
+	private void readText(TextTarget target) throws IOException {
+		while (true) {
+			if (mPosition == mLimit && !fill()) {
+				throw new EOFException("Unexpected end of XML-RPC response");
+			}
+			int start = mPosition;
+			while (mPosition < mLimit && mBuffer[mPosition] != '<' && mBuffer[mPosition] != '&') {
+				mPosition++;
+			}
+			if (mPosition > start) {
+				target.text(mBuffer, start, mPosition - start);
+			}
+			if (mPosition < mLimit) {
+				if (mBuffer[mPosition++] == '<') {
+					return;
+				}
+				target.text(mEntityChars, 0, readEntity());
+			}
+		}
+	}
+
+	/** @return The number of chars of the entity put in mEntityChars. */
+	private int readEntity() throws IOException {
+		StringBuilder name = mEntity;
+		name.setLength(0);
+		int c;
+		while ((c = read()) != ';') {
+			if (c == -1 || name.length() > 10) {
+				throw new IOException("Malformed XML entity &" + name);
+			}
+			name.append((char) c);
+		}
+		char ch;
+		if (equals(name, "lt")) {
+			ch = '<';
+		} else if (equals(name, "gt")) {
+			ch = '>';
+		} else if (equals(name, "amp")) {
+			ch = '&';
+		} else if (equals(name, "quot")) {
+			ch = '"';
+		} else if (equals(name, "apos")) {
+			ch = '\'';
+		} else if (name.length() > 1 && name.charAt(0) == '#') {
+			String entity = name.toString();
+			try {
+				int codePoint = entity.charAt(1) == 'x' ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1));
+				return Character.toChars(codePoint, mEntityChars, 0);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Malformed XML entity &" + entity + ";");
+			}
+		} else {
+			throw new IOException("Unknown XML entity &" + name + ";");
+		}
+		mEntityChars[0] = ch;
+		return 1;
+	}
+
+	/**
+	 * Skips anything up to the next element tag (whitespace, the XML
+	 * declaration, comments) and reads it.
+	 */
+	private void nextTag() throws IOException {
+		while (true) {
+			int c = read();
+			if (c == -1) {
+				throw new EOFException("Unexpected end of XML-RPC response");
+			}
+			if (c != '<') {
+				continue;
+			}
+			c = read();
+			if (c == -1) {
+				throw new EOFException("Unexpected end of XML-RPC response");
+			}
+			if (c == '?' || c == '!') {
+				skipMarkup(c == '!' && read() == '-');
+				continue;
+			}
+			mPosition--;
+			readTag();
+			return;
+		}
+	}
+
+	private void skipMarkup(boolean comment) throws IOException {
+		int previous = 0;
+		int beforePrevious = 0;
+		int c;
+		while ((c = read()) != -1) {
+			if (c == '>' && (!comment || (previous == '-' && beforePrevious == '-'))) {
+				return;
+			}
+			beforePrevious = previous;
+			previous = c;
+		}
+		throw new EOFException("Unexpected end of XML-RPC response");
+	}
+
+	/** Reads a tag whose '<' has been consumed. Attributes are ignored. */
+	private void readTag() throws IOException {
+		mTag.setLength(0);
+		mEndTag = false;
+		mEmptyTag = false;
+		boolean inName = true;
+		int previous = 0;
+		int c;
+		while ((c = read()) != '>') {
+			if (c == -1) {
+				throw new EOFException("Unexpected end of XML-RPC response");
+			}
+			if (c == '/' && mTag.length() == 0 && !mEndTag) {
+				mEndTag = true;
+			} else if (Character.isWhitespace(c) || c == '/') {
+				inName = false;
+			} else if (inName) {
+				mTag.append((char) c);
+			}
+			previous = c;
+		}
+		mEmptyTag = previous == '/';
+	}
+
+	private boolean isTag(String name) {
+		return equals(mTag, name);
+	}
+
+	private static boolean equals(StringBuilder text, String name) {
+		int length = name.length();
+		if (text.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (text.charAt(i) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void expect(String name) throws IOException {
+		if (!isTag(name) || mEndTag) {
+			throw new IOException("Malformed XML-RPC response, expected <" + name + "> but found <" + (mEndTag ? "/" : "") + mTag + ">");
+		}
+	}
+
+	private static long parseLong(CharSequence text) {
+		int length = text.length();
+		int i = 0;
+		while (i < length && Character.isWhitespace(text.charAt(i))) {
+			i++;
+		}
+		while (length > i && Character.isWhitespace(text.charAt(length - 1))) {
+			length--;
+		}
+		boolean negative = false;
+		if (i < length && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+			negative = text.charAt(i) == '-';
+			i++;
+		}
+		if (i == length) {
+			throw new NumberFormatException("Empty number");
+		}
+		long value = 0;
+		for (; i < length; i++) {
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Invalid number: " + text);
+			}
+			if (value > (Long.MAX_VALUE - digit) / 10) {
+				throw new NumberFormatException("Out of range number: " + text);
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+}
@@ -0,0 +1,215 @@
+package com.openerp.attendances;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Serializes XML-RPC method calls (and responses). Besides the usual types
+ * it accepts OpenERPBinary values, whose files are base64-encoded straight
+ * into the request body as the string OpenERP expects in binary fields.
+ */
+class OpenERPXmlWriter {
+
+	private Writer mOut;
+	private final char[] mDate = new char[OpenERPDateCodec.ISO8601_LENGTH];
+
+	OpenERPXmlWriter(Writer out) {
+		mOut = out;
+	}
+
+	/** Points the writer to another Writer, see OpenERPBufferPool. */
+	void reset(Writer out) {
+		mOut = out;
+	}
+
+	static final String METHOD_CALL_END = "</params></methodCall>";
+
+	void writeMethodCall(String method, Object[] params) throws IOException {
+		writeMethodCallStart(method);
+		writeParams(params);
+		writeMethodCallEnd();
+	}
+
+	/** Writes everything up to the first param. */
+	void writeMethodCallStart(String method) throws IOException {
+		mOut.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodCall><methodName>");
+		writeEscaped(method);
+		mOut.write("</methodName><params>");
+	}
+
+	void writeParams(Object[] params) throws IOException {
+		for (Object param : params) {
+			mOut.write("<param>");
+			writeValue(param);
+			mOut.write("</param>");
+		}
+	}
+
+	void writeMethodCallEnd() throws IOException {
+		mOut.write(METHOD_CALL_END);
+		mOut.flush();
+	}
+
+	/** Writes a methodResponse, for the stand-in server of OpenERPSimulator. */
+	void writeMethodResponse(Object value) throws IOException {
+		mOut.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodResponse><params><param>");
+		writeValue(value);
+		mOut.write("</param></params></methodResponse>");
+		mOut.flush();
+	}
+
+	/**
+	 * Writes a fault the way OpenERP does, with the exception message as a
+	 * String faultCode.
+	 */
+	void writeFault(String faultCode, String faultString) throws IOException {
+		mOut.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodResponse><fault><value><struct><member><name>faultCode</name>");
+		writeValue(faultCode);
+		mOut.write("</member><member><name>faultString</name>");
+		writeValue(faultString);
+		mOut.write("</member></struct></value></fault></methodResponse>");
+		mOut.flush();
+	}
+
+	void writeValue(Object value) throws IOException {
+		mOut.write("<value>");
+		if (value == null) {
+			mOut.write("<nil/>");
+		} else if (value instanceof String) {
+			mOut.write("<string>");
+			writeEscaped((String) value);
+			mOut.write("</string>");
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			mOut.write("<int>");
+			mOut.write(value.toString());
+			mOut.write("</int>");
+		} else if (value instanceof Long) {
+			long number = (Long) value;
+			// The ids are Long on our side but OpenERP works with int
+			boolean fits = number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE;
+			mOut.write(fits ? "<int>" : "<i8>");
+			mOut.write(Long.toString(number));
+			mOut.write(fits ? "</int>" : "</i8>");
+		} else if (value instanceof Boolean) {
+			mOut.write((Boolean) value ? "<boolean>1</boolean>" : "<boolean>0</boolean>");
+		} else if (value instanceof Double || value instanceof Float) {
+			mOut.write("<double>");
+			mOut.write(value.toString());
+			mOut.write("</double>");
+		} else if (value instanceof Date) {
+			mOut.write("<dateTime.iso8601>");
+			OpenERPDateCodec.formatIso8601(((Date) value).getTime(), mDate, 0);
+			mOut.write(mDate);
+			mOut.write("</dateTime.iso8601>");
+		} else if (value instanceof OpenERPBinary) {
+			mOut.write("<string>");
+			InputStream in = ((OpenERPBinary) value).openStream();
+			try {
+				OpenERPBase64.encode(in, mOut);
+			} finally {
+				in.close();
+			}
+			mOut.write("</string>");
+		} else if (value instanceof byte[]) {
+			mOut.write("<base64>");
+			OpenERPBase64.encode(new ByteArrayInputStream((byte[]) value), mOut);
+			mOut.write("</base64>");
+		} else if (value instanceof Map) {
+			mOut.write("<struct>");
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				mOut.write("<member><name>");
+				writeEscaped(String.valueOf(entry.getKey()));
+				mOut.write("</name>");
+				writeValue(entry.getValue());
+				mOut.write("</member>");
+			}
+			mOut.write("</struct>");
+		} else if (value instanceof Object[]) {
+			mOut.write("<array><data>");
+			for (Object item : (Object[]) value) {
+				writeValue(item);
+			}
+			mOut.write("</data></array>");
+		} else if (value instanceof Collection) {
+			mOut.write("<array><data>");
+			for (Object item : (Collection<?>) value) {
+				writeValue(item);
+			}
+			mOut.write("</data></array>");
+		} else if (value instanceof int[]) {
+			mOut.write("<array><data>");
+			for (int item : (int[]) value) {
+				writeValue(item);
+			}
+			mOut.write("</data></array>");
+		} else if (value instanceof long[]) {
+			mOut.write("<array><data>");
+			for (long item : (long[]) value) {
+				writeValue(item);
+			}
+			mOut.write("</data></array>");
+		} else {
+			throw new IOException("Cannot serialize " + value.getClass().getName());
+		}
+		mOut.write("</value>");
+	}
+
+	private void writeEscaped(String text) throws IOException {
+		int length = text.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			String replacement;
+			switch (text.charAt(i)) {
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '\r':
+				replacement = "&#13;";
+				break;
+			default:
+				continue;
+			}
+			mOut.write(text, start, i - start);
+			mOut.write(replacement);
+			start = i + 1;
+		}
+		mOut.write(text, start, length - start);
+	}
+
+	/** @return True if the value contains OpenERPBinary content to stream. */
+	static boolean hasBinary(Object value) {
+		if (value instanceof OpenERPBinary) {
+			return true;
+		} else if (value instanceof Map) {
+			for (Object item : ((Map<?, ?>) value).values()) {
+				if (hasBinary(item)) {
+					return true;
+				}
+			}
+		} else if (value instanceof Object[]) {
+			for (Object item : (Object[]) value) {
+				if (hasBinary(item)) {
+					return true;
+				}
+			}
+		} else if (value instanceof Collection) {
+			for (Object item : (Collection<?>) value) {
+				if (hasBinary(item)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
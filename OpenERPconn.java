@@ -1,15 +1,20 @@
 package com.openerp.attendances;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
-import org.xmlrpc.android.XMLRPCClient;
 import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFault;
 
 import android.content.ContentValues;
 import android.util.Log;
@@ -41,8 +46,26 @@ public class OpenERPconn {
 	protected String mPassword;
 	private Integer mUserId;
 	protected URL mUrl;
+	protected OpenERPTransport mTransport;
+	/** Templates per model, then per method, at most MAX_TEMPLATES in all */
+	private final HashMap<String, HashMap<String, OpenERPRequestTemplate>> mTemplates = new HashMap<String, HashMap<String, OpenERPRequestTemplate>>();
+	private int mTemplateCount;
+	private long mDefaultDeadline;
+	private volatile OpenERPLimiter mLimiter;
+	private volatile OpenERPEndpoints mEndpoints;
+	private final HashMap<String, Long> mDefaultDeadlines = new HashMap<String, Long>();
+	private static final HashMap<String, Long> sServiceDeadlines = new HashMap<String, Long>();
+	private static volatile OpenERPTracer sServiceTracer;
+	/** Shared by all the connections, the keys start with relationsKey() */
+	private static final OpenERPCacheManager.Cache<String, String> sRelations = OpenERPCacheManager.getDefault().newCache("relations", 4);
+	/** Cached in sRelations for the fields which are not relational */
+	private static final String NO_RELATION = "";
+	private static final OpenERPCacheManager.Cache<String, HashMap<String, Object>> sSchemas = OpenERPCacheManager.getDefault().newCache("schemas", 4);
 
 	protected static final String CONNECTOR_NAME = "OpenERPconn";
+	private static final int MAX_TEMPLATES = 64;
+	/** Computed by the server from write_date, for any model */
+	static final String LAST_UPDATE_FIELD = "__last_update";
 
 	public Integer getUserId() {
 		return mUserId;
@@ -92,6 +115,19 @@ public class OpenERPconn {
 		this.mPassword = mPassword;
 	}
 
+	public OpenERPTransport getTransport() {
+		return mTransport;
+	}
+
+	/**
+	 * Lets connections to the same server share one transport, and with it
+	 * the tracer and compression settings: setTracer() or setCompression() on
+	 * any of them changes all of them.
+	 */
+	public void setTransport(OpenERPTransport mTransport) {
+		this.mTransport = mTransport;
+	}
+
 	/** You should not use the constructor directly, use connect() instead */
 	public OpenERPconn(String server, Integer port, String db, String user, String pass, Integer id) throws MalformedURLException {
 		mServer = server;
@@ -101,6 +137,7 @@ public class OpenERPconn {
 		mPassword = pass;
 		mUserId = id;
 		mUrl = new URL("http", server, port, "/xmlrpc/object");
+		mTransport = new OpenERPTransport(mUrl);
 	}
 
 	/**
@@ -111,6 +148,15 @@ public class OpenERPconn {
 		return login(server, port, db, user, pass);
 	}
 
+	/**
+	 * Same as connect(), warming the connection up as configured.
+	 * 
+	 * @see OpenERPWarmUp
+	 */
+	public static OpenERPconn connect(String server, Integer port, String db, String user, String pass, OpenERPWarmUp warmUp) {
+		return warmUp.connect(server, port, db, user, pass);
+	}
+
 	public static OpenERPconn connect(ContentValues connectionParams) {
 		return login(connectionParams);
 	}
@@ -124,8 +170,7 @@ public class OpenERPconn {
 		OpenERPconn connection = null;
 		try {
 			URL loginUrl = new URL("http", server, port, "/xmlrpc/common");
-			XMLRPCClient client = new XMLRPCClient(loginUrl);
-			Integer id = (Integer) client.call("login", db, user, pass);
+			Integer id = (Integer) callService(loginUrl, "login", db, user, pass);
 			connection = new OpenERPconn(server, port, db, user, pass, id);
 		} catch (XMLRPCException e) {
 			Log.d(CONNECTOR_NAME, e.toString());
@@ -145,13 +190,13 @@ public class OpenERPconn {
 	 * HashMap<String, Object> values = new HashMap<String, Object>(); <br>
 	 * values.put("name", "hello"); <br>
 	 * values.put("number", 10); <br>
-	 * </code>
+	 * </code> Binary fields can be given an OpenERPBinary, which will be
+	 * uploaded from its file without loading it in memory.
 	 * */
 	public Long create(String model, HashMap<String, ?> values, HashMap<String, ?> context) {
 		Long newObjectId = null;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			newObjectId = ((Integer) client.call("execute", mDatabase, getUserId(), mPassword, model, "create", values, context)).longValue();
+			newObjectId = ((Integer) execute(model, "create", values, context)).longValue();
 		} catch (XMLRPCException e) {
 			Log.d(CONNECTOR_NAME, e.toString());
 		}
@@ -177,35 +222,30 @@ public class OpenERPconn {
 	/**
 	 * If count is true the resulting array will only contain the number of
 	 * matching ids. You can pass new Object[0] to specify an empty list of
-	 * conditions, which will return all the ids for that model.
+	 * conditions, which will return all the ids for that model.<br>
+	 * The order, e.g. "name, id desc", is applied by the server before the
+	 * offset and limit. With reverseOrder each of its fields is sorted the
+	 * other way round; without an order the ids in the default order of the
+	 * model are just reversed. For deep pages over big tables use
+	 * searchAfter() or an OpenERPPager, which do not get slower with the
+	 * offset.
 	 * 
 	 * @return The ids of matching objects.
 	 * */
 	public Long[] search(String model, boolean count, Integer offset, Integer limit, String order, boolean reverseOrder, Object[] conditions) {
 		Long[] result = null;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			List<Object> parameters = new ArrayList<Object>(11);
-			parameters.add(mDatabase);
-			parameters.add(getUserId());
-			parameters.add(mPassword);
-			parameters.add(model);
-			parameters.add("search");
-			parameters.add(conditions);
-			parameters.add(offset);
-			parameters.add(limit);
-			parameters.add(order);
-			parameters.add(null);
-			parameters.add(count);
+			String serverOrder = order;
+			if (reverseOrder && order != null) {
+				serverOrder = reverseOrder(order);
+			}
+			Object response = execute(model, "search", conditions, offset != null ? offset : 0, limit != null && limit > 0 ? limit : false, serverOrder != null ? serverOrder : false,
+					new HashMap<String, Object>(), count);
 			if (count) { // We just want the number of items
-				// result = new Long[] { ((Integer) client.call("execute",
-				// parameters)).longValue() };
-				result = new Long[] { ((Integer) client.call("execute", mDatabase, getUserId(), mPassword, model, "search", conditions, offset, limit)).longValue() };
+				result = new Long[] { ((Integer) response).longValue() };
 
 			} else { // Returning the list of matching item id's
-				Object[] responseIds = (Object[]) client.call("execute", mDatabase, getUserId(), mPassword, model, "search", conditions, offset, limit);
-				// Object[] responseIds = (Object[]) client.call("execute",
-				// parameters);
+				Object[] responseIds = (Object[]) response;
 
 				// In case no matching records were found, an empty list is
 				// returned by the ws
@@ -215,7 +255,7 @@ public class OpenERPconn {
 				for (int i = 0; i < responseIds.length; i++) {
 					result[i] = ((Integer) responseIds[i]).longValue();
 				}
-				if (reverseOrder) {
+				if (reverseOrder && order == null) {
 					reverseArray(result);
 				}
 			}
@@ -228,6 +268,62 @@ public class OpenERPconn {
 		return result;
 	}
 
+	/** @return The order with asc and desc swapped in each of its fields. */
+	static String reverseOrder(String order) {
+		StringBuilder reversed = new StringBuilder();
+		for (String part : order.split(",")) {
+			String[] words = part.trim().split("\\s+");
+			if (words[0].length() == 0) {
+				continue;
+			}
+			if (reversed.length() > 0) {
+				reversed.append(", ");
+			}
+			boolean descending = words.length > 1 && words[1].equalsIgnoreCase("desc");
+			reversed.append(words[0]).append(descending ? " asc" : " desc");
+		}
+		return reversed.toString();
+	}
+
+	/**
+	 * Keyset pagination: the ids of the records which come after the record
+	 * (afterKey, afterId) when sorted by field and then id, in that order.
+	 * Unlike a growing offset, the server finds where each page starts with
+	 * the index of the field, so deep pages cost the same as the first one.
+	 * The field must not be a relation, as the server sorts those by the
+	 * related records, and should not be empty in any record, as empty values
+	 * are sorted apart. Pass null afterId for the first page.
+	 * 
+	 * @param afterKey
+	 *            Value of the field in the last record of the previous page.
+	 * @return The ids of the page, null if the search failed.
+	 */
+	public Long[] searchAfter(String model, Object[] conditions, String field, boolean descending, Object afterKey, Long afterId, int limit) {
+		Object[] domain = conditions;
+		if (afterId != null) {
+			String comparison = descending ? "<" : ">";
+			domain = new Object[conditions.length + 5];
+			System.arraycopy(conditions, 0, domain, 0, conditions.length);
+			int i = conditions.length;
+			domain[i++] = "|";
+			domain[i++] = new Object[] { field, comparison, afterKey };
+			domain[i++] = "&";
+			domain[i++] = new Object[] { field, "=", afterKey };
+			domain[i++] = new Object[] { "id", comparison, afterId };
+		}
+		String direction = descending ? " desc" : " asc";
+		return search(model, false, 0, limit, field + direction + ", id" + direction, false, domain);
+	}
+
+	/**
+	 * @return A pager over the records matching the conditions, sorted by
+	 *         field and then id.
+	 * @see OpenERPPager
+	 */
+	public OpenERPPager page(String model, Object[] conditions, String field, boolean descending, int pageSize, String... fields) {
+		return new OpenERPPager(this, model, conditions, field, descending, pageSize, fields);
+	}
+
 	/**
 	 * Each HashMap in the List contains the values for the specified fields for
 	 * each object in the ids (in the same order).
@@ -251,8 +347,7 @@ public class OpenERPconn {
 	public List<HashMap<String, Object>> read(String model, Long[] ids, String[] fields) {
 		List<HashMap<String, Object>> Records = null;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			Object[] responseFields = (Object[]) client.call("execute", mDatabase, getUserId(), mPassword, model, "read", ids, fields);
+			Object[] responseFields = (Object[]) execute(model, "read", ids, fields);
 			Records = new ArrayList<HashMap<String, Object>>(responseFields.length);
 			for (Object objectFields : responseFields) {
 				Records.add((HashMap<String, Object>) objectFields);
@@ -263,24 +358,182 @@ public class OpenERPconn {
 		return Records;
 	}
 
-	/** Used to modify an existing object. */
+	/**
+	 * Same as read(), but the binary fields accepted by the sink (e.g. the
+	 * image of hr.employee or the datas of ir.attachment) are base64-decoded
+	 * to it while the response is being received, instead of ending up as a
+	 * String in the HashMap. Each record holds the object returned by the
+	 * sink for those fields, an OpenERPBinary if you use
+	 * OpenERPBinary.FileSink.
+	 * */
+	@SuppressWarnings("unchecked")
+	public List<HashMap<String, Object>> read(String model, Long[] ids, String[] fields, OpenERPBinary.Sink binarySink) {
+		List<HashMap<String, Object>> Records = null;
+		try {
+			Object[] responseFields = (Object[]) executeStreaming(binarySink, model, "read", ids, fields);
+			Records = new ArrayList<HashMap<String, Object>>(responseFields.length);
+			for (Object objectFields : responseFields) {
+				Records.add((HashMap<String, Object>) objectFields);
+			}
+		} catch (XMLRPCException e) {
+			Log.d(CONNECTOR_NAME, e.toString());
+		}
+		return Records;
+	}
+
+	/**
+	 * Decodes the binary field of one record straight to the stream, which is
+	 * not closed.
+	 * 
+	 * @return False if the record could not be read or the field is empty.
+	 * */
+	public boolean readBinary(String model, long id, final String field, final OutputStream out) {
+		OpenERPBinary.Sink sink = new OpenERPBinary.Sink() {
+			public boolean accepts(String name) {
+				return field.equals(name);
+			}
+
+			public OutputStream open(String name) {
+				return out;
+			}
+
+			public Object close(String name, OutputStream stream, long length) throws IOException {
+				stream.flush();
+				return Long.valueOf(length);
+			}
+
+			public void abort(String name, OutputStream stream) {
+				// The stream belongs to the caller
+			}
+		};
+		List<HashMap<String, Object>> records = read(model, new Long[] { id }, new String[] { field }, sink);
+		return records != null && records.size() == 1 && records.get(0).get(field) instanceof Long;
+	}
+
+	/**
+	 * Used to modify an existing object. As in create(), binary fields can be
+	 * given an OpenERPBinary.
+	 */
 	public Boolean write(String model, Long[] ids, HashMap<String, ?> values, HashMap<String, ?> context) {
 		Boolean writeOk = false;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			writeOk = (Boolean) client.call("execute", mDatabase, getUserId(), mPassword, model, "write", ids, values, context);
+			writeOk = (Boolean) execute(model, "write", ids, values, context);
 		} catch (XMLRPCException e) {
 			Log.d(CONNECTOR_NAME, e.toString());
 		}
 		return writeOk;
 	}
 
+	/**
+	 * Writes only the fields whose value differs from the one read, so the
+	 * big text and binary fields which were not edited are not sent again.
+	 * If the original values hold __last_update (add it to the fields of
+	 * read()) or write_date, the server refuses the write if the record was
+	 * modified after it was read.
+	 * 
+	 * @param original
+	 *            The values as read().
+	 * @param values
+	 *            The values edited, all of them or just the changed ones.
+	 * @return False if nothing changed, in which case nothing is sent.
+	 * @throws OpenERPconnException
+	 *             With ERROR_CONFLICT if it was modified meanwhile.
+	 * */
+	public boolean writeChanges(String model, Long id, Map<String, ?> original, Map<String, ?> values) throws OpenERPconnException {
+		HashMap<String, Object> changes = diff(original, values);
+		if (changes.isEmpty()) {
+			return false;
+		}
+		HashMap<String, Object> context = new HashMap<String, Object>();
+		Object lastUpdate = original.get(LAST_UPDATE_FIELD);
+		if (lastUpdate == null || Boolean.FALSE.equals(lastUpdate)) {
+			lastUpdate = original.get("write_date");
+		}
+		if (lastUpdate != null && !Boolean.FALSE.equals(lastUpdate)) {
+			HashMap<String, Object> lastUpdates = new HashMap<String, Object>();
+			lastUpdates.put(model + "," + id, lastUpdate);
+			context.put(LAST_UPDATE_FIELD, lastUpdates);
+		}
+		try {
+			execute(model, "write", new Long[] { id }, changes, context);
+			return true;
+		} catch (XMLRPCFault e) {
+			if (e.getFaultString() != null && e.getFaultString().contains("ConcurrencyException")) {
+				throw new OpenERPconnException(OpenERPconnException.ERROR_CONFLICT);
+			}
+			throw new OpenERPconnException(e.toString());
+		} catch (XMLRPCException e) {
+			throw new OpenERPconnException(e.toString());
+		}
+	}
+
+	/**
+	 * @return The values which differ from the original ones, in the form
+	 *         write() expects: many2one fields as the id and x2many fields as
+	 *         a replacement of the ids.
+	 */
+	public static HashMap<String, Object> diff(Map<String, ?> original, Map<String, ?> values) {
+		HashMap<String, Object> changes = new HashMap<String, Object>();
+		for (Map.Entry<String, ?> entry : values.entrySet()) {
+			String field = entry.getKey();
+			if (field.equals("id") || field.equals(LAST_UPDATE_FIELD) || field.equals("write_date") || field.equals("write_uid") || field.equals("create_date")
+					|| field.equals("create_uid")) {
+				continue; // Set by the server
+			}
+			Object value = entry.getValue();
+			if (original.containsKey(field) && sameValue(original.get(field), value)) {
+				continue;
+			}
+			if (value instanceof Object[]) {
+				Object[] array = (Object[]) value;
+				value = OpenERPDomain.isMany2one(array) ? array[0] : new Object[] { new Object[] { 6, 0, array } };
+			} else if (value == null) {
+				value = false;
+			}
+			changes.put(field, value);
+		}
+		return changes;
+	}
+
+	/** Whatever the form, e.g. a many2one as [id, name] or as the id */
+	private static boolean sameValue(Object original, Object value) {
+		if (original == value) {
+			return true;
+		}
+		if (original instanceof Object[] && value instanceof Object[] && !OpenERPDomain.isMany2one((Object[]) original) && !OpenERPDomain.isMany2one((Object[]) value)) {
+			Object[] originalIds = (Object[]) original;
+			Object[] ids = (Object[]) value;
+			if (originalIds.length != ids.length) {
+				return false;
+			}
+			for (int i = 0; i < ids.length; i++) {
+				if (!sameValue(originalIds[i], ids[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+		Object a = OpenERPDomain.normalize(original);
+		Object b = OpenERPDomain.normalize(value);
+		return a == null ? b == null : !(a instanceof Object[]) && a.equals(b);
+	}
+
+	/**
+	 * @return A buffer which merges successive writes to the same record and
+	 *         sends the records with identical values in a single write().
+	 *         It flushes itself when it holds maxRecords records or
+	 *         maxDelayMillis after the first buffered write.
+	 * @see OpenERPWriteBuffer
+	 */
+	public OpenERPWriteBuffer newWriteBuffer(int maxRecords, long maxDelayMillis) {
+		return new OpenERPWriteBuffer(this, maxRecords, maxDelayMillis);
+	}
+
 	/** A method to delete the matching records width the ids given */
 	public Boolean unlink(String model, Long[] ids) {
 		Boolean unlinkOk = false;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			unlinkOk = (Boolean) client.call("execute", mDatabase, getUserId(), mPassword, model, "unlink", ids);
+			unlinkOk = (Boolean) execute(model, "unlink", (Object) ids);
 		} catch (XMLRPCException e) {
 			Log.d(CONNECTOR_NAME, e.toString());
 		}
@@ -309,8 +562,29 @@ public class OpenERPconn {
 	 * "extra_0", "extra_1"... in the HashMap
 	 * */
 	public <E> void browse(String model, Class<E> modelClass, Long[] ids, List<String> fields, List<E> resultList, Object... extras) throws OpenERPconnException {
+		browse(model, modelClass, ids, fields, (OpenERPPrefetch) null, resultList, extras);
+	}
+
+	/**
+	 * Same as the browse() above, but the relational fields added to the
+	 * prefetch are loaded for all the records at once, with one read() per
+	 * related model, and attached to each HashMap before the instances are
+	 * built. See OpenERPPrefetch for the details.
+	 * */
+	public <E> void browse(String model, Class<E> modelClass, Long[] ids, List<String> fields, OpenERPPrefetch prefetch, List<E> resultList, Object... extras) throws OpenERPconnException {
+		if (prefetch != null) {
+			fields = new ArrayList<String>(fields);
+			for (String field : prefetch.getFields()) {
+				if (!fields.contains(field)) {
+					fields.add(field);
+				}
+			}
+		}
 		List<HashMap<String, Object>> listOfFieldValues = read(model, ids, fields.toArray(new String[fields.size()]));
 		if (listOfFieldValues != null) {
+			if (prefetch != null) {
+				prefetch.apply(this, model, listOfFieldValues);
+			}
 			try {
 				Constructor<E> constructor = modelClass.getConstructor(HashMap.class);
 				for (HashMap<String, Object> objectHashmap : listOfFieldValues) {
@@ -343,6 +617,83 @@ public class OpenERPconn {
 		}
 	}
 
+	/**
+	 * Lazy alternative to browse(): only the given fields (keep it to the few
+	 * you show first, or none) are read now. Any other field is read the
+	 * first time a record asks for it, for all the records of the set at
+	 * once, and relational fields can be followed to the related records.
+	 * 
+	 * @see OpenERPRecordSet
+	 * */
+	public OpenERPRecordSet browseLazy(String model, Long[] ids, String... fields) {
+		OpenERPRecordSet recordSet = new OpenERPRecordSet(this, model, ids);
+		if (fields.length > 0 && !recordSet.load(fields)) {
+			return null;
+		}
+		return recordSet;
+	}
+
+	/**
+	 * @return The model a relational field points to, taken from fields_get()
+	 *         the first time and then cached, within the budget of
+	 *         OpenERPCacheManager.getDefault(). Null if it is not a relational
+	 *         field or the call failed.
+	 * */
+	public String getRelation(String model, String field) {
+		String key = relationsKey(model) + field;
+		// One get(), the entry may be evicted at any time
+		String relation = sRelations.get(key);
+		if (relation != null) {
+			return relation.length() > 0 ? relation : null;
+		}
+		HashMap<String, Object> fields = getFields(model);
+		if (fields == null) {
+			return null;
+		}
+		Object fieldInfo = fields.get(field);
+		relation = fieldInfo instanceof Map ? toRelation(((Map<?, ?>) fieldInfo).get("relation")) : NO_RELATION;
+		sRelations.put(key, relation);
+		return relation.length() > 0 ? relation : null;
+	}
+
+	/**
+	 * @return fields_get() of the model, by field name, taken from the server
+	 *         the first time and then cached like getRelation(). Null if the
+	 *         call failed. Do not modify it.
+	 */
+	@SuppressWarnings("unchecked")
+	public HashMap<String, Object> getFields(String model) {
+		String key = relationsKey(model);
+		HashMap<String, Object> fields = sSchemas.get(key);
+		if (fields == null) {
+			try {
+				fields = (HashMap<String, Object>) execute(model, "fields_get");
+				sSchemas.put(key, fields);
+			} catch (XMLRPCException e) {
+				Log.d(CONNECTOR_NAME, e.toString());
+			}
+		}
+		return fields;
+	}
+
+	/** Fills the getRelation() cache with the result of fields_get. */
+	void cacheRelations(String model, Map<?, ?> fieldsInfo) {
+		String prefix = relationsKey(model);
+		for (Map.Entry<?, ?> field : fieldsInfo.entrySet()) {
+			Object relation = field.getValue() instanceof Map ? ((Map<?, ?>) field.getValue()).get("relation") : null;
+			sRelations.put(prefix + field.getKey(), toRelation(relation));
+		}
+	}
+
+	private static String toRelation(Object relation) {
+		return relation instanceof String && ((String) relation).length() > 0 ? (String) relation : NO_RELATION;
+	}
+
+	/** The schema is the same for all the users of a database */
+	private String relationsKey(String model) {
+		return mUrl + "/" + mDatabase + "/" + model + ".";
+	}
+
 	/**
 	 * This is a generic method to call any WS.
 	 * 
@@ -353,23 +704,292 @@ public class OpenERPconn {
 	public Object call(String model, String method, Object... parameters) {
 		Object response = null;
 		try {
-			List<Object> paramsList = new ArrayList<Object>(6);
-			paramsList.add(mDatabase);
-			paramsList.add(getUserId());
-			paramsList.add(mPassword);
-			paramsList.add(model);
-			paramsList.add(method);
-			for (Object parameter : parameters) {
-				paramsList.add(parameter);
-			}
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			response = client.call("execute", paramsList);
+			response = execute(model, method, parameters);
 		} catch (XMLRPCException e) {
 			Log.d(CONNECTOR_NAME, e.toString());
 		}
 		return response;
 	}
 
+	/**
+	 * Central call path of all the methods. Same as call() but the errors are
+	 * thrown instead of logged, for the helpers which need to tell them
+	 * apart. The request is bound by the OpenERPCall scope of the thread, if
+	 * any, and by the default deadline of the method.
+	 * */
+	protected Object execute(String model, String method, Object... parameters) throws XMLRPCException {
+		return executeStreaming(null, model, method, parameters);
+	}
+
+	/** Same as execute(), the binary fields accepted go to the sink. */
+	protected Object executeStreaming(OpenERPBinary.Sink sink, String model, String method, Object... parameters) throws XMLRPCException {
+		OpenERPRequestTemplate template = getTemplate(model, method);
+		OpenERPCall scope = OpenERPCall.current();
+		long deadline = OpenERPCall.earliest(scope != null ? scope.getDeadline() : 0, toDeadline(getDefaultDeadline(method)));
+		OpenERPLimiter limiter = mLimiter;
+		if (limiter == null) {
+			return invoke(scope, deadline, sink, template, method, parameters);
+		}
+		try {
+			if (!limiter.acquire(limiter.getPriority(method), deadline, scope)) {
+				throw new XMLRPCException(scope != null && scope.isCancelled() ? OpenERPTransport.ERROR_CANCELLED : OpenERPLimiter.ERROR_REJECTED);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new XMLRPCException(e);
+		}
+		long start = System.currentTimeMillis();
+		boolean overloaded = true;
+		try {
+			Object result = invoke(scope, deadline, sink, template, method, parameters);
+			overloaded = false;
+			return result;
+		} catch (XMLRPCFault e) {
+			// The server answered, it is an error of the call itself
+			overloaded = false;
+			throw e;
+		} finally {
+			if (overloaded && isStoppedByCaller(scope)) {
+				overloaded = false;
+			}
+			limiter.release(System.currentTimeMillis() - start, overloaded);
+		}
+	}
+
+	/**
+	 * @return True if the caller cancelled the scope or its own deadline
+	 *         passed, which says nothing about the load of the server. The
+	 *         default deadline of the method passing does.
+	 */
+	private static boolean isStoppedByCaller(OpenERPCall scope) {
+		if (scope == null) {
+			return false;
+		}
+		long deadline = scope.getDeadline();
+		return scope.isCancelled() || (deadline != 0 && System.currentTimeMillis() >= deadline);
+	}
+
+	private Object invoke(OpenERPCall scope, long deadline, OpenERPBinary.Sink sink, OpenERPRequestTemplate template, String method, Object[] parameters) throws XMLRPCException {
+		OpenERPEndpoints endpoints = mEndpoints;
+		if (endpoints == null) {
+			return mTransport.invoke(scope, deadline, sink, template, parameters);
+		}
+		return endpoints.invoke(scope, deadline, sink, template, method, parameters);
+	}
+
+	/**
+	 * Sends the read-only calls of this connection, such as search, read and
+	 * getRegistersbyDate, to the replica of the database on the server (or
+	 * to the primary, whichever answers faster lately); the rest stay on the
+	 * primary. The credentials must be the same on the replicas.
+	 * 
+	 * @return The endpoints of the connection, to tune the routing.
+	 * @see OpenERPEndpoints
+	 * */
+	public synchronized OpenERPEndpoints addReplica(String server, int port) throws MalformedURLException {
+		if (mEndpoints == null) {
+			mEndpoints = new OpenERPEndpoints(mTransport);
+		}
+		mEndpoints.addReplica(server, port);
+		return mEndpoints;
+	}
+
+	/** @return Null until addReplica(). */
+	public OpenERPEndpoints getEndpoints() {
+		return mEndpoints;
+	}
+
+	/**
+	 * Puts an adaptive limit to the requests in flight of this connection,
+	 * null to remove it. Share the limiter among the connections to the same
+	 * server so the limit applies to all of them.
+	 * 
+	 * @see OpenERPLimiter
+	 * */
+	public void setLimiter(OpenERPLimiter limiter) {
+		mLimiter = limiter;
+	}
+
+	public OpenERPLimiter getLimiter() {
+		return mLimiter;
+	}
+
+	/**
+	 * Records a summary of the calls of this connection, null to stop.
+	 * 
+	 * @see OpenERPTracer
+	 */
+	public void setTracer(OpenERPTracer tracer) {
+		mTransport.setTracer(tracer);
+		OpenERPEndpoints endpoints = mEndpoints;
+		if (endpoints != null) {
+			endpoints.setTracer(tracer);
+		}
+	}
+
+	public OpenERPTracer getTracer() {
+		return mTransport.getTracer();
+	}
+
+	/**
+	 * Sends the requests of at least thresholdBytes gzipped, e.g. for big
+	 * write() or load() calls on metered links. The server, or a proxy in
+	 * front of it, must accept them; if it does not, compression is turned
+	 * off again. Gzipped responses are always accepted.
+	 * 
+	 * @see OpenERPTransport#setCompression(boolean, int)
+	 */
+	public void setCompression(boolean compressRequests, int thresholdBytes) {
+		mTransport.setCompression(compressRequests, thresholdBytes);
+		OpenERPEndpoints endpoints = mEndpoints;
+		if (endpoints != null) {
+			endpoints.setCompression(compressRequests, thresholdBytes);
+		}
+	}
+
+	/**
+	 * Returns the dateTime values as Long milliseconds since the epoch
+	 * instead of Date, so reading many of them creates no Date objects.
+	 * 
+	 * @see OpenERPTransport#setDatesAsMillis(boolean)
+	 */
+	public void setDatesAsMillis(boolean datesAsMillis) {
+		mTransport.setDatesAsMillis(datesAsMillis);
+		OpenERPEndpoints endpoints = mEndpoints;
+		if (endpoints != null) {
+			endpoints.setDatesAsMillis(datesAsMillis);
+		}
+	}
+
+	/** Same as setTracer() for the static methods, which use the services. */
+	public static void setServiceTracer(OpenERPTracer tracer) {
+		sServiceTracer = tracer;
+	}
+
+	/**
+	 * @return The serialized start of the execute() calls to the method of the
+	 *         model, built again if the credentials changed.
+	 */
+	private OpenERPRequestTemplate getTemplate(String model, String method) throws XMLRPCException {
+		// Looked up without building a key, it runs on every call
+		Integer userId = getUserId();
+		synchronized (mTemplates) {
+			HashMap<String, OpenERPRequestTemplate> methods = mTemplates.get(model);
+			OpenERPRequestTemplate template = methods != null ? methods.get(method) : null;
+			if (template != null && template.matches(mDatabase, userId, mPassword)) {
+				return template;
+			}
+			try {
+				template = new OpenERPRequestTemplate("execute", mDatabase, userId, mPassword, model, method);
+			} catch (IOException e) {
+				throw new XMLRPCException(e);
+			}
+			if (mTemplateCount >= MAX_TEMPLATES) {
+				// Only with unusually many models and methods, start over
+				mTemplates.clear();
+				mTemplateCount = 0;
+				methods = null;
+			}
+			if (methods == null) {
+				methods = new HashMap<String, OpenERPRequestTemplate>();
+				mTemplates.put(model, methods);
+			}
+			if (methods.put(method, template) == null) {
+				mTemplateCount++;
+			}
+			return template;
+		}
+	}
+
+	/**
+	 * Sets the time allowed by default to every call, in milliseconds. 0 (the
+	 * default) means no deadline besides the socket timeouts.
+	 * */
+	public void setDefaultDeadline(long millis) {
+		mDefaultDeadline = millis;
+	}
+
+	/**
+	 * Sets the time allowed by default to the calls of one OpenERP method,
+	 * e.g. "read", "search" or "register_attendance", overriding the general
+	 * default. An OpenERPCall scope can only make it shorter.
+	 * */
+	public void setDefaultDeadline(String method, long millis) {
+		synchronized (mDefaultDeadlines) {
+			mDefaultDeadlines.put(method, millis);
+		}
+	}
+
+	public long getDefaultDeadline(String method) {
+		synchronized (mDefaultDeadlines) {
+			Long millis = mDefaultDeadlines.get(method);
+			return millis != null ? millis : mDefaultDeadline;
+		}
+	}
+
+	/**
+	 * Same as setDefaultDeadline() for the static methods, which use the
+	 * services: "login", "list" (getDatabaseList) and "check_connectivity".
+	 * */
+	public static void setServiceDeadline(String method, long millis) {
+		synchronized (sServiceDeadlines) {
+			sServiceDeadlines.put(method, millis);
+		}
+	}
+
+	protected static Object callService(URL url, String method, Object... parameters) throws XMLRPCException {
+		long millis;
+		synchronized (sServiceDeadlines) {
+			Long serviceMillis = sServiceDeadlines.get(method);
+			millis = serviceMillis != null ? serviceMillis : 0;
+		}
+		OpenERPCall scope = OpenERPCall.current();
+		long deadline = OpenERPCall.earliest(scope != null ? scope.getDeadline() : 0, toDeadline(millis));
+		OpenERPTransport transport = new OpenERPTransport(url);
+		transport.setTracer(sServiceTracer);
+		return transport.invoke(scope, deadline, null, method, parameters);
+	}
+
+	private static long toDeadline(long millis) {
+		return millis > 0 ? System.currentTimeMillis() + millis : 0;
+	}
+
+	/**
+	 * Imports the rows in chunks through the load() method of the model (or
+	 * create() if the server does not have it), keeping parallelism chunks in
+	 * flight. Each row holds the values of the fields, in the same order.
+	 * Blocks until all the rows are sent; the ids and errors of every chunk
+	 * go to the listener, which may be null if the totals are enough.
+	 * 
+	 * @see OpenERPImporter
+	 * */
+	public OpenERPImporter.Result importRecords(String model, String[] fields, Iterator<Object[]> rows, int chunkSize, int parallelism, OpenERPImporter.Listener listener) throws InterruptedException {
+		OpenERPImporter importer = new OpenERPImporter(this, model, fields);
+		importer.setChunkSize(chunkSize);
+		importer.setParallelism(parallelism);
+		importer.setListener(listener);
+		return importer.run(rows);
+	}
+
+	/**
+	 * Exports the records matching the conditions to the stream, which is
+	 * flushed but not closed, a page of pageSize records at a time, sorted by
+	 * id. The progress of each page goes to the listener, which may be null.
+	 * 
+	 * @param format
+	 *            OpenERPExporter.FORMAT_CSV or FORMAT_NDJSON.
+	 * @see OpenERPExporter
+	 * */
+	public OpenERPExporter.Result exportRecords(String model, Object[] conditions, String[] fields, OutputStream out, int format, boolean gzip, int pageSize,
+			OpenERPExporter.Listener listener) throws IOException {
+		OpenERPExporter exporter = new OpenERPExporter(this, model, conditions, fields);
+		exporter.setFormat(format);
+		exporter.setGzip(gzip);
+		exporter.setPageSize(pageSize);
+		exporter.setListener(listener);
+		return exporter.run(out);
+	}
+
 	/**
 	 * This utility method reverses the order of the Long elements (ids) in the
 	 * array. Used to implement reverse ordering.
@@ -402,6 +1022,19 @@ public class OpenERPconn {
 		return stringConn.toString();
 	}
 
+	/**
+	 * @return A fan-out over the databases, all of them if none are given,
+	 *         to run the same query in all of them at the same time. Null if
+	 *         the databases could not be listed.
+	 * @see OpenERPFanOut
+	 * */
+	public static OpenERPFanOut fanOut(String server, int port, String user, String pass, String... databases) {
+		if (databases.length == 0) {
+			return OpenERPFanOut.allDatabases(server, port, user, pass);
+		}
+		return new OpenERPFanOut(server, port, user, pass, databases);
+	}
+
 	/**
 	 * As Java does not support output parameters; to control whether an
 	 * Exception occurred in browse() method, we create this class, so the
@@ -418,6 +1051,7 @@ public class OpenERPconn {
 	public static class OpenERPconnException extends Exception {
 
 		private static final String ERROR_READ = "read() method returned unexpected null value";
+		public static final String ERROR_CONFLICT = "The record was modified since it was read";
 
 		/** Required because Exception implements Serializable interface */
 		private static final long serialVersionUID = 1L;
@@ -442,9 +1076,8 @@ public class OpenERPconn {
 		try {
 			URL ServerUrl;
 			ServerUrl = new URL("http", server, port, "/xmlrpc/db");
-			XMLRPCClient client = new XMLRPCClient(ServerUrl);
 
-			Object aux = client.call("list", new ArrayList<Object>());
+			Object aux = callService(ServerUrl, "list", new ArrayList<Object>());
 			Object[] a = (Object[]) aux;
 			String[] res = new String[a.length];
 			for (int i = 0; i < a.length; i++) {
@@ -474,8 +1107,7 @@ public class OpenERPconn {
 		try {
 			URL ServerUrl;
 			ServerUrl = new URL("http", server, port, "/xmlrpc/common");
-			XMLRPCClient client = new XMLRPCClient(ServerUrl);
-			Object res = client.call("check_connectivity");
+			Object res = callService(ServerUrl, "check_connectivity");
 			result = Boolean.parseBoolean(res + "");
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
@@ -488,23 +1120,12 @@ public class OpenERPconn {
 	}
 
 	public static void TestConnection_execute(final String server, final int port) {
-		Thread thread = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				gl.connected = TestConnection_method(server, port);
-			}
-		});
-		thread.start();
-		long endTimeMillis = System.currentTimeMillis() + 2000;
-		while (thread.isAlive()) {
-			if (System.currentTimeMillis() > endTimeMillis) {
-				gl.connected = false;
-				break;
-			}
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException t) {
-			}
+		// The request is aborted if it takes more than 2 seconds
+		OpenERPCall call = OpenERPCall.begin(2000);
+		try {
+			gl.connected = TestConnection_method(server, port);
+		} finally {
+			call.end();
 		}
 	}
 
@@ -517,8 +1138,7 @@ public class OpenERPconn {
 	public String ValidateRegister() {
 		String result = "";
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			Object resp = client.call("execute", mDatabase, getUserId(), mPassword, "control.horario.register", "validate_register");
+			Object resp = execute("control.horario.register", "validate_register");
 			result = resp + "";
 		} catch (XMLRPCException e) {
 			e.printStackTrace();
@@ -530,8 +1150,7 @@ public class OpenERPconn {
 	public boolean Module_Installed(String module_name) {
 		boolean result = false;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			Object resp = client.call("execute", mDatabase, getUserId(), mPassword, "control.horario.register", "module_installed", module_name);
+			Object resp = execute("control.horario.register", "module_installed", module_name);
 			result = Boolean.parseBoolean(resp + "");
 		} catch (XMLRPCException e) {
 			e.printStackTrace();
@@ -543,8 +1162,7 @@ public class OpenERPconn {
 	public boolean Register_Attendance(Integer employee_id) {
 		boolean result = false;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			Object resp = client.call("execute", mDatabase, getUserId(), mPassword, "control.horario.register", "register_attendance", employee_id);
+			Object resp = execute("control.horario.register", "register_attendance", employee_id);
 			result = Boolean.parseBoolean(resp + "");
 		} catch (XMLRPCException e) {
 			e.printStackTrace();
@@ -552,13 +1170,32 @@ public class OpenERPconn {
 		return result;
 	}
 
+	/**
+	 * @return A watcher which polls the last attendance of today of many
+	 *         employees with one batched query per tick, backing off while
+	 *         nothing changes. Call start() on it once the employees are
+	 *         watched.
+	 * @see OpenERPAttendanceWatcher
+	 */
+	public OpenERPAttendanceWatcher newAttendanceWatcher(long minIntervalMillis, long maxIntervalMillis) {
+		return new OpenERPAttendanceWatcher(this, minIntervalMillis, maxIntervalMillis);
+	}
+
+	/**
+	 * @return An aggregator to register many punches at once without
+	 *         blocking, e.g. at shift change. close() it when done.
+	 * @see OpenERPAttendanceAggregator
+	 */
+	public OpenERPAttendanceAggregator newAttendanceAggregator(int maxBatch, long maxDelayMillis) {
+		return new OpenERPAttendanceAggregator(this, maxBatch, maxDelayMillis);
+	}
+
 	// Obtenner los registro de asistencia
 	@SuppressWarnings("unchecked")
 	public HashMap<String, Object> getRegisters(String From, String To, int employee_id) {
 		HashMap<String, Object> result = null;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			Object registers_result = (Object) client.call("execute", mDatabase, getUserId(), mPassword, "control.horario.register", "getRegistersbyDate", From, To, employee_id);
+			Object registers_result = (Object) execute("control.horario.register", "getRegistersbyDate", From, To, employee_id);
 			result = (HashMap<String, Object>) registers_result;
 		} catch (XMLRPCException e) {
 			e.printStackTrace();
@@ -566,14 +1203,34 @@ public class OpenERPconn {
 		return result;
 	}
 
+	/**
+	 * Replaces the Date values, e.g. date_from and date_to, by the same local
+	 * time as yyyy-MM-dd HH:mm:ss, the format getRegisters() expects. They
+	 * are Long milliseconds if setDatesAsMillis() is on.
+	 */
+	HashMap<String, Object> datesToStrings(HashMap<String, Object> values) {
+		if (values == null) {
+			return null;
+		}
+		boolean millis = mTransport.isDatesAsMillis();
+		char[] buffer = new char[OpenERPDateCodec.SERVER_DATETIME_LENGTH];
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			Object value = entry.getValue();
+			if (value instanceof Date || (millis && value instanceof Long)) {
+				OpenERPDateCodec.formatServer(value instanceof Date ? ((Date) value).getTime() : (Long) value, false, buffer, 0);
+				entry.setValue(new String(buffer));
+			}
+		}
+		return values;
+	}
+
 	// Obtener el rango de fechas - Hoy
 	@SuppressWarnings("unchecked")
 	public HashMap<String, Object> getRangeDates_today() {
 		HashMap<String, Object> result = null;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			Object registers_result = (Object) client.call("execute", mDatabase, getUserId(), mPassword, "control.horario.register", "getRangeDates_today");
-			result = hupernikao.ConvertDatetoString((HashMap<String, Object>) registers_result);
+			Object registers_result = (Object) execute("control.horario.register", "getRangeDates_today");
+			result = datesToStrings((HashMap<String, Object>) registers_result);
 		} catch (XMLRPCException e) {
 			e.printStackTrace();
 		}
@@ -585,9 +1242,8 @@ public class OpenERPconn {
 	public HashMap<String, Object> getRangeDates_yesterday() {
 		HashMap<String, Object> result = null;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			Object registers_result = (Object) client.call("execute", mDatabase, getUserId(), mPassword, "control.horario.register", "getRangeDates_yesterday");
-			result = hupernikao.ConvertDatetoString((HashMap<String, Object>) registers_result);
+			Object registers_result = (Object) execute("control.horario.register", "getRangeDates_yesterday");
+			result = datesToStrings((HashMap<String, Object>) registers_result);
 		} catch (XMLRPCException e) {
 			e.printStackTrace();
 		}
@@ -599,9 +1255,8 @@ public class OpenERPconn {
 	public HashMap<String, Object> getRangeDates_this_week() {
 		HashMap<String, Object> result = null;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			Object registers_result = (Object) client.call("execute", mDatabase, getUserId(), mPassword, "control.horario.register", "getRangeDates_this_week");
-			result = hupernikao.ConvertDatetoString((HashMap<String, Object>) registers_result);
+			Object registers_result = (Object) execute("control.horario.register", "getRangeDates_this_week");
+			result = datesToStrings((HashMap<String, Object>) registers_result);
 		} catch (XMLRPCException e) {
 			e.printStackTrace();
 		}
@@ -613,9 +1268,8 @@ public class OpenERPconn {
 	public HashMap<String, Object> getRangeDates_this_month() {
 		HashMap<String, Object> result = null;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			Object registers_result = (Object) client.call("execute", mDatabase, getUserId(), mPassword, "control.horario.register", "getRangeDates_this_month");
-			result = hupernikao.ConvertDatetoString((HashMap<String, Object>) registers_result);
+			Object registers_result = (Object) execute("control.horario.register", "getRangeDates_this_month");
+			result = datesToStrings((HashMap<String, Object>) registers_result);
 		} catch (XMLRPCException e) {
 			e.printStackTrace();
 		}
@@ -627,8 +1281,7 @@ public class OpenERPconn {
 	public HashMap<String, Object> getLastRegisterToday(int employeeID) {
 		HashMap<String, Object> result = null;
 		try {
-			XMLRPCClient client = new XMLRPCClient(mUrl);
-			Object last_register = (Object) client.call("execute", mDatabase, getUserId(), mPassword, "control.horario.register", "getLastRegisterToday", employeeID);
+			Object last_register = (Object) execute("control.horario.register", "getLastRegisterToday", employeeID);
 			result = (HashMap<String, Object>) last_register;
 		} catch (XMLRPCException e) {
 			e.printStackTrace();